@@ -0,0 +1,24 @@
+package manchester.synbiochem.datacapture;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary result for the I/O benchmarks, so that JMH reports data rates
+ * (bytes per unit time) alongside the operation rate.
+ *
+ * @author Donal Fellows
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class ByteCounter {
+	public long bytes;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		bytes = 0;
+	}
+}
@@ -0,0 +1,61 @@
+package manchester.synbiochem.datacapture;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+
+import manchester.synbiochem.datacapture.ArchiverTask.Entry;
+
+import org.apache.tika.Tika;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the per-file characterisation done by
+ * {@link MetadataRecorder#addFile(String, java.io.File, java.io.File, String, java.net.URI)
+ * MetadataRecorder.addFile} (both digests plus MIME type detection) and, on its
+ * own, the Tika detection part of that.
+ *
+ * @author Donal Fellows
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class CharacteriseBenchmark {
+	private final Tika tika = new Tika();
+
+	@Benchmark
+	public MetadataRecorder addFile(TreeState tree, ByteCounter counter)
+			throws IOException {
+		MetadataRecorder md = new MetadataRecorder(tika, null, "");
+		for (Entry ent : tree.entries)
+			md.addFile(ent.getName(), ent.getFile(), ent.getFile(),
+					CopyBenchmark.CIFS + ent.getName(), null);
+		counter.bytes += tree.totalBytes;
+		return md;
+	}
+
+	@Benchmark
+	public void tikaDetectFile(TreeState tree, Blackhole bh)
+			throws IOException {
+		for (Entry ent : tree.entries)
+			bh.consume(tika.detect(ent.getFile()));
+	}
+
+	@Benchmark
+	public void tikaDetectName(TreeState tree, Blackhole bh) {
+		for (Entry ent : tree.entries)
+			bh.consume(tika.detect(ent.getName()));
+	}
+}
@@ -0,0 +1,68 @@
+package manchester.synbiochem.datacapture;
+
+import static java.nio.file.Files.createTempDirectory;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.io.FileUtils.deleteDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+
+import org.apache.tika.Tika;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link ArchiverTask#copyToWorkingDirectory()}, the copy from the
+ * instrument to the working store. Each invocation copies the whole synthetic
+ * tree into a fresh, empty archive directory.
+ *
+ * @author Donal Fellows
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class CopyBenchmark {
+	static final URI CIFS = URI.create("smb://benchmark/data/");
+
+	@State(Scope.Thread)
+	public static class Target {
+		File archive;
+		ArchiverTask task;
+
+		@Setup(Level.Invocation)
+		public void makeTask(TreeState tree) throws IOException {
+			archive = createTempDirectory(tree.workDir.toPath(), "archive")
+					.toFile();
+			task = new ArchiverTask(new MetadataRecorder(new Tika(), null, ""),
+					archive, archive, CIFS, singletonList(tree.source), null,
+					new InformationSource());
+			task.entries.addAll(tree.entries);
+		}
+
+		@TearDown(Level.Invocation)
+		public void deleteArchive() throws IOException {
+			deleteDirectory(archive);
+		}
+	}
+
+	@Benchmark
+	public void copyToWorkingDirectory(TreeState tree, Target target,
+			ByteCounter counter) {
+		target.task.copyToWorkingDirectory();
+		counter.bytes += tree.totalBytes;
+	}
+}
@@ -0,0 +1,64 @@
+package manchester.synbiochem.datacapture;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link Digest} in isolation from any I/O: hashing of in-memory
+ * buffers of the size the characterisation stage reads with, and the
+ * conversion of the finished digest to hex.
+ *
+ * @author Donal Fellows
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Thread)
+public class DigestBenchmark {
+	/** How many buffers make up one "file" in {@link #update}. */
+	private static final int BUFFERS = 16;
+
+	@Param({ "SHA1", "MD5" })
+	public String algorithm;
+	@Param({ "8192", "65536" })
+	public int bufferSize;
+
+	private Algorithm alg;
+	private byte[] buffer;
+
+	@Setup
+	public void makeBuffer() {
+		alg = Algorithm.valueOf(algorithm);
+		buffer = new byte[bufferSize];
+		new Random(bufferSize).nextBytes(buffer);
+	}
+
+	@Benchmark
+	public String update(ByteCounter counter) {
+		Digest d = new Digest(alg);
+		for (int i = 0; i < BUFFERS; i++)
+			d.update(buffer, bufferSize);
+		counter.bytes += (long) BUFFERS * bufferSize;
+		return d.toString();
+	}
+
+	@Benchmark
+	public String toHex() {
+		return new Digest(alg).update(buffer, 16).toString();
+	}
+}
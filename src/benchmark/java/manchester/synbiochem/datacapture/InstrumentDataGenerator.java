@@ -0,0 +1,199 @@
+package manchester.synbiochem.datacapture;
+
+import static java.lang.String.format;
+import static manchester.synbiochem.datacapture.SyntheticTree.SizeDistribution.LOGNORMAL;
+import static manchester.synbiochem.datacapture.SyntheticTree.SizeDistribution.UNIFORM;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generator of synthetic instrument runs: directories laid out the way the
+ * acquisition software of the instruments we capture from lays them out, with
+ * a realistic mix of a few large data files, many small index and method
+ * files, and (for imaging) deep nesting. The contents are random; only the
+ * shape matters.
+ *
+ * @author Donal Fellows
+ */
+class InstrumentDataGenerator {
+	/** Vendor-style layouts of the samples within a run. */
+	enum Layout {
+		/** Waters MassLynx: a <tt>.raw</tt> directory per sample. */
+		WATERS,
+		/** Thermo Xcalibur: a single <tt>.raw</tt> file per sample. */
+		THERMO,
+		/** Agilent MassHunter: a <tt>.d</tt> directory tree per sample. */
+		AGILENT,
+		/** Plate imager: plate / well / field / channel nesting. */
+		IMAGER
+	}
+
+	/** Size of the small (header, index, method) files. */
+	private static final long SMALL = 2048;
+
+	private final SyntheticTree files;
+	private final Random random;
+	private final long meanSize;
+
+	/**
+	 * @param seed
+	 *            Seed for the sizes and contents of the files.
+	 * @param meanSize
+	 *            The mean size of the <i>large</i> data files, in bytes.
+	 */
+	InstrumentDataGenerator(long seed, long meanSize) {
+		this.files = new SyntheticTree(seed);
+		this.random = files.random();
+		this.meanSize = meanSize;
+	}
+
+	/** @return The total size of all files generated so far. */
+	long getTotalBytes() {
+		return files.getTotalBytes();
+	}
+
+	/** @return The number of files generated so far. */
+	int getFileCount() {
+		return files.getFileCount();
+	}
+
+	/**
+	 * Generate one run.
+	 *
+	 * @param instrumentDir
+	 *            The instrument's directory (one of the directories that the
+	 *            service offers for archiving from).
+	 * @param runName
+	 *            The name of the run directory to create.
+	 * @param layout
+	 *            How the instrument lays out its output.
+	 * @param samples
+	 *            How many samples are in the run.
+	 * @return The run directory.
+	 * @throws IOException
+	 *             If file creation fails.
+	 */
+	File generateRun(File instrumentDir, String runName, Layout layout,
+			int samples) throws IOException {
+		File run = new File(instrumentDir, runName);
+		run.mkdirs();
+		small(new File(run, "SampleList.csv"));
+		for (int i = 1; i <= samples; i++) {
+			String sample = format("%s_%03d", runName, i);
+			switch (layout) {
+			case WATERS:
+				waters(new File(run, sample + ".raw"));
+				break;
+			case THERMO:
+				thermo(run, sample);
+				break;
+			case AGILENT:
+				agilent(new File(run, sample + ".d"));
+				break;
+			case IMAGER:
+				imager(new File(run, "Plate_" + i));
+				break;
+			}
+		}
+		return run;
+	}
+
+	/**
+	 * Generate several runs for each of several instruments, cycling through
+	 * the layouts so that each instrument gets a different one.
+	 *
+	 * @param root
+	 *            The directory to create the instrument directories in.
+	 * @param instruments
+	 *            The names of the instruments.
+	 * @param runsPerInstrument
+	 *            How many runs to make for each instrument.
+	 * @param samplesPerRun
+	 *            How many samples in each run.
+	 * @return The run directories, as <tt>instrument/run</tt> names relative
+	 *         to the root.
+	 * @throws IOException
+	 *             If file creation fails.
+	 */
+	List<String> generate(File root, List<String> instruments,
+			int runsPerInstrument, int samplesPerRun) throws IOException {
+		List<String> runs = new ArrayList<>();
+		Layout[] layouts = Layout.values();
+		for (int i = 0; i < instruments.size(); i++) {
+			String instrument = instruments.get(i);
+			File dir = new File(root, instrument);
+			for (int j = 1; j <= runsPerInstrument; j++) {
+				String run = format("%s_run_%04d", instrument, j);
+				generateRun(dir, run, layouts[i % layouts.length],
+						samplesPerRun);
+				runs.add(instrument + "/" + run);
+			}
+		}
+		return runs;
+	}
+
+	private void small(File f) throws IOException {
+		files.write(f, files.size(UNIFORM, SMALL));
+	}
+
+	private void large(File f) throws IOException {
+		files.write(f, files.size(LOGNORMAL, meanSize));
+	}
+
+	private void waters(File raw) throws IOException {
+		raw.mkdir();
+		for (String name : new String[] { "_HEADER.TXT", "_extern.inf",
+				"_FUNCTNS.INF", "_INLET.INF", "_CHROMS.INF" })
+			small(new File(raw, name));
+		int functions = 1 + random.nextInt(3);
+		for (int f = 1; f <= functions; f++) {
+			String base = format("_FUNC%03d", f);
+			large(new File(raw, base + ".DAT"));
+			small(new File(raw, base + ".IDX"));
+			small(new File(raw, base + ".STS"));
+		}
+		large(new File(raw, "_CHRO001.DAT"));
+		small(new File(raw, "_CHRO001.IDX"));
+	}
+
+	private void thermo(File run, String sample) throws IOException {
+		large(new File(run, sample + ".raw"));
+		small(new File(run, sample + ".meth"));
+		small(new File(run, sample + ".sld"));
+	}
+
+	private void agilent(File d) throws IOException {
+		File acq = new File(d, "AcqData");
+		acq.mkdirs();
+		large(new File(acq, "MSScan.bin"));
+		large(new File(acq, "MSProfile.bin"));
+		small(new File(acq, "MSPeak.bin"));
+		for (String name : new String[] { "Contents.xml", "MSTS.xml",
+				"DefaultMassCal.xml", "MSScan.xsd", "AcqMethod.xml" })
+			small(new File(acq, name));
+		File method = new File(d, "AcqMethod.m");
+		method.mkdir();
+		small(new File(method, "info.xml"));
+	}
+
+	private void imager(File plate) throws IOException {
+		int rows = 2 + random.nextInt(3), cols = 3 + random.nextInt(4);
+		for (int r = 0; r < rows; r++)
+			for (int c = 1; c <= cols; c++) {
+				File well = new File(plate, format("Well_%c%02d",
+						(char) ('A' + r), c));
+				for (int field = 1; field <= 2; field++) {
+					File dir = new File(well, "Field_" + field);
+					dir.mkdirs();
+					for (String channel : new String[] { "DAPI", "GFP" })
+						files.write(new File(dir, channel + ".tif"),
+								files.size(UNIFORM, meanSize / 16));
+				}
+			}
+		small(new File(plate, "PlateLayout.xml"));
+	}
+}
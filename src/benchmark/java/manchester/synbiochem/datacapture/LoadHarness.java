@@ -0,0 +1,356 @@
+package manchester.synbiochem.datacapture;
+
+import static java.lang.Math.ceil;
+import static java.lang.Math.max;
+import static java.lang.String.format;
+import static java.lang.System.nanoTime;
+import static java.lang.Thread.sleep;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.commons.codec.binary.Base64.encodeBase64String;
+import static org.apache.commons.io.FileUtils.sizeOfDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * End-to-end load generator for a running data capture service. A number of
+ * simulated users each submit archiving tasks through <tt>POST /tasks</tt> and
+ * then poll them through <tt>GET /tasks/{id}</tt> (as the web page does) until
+ * they finish. At the end it reports the task and data throughput achieved and
+ * the latency of each kind of API call.
+ * <p>
+ * The runs to archive must be in a directory that the service has been
+ * configured to offer (i.e., listed in <tt>instrument.directories</tt>); the
+ * harness can generate synthetic runs there first. Arguments (all of the form
+ * <tt>--name value</tt>):
+ * <dl>
+ * <dt>url</dt>
+ * <dd>Base URL of the service's API (required)</dd>
+ * <dt>user</dt>
+ * <dd>URL of the submitting user, as in <tt>userList</tt> (required)</dd>
+ * <dt>project</dt>
+ * <dd>URL of the project, as in <tt>projectList</tt> (required)</dd>
+ * <dt>root</dt>
+ * <dd>Directory holding the instrument directories (required)</dd>
+ * <dt>instruments</dt>
+ * <dd>Comma-separated instrument directory names (default: <tt>SYNAPT</tt>)</dd>
+ * <dt>generate</dt>
+ * <dd>Runs per instrument to generate first; 0 to use what exists (default: 0)</dd>
+ * <dt>samples</dt>
+ * <dd>Samples per generated run (default: 4)</dd>
+ * <dt>mean-size</dt>
+ * <dd>Mean size of generated data files, in bytes (default: 16MB)</dd>
+ * <dt>users</dt>
+ * <dd>Number of concurrent simulated users (default: 4)</dd>
+ * <dt>tasks</dt>
+ * <dd>Tasks submitted by each user (default: 5)</dd>
+ * <dt>think</dt>
+ * <dd>Milliseconds between one user's submissions (default: 0)</dd>
+ * <dt>poll</dt>
+ * <dd>Milliseconds between polls of a task (default: 10000)</dd>
+ * <dt>credentials</dt>
+ * <dd><tt>user:password</tt> for HTTP Basic authentication (default: none)</dd>
+ * </dl>
+ *
+ * @author Donal Fellows
+ */
+public class LoadHarness {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String JSON = "application/json";
+	private static final int MAX_RETRIES = 10;
+
+	private final URL base;
+	private final String user, project, credentials;
+	private final List<String> runs;
+	private final Map<String, Long> runSizes = new HashMap<>();
+	private final int users, tasksPerUser;
+	private final long think, poll;
+	private final Latencies latencies = new Latencies();
+	private final AtomicInteger nextRun = new AtomicInteger();
+	/** The tasks being watched, by any user; a task that several
+	 * submissions joined is only watched, and counted, once. */
+	private final Set<String> watched = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicInteger submitted = new AtomicInteger();
+	private final AtomicInteger joined = new AtomicInteger();
+	private final AtomicInteger completed = new AtomicInteger();
+	private final AtomicInteger lost = new AtomicInteger();
+	private final AtomicInteger rejected = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+
+	LoadHarness(Map<String, String> args) throws IOException {
+		base = new URL(required(args, "url").replaceFirst("/*$", "/"));
+		user = required(args, "user");
+		project = required(args, "project");
+		credentials = args.containsKey("credentials") ? "Basic "
+				+ encodeBase64String(args.get("credentials").getBytes(UTF8))
+				: null;
+		users = Integer.parseInt(option(args, "users", "4"));
+		tasksPerUser = Integer.parseInt(option(args, "tasks", "5"));
+		think = Long.parseLong(option(args, "think", "0"));
+		poll = Long.parseLong(option(args, "poll", "10000"));
+
+		File root = new File(required(args, "root"));
+		List<String> instruments = asList(option(args, "instruments",
+				"SYNAPT").split(","));
+		int generate = Integer.parseInt(option(args, "generate", "0"));
+		if (generate > 0) {
+			InstrumentDataGenerator gen = new InstrumentDataGenerator(
+					generate, Long.parseLong(option(args, "mean-size",
+							"16777216")));
+			runs = gen.generate(root, instruments, generate,
+					Integer.parseInt(option(args, "samples", "4")));
+			System.out.println(format("generated %d runs: %d files, %d bytes",
+					runs.size(), gen.getFileCount(), gen.getTotalBytes()));
+		} else {
+			runs = new ArrayList<>();
+			for (String instrument : instruments) {
+				File[] dirs = new File(root, instrument).listFiles();
+				if (dirs != null)
+					for (File d : dirs)
+						if (d.isDirectory() && !d.getName().startsWith("."))
+							runs.add(instrument + "/" + d.getName());
+			}
+			Collections.sort(runs);
+		}
+		if (runs.isEmpty())
+			throw new IllegalArgumentException("no runs to archive");
+		for (String run : runs)
+			runSizes.put(run, sizeOfDirectory(new File(root, run)));
+	}
+
+	private static String required(Map<String, String> args, String key) {
+		String value = args.get(key);
+		if (value == null)
+			throw new IllegalArgumentException("--" + key + " is required");
+		return value;
+	}
+
+	private static String option(Map<String, String> args, String key,
+			String defaultValue) {
+		String value = args.get(key);
+		return value == null ? defaultValue : value;
+	}
+
+	public static void main(String... argv) throws Exception {
+		Map<String, String> args = new HashMap<>();
+		for (int i = 0; i + 1 < argv.length; i += 2) {
+			if (!argv[i].startsWith("--"))
+				throw new IllegalArgumentException("bad argument: " + argv[i]);
+			args.put(argv[i].substring(2), argv[i + 1]);
+		}
+		new LoadHarness(args).run();
+	}
+
+	void run() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(users);
+		long start = nanoTime();
+		for (int i = 0; i < users; i++)
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						simulateUser();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, NANOSECONDS);
+		report(nanoTime() - start);
+	}
+
+	/** One user: submit all their tasks, then watch them until done. */
+	private void simulateUser() throws InterruptedException {
+		Map<String, String> pending = new LinkedHashMap<>();
+		for (int i = 0; i < tasksPerUser; i++) {
+			String run = runs.get(nextRun.getAndIncrement() % runs.size());
+			String id = submit(run);
+			if (id == null)
+				rejected.incrementAndGet();
+			else if (watched.add(id))
+				pending.put(id, run);
+			if (think > 0)
+				sleep(think);
+		}
+		while (!pending.isEmpty()) {
+			sleep(poll);
+			List<String> done = new ArrayList<>();
+			for (Map.Entry<String, String> task : pending.entrySet())
+				switch (state(task.getKey())) {
+				case FINISHED:
+					completed.incrementAndGet();
+					bytes.addAndGet(runSizes.get(task.getValue()));
+					done.add(task.getKey());
+					break;
+				case LOST:
+					lost.incrementAndGet();
+					done.add(task.getKey());
+					break;
+				default:
+					break;
+				}
+			pending.keySet().removeAll(done);
+		}
+	}
+
+	private HttpURLConnection open(String path) throws IOException {
+		HttpURLConnection c = (HttpURLConnection) new URL(base, path)
+				.openConnection();
+		c.setInstanceFollowRedirects(false);
+		c.setRequestProperty("Accept", JSON);
+		if (credentials != null)
+			c.setRequestProperty("Authorization", credentials);
+		return c;
+	}
+
+	/**
+	 * Submit a task, retrying while the service is too busy to take it.
+	 *
+	 * @return The task's ID, or <tt>null</tt> if it was refused.
+	 */
+	private String submit(String run) throws InterruptedException {
+		JSONObject task = new JSONObject()
+				.put("submitter", new JSONObject().put("url", user))
+				.put("project", new JSONObject().put("url", project))
+				.put("directory",
+						new JSONArray().put(new JSONObject().put("name", run)))
+				.put("notes", "load test");
+		byte[] body = task.toString().getBytes(UTF8);
+		for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+			long t0 = nanoTime();
+			try {
+				HttpURLConnection c = open("tasks");
+				c.setRequestMethod("POST");
+				c.setDoOutput(true);
+				c.setRequestProperty("Content-Type", JSON);
+				try (OutputStream os = c.getOutputStream()) {
+					os.write(body);
+				}
+				int code = c.getResponseCode();
+				drain(c);
+				latencies.record("POST /tasks", nanoTime() - t0);
+				String location = c.getHeaderField("Location");
+				if ((code == 201 || code == 303) && location != null) {
+					submitted.incrementAndGet();
+					if (code == 303)
+						joined.incrementAndGet();
+					return location.replaceFirst(".*/", "");
+				}
+				if (code != 503)
+					return null;
+				sleep(1000 * max(1, c.getHeaderFieldInt("Retry-After", 1)));
+			} catch (IOException e) {
+				latencies.record("POST /tasks", nanoTime() - t0);
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/** What a watched task is doing. */
+	private enum State {
+		RUNNING, FINISHED,
+		/** Gone without being seen to finish. */
+		LOST
+	}
+
+	private State state(String id) {
+		long t0 = nanoTime();
+		try {
+			HttpURLConnection c = open("tasks/" + id);
+			int code = c.getResponseCode();
+			if (code == 404 || code == 410) {
+				drain(c);
+				return State.LOST;
+			}
+			JSONObject task;
+			try (InputStream is = c.getInputStream()) {
+				task = new JSONObject(IOUtils.toString(is, UTF8));
+			}
+			if (task.has("end-time") || task.optDouble("progress", 0) >= 1)
+				return State.FINISHED;
+			return State.RUNNING;
+		} catch (IOException e) {
+			return State.RUNNING;
+		} finally {
+			latencies.record("GET /tasks/{id}", nanoTime() - t0);
+		}
+	}
+
+	private static void drain(HttpURLConnection c) throws IOException {
+		InputStream is = c.getResponseCode() < 400 ? c.getInputStream() : c
+				.getErrorStream();
+		if (is != null)
+			try {
+				IOUtils.toByteArray(is);
+			} finally {
+				is.close();
+			}
+	}
+
+	private void report(long elapsed) {
+		double seconds = elapsed / 1e9;
+		System.out.println(format("tasks: %d submitted (%d joined), "
+				+ "%d completed, %d lost, %d rejected in %.1f s",
+				submitted.get(), joined.get(), completed.get(), lost.get(),
+				rejected.get(), seconds));
+		System.out.println(format("throughput: %.1f tasks/hour, %.0f bytes/s",
+				completed.get() * (double) NANOSECONDS.convert(1, HOURS)
+						/ elapsed, bytes.get() / seconds));
+		latencies.report();
+	}
+
+	/** Latency samples, grouped by the kind of API call. */
+	static class Latencies {
+		private final Map<String, List<Long>> samples = new LinkedHashMap<>();
+
+		synchronized void record(String call, long nanos) {
+			List<Long> list = samples.get(call);
+			if (list == null)
+				samples.put(call, list = new ArrayList<>());
+			list.add(nanos);
+		}
+
+		private static double percentile(List<Long> sorted, double p) {
+			int index = (int) ceil(p / 100 * sorted.size()) - 1;
+			return sorted.get(max(index, 0)) / 1e6;
+		}
+
+		synchronized void report() {
+			System.out.println(format("%-18s %8s %10s %10s %10s", "latency (ms)",
+					"count", "p50", "p99", "max"));
+			for (Map.Entry<String, List<Long>> e : samples.entrySet()) {
+				List<Long> sorted = new ArrayList<>(e.getValue());
+				Collections.sort(sorted);
+				System.out.println(format("%-18s %8d %10.1f %10.1f %10.1f",
+						e.getKey(), sorted.size(), percentile(sorted, 50),
+						percentile(sorted, 99), percentile(sorted, 100)));
+			}
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package manchester.synbiochem.datacapture;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.util.Random;
+
+import manchester.synbiochem.datacapture.SeekConnector.Assay;
+import manchester.synbiochem.datacapture.SeekConnector.User;
+
+import org.apache.commons.io.output.NullWriter;
+import org.apache.tika.Tika;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the end-of-task finalisation of the manifests held by
+ * {@link MetadataRecorder}: computing the document IDs (both versions),
+ * rendering the JSON manifest (both to a string and streamed), and rendering
+ * the TSV manifest (likewise). Each is a separate benchmark so that the JSON
+ * and TSV paths can be tracked independently; run with <tt>-prof gc</tt> to
+ * get the allocation per operation as well as the time.
+ * <p>
+ * The recorder is populated with synthetic per-file records (no files are
+ * read) before each invocation, since finalisation is one-shot.
+ *
+ * @author Donal Fellows
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ManifestBenchmark {
+	/** Synthetic file records, shared by all invocations. */
+	@State(Scope.Benchmark)
+	public static class Records {
+		@Param({ "100000", "1000000" })
+		public int fileCount;
+
+		String[] sha1, md5, name;
+		long[] size;
+		final Tika tika = new Tika();
+		final User user = new User();
+		final Assay assay = new Assay();
+
+		@Setup(Level.Trial)
+		public void makeRecords() throws MalformedURLException {
+			Random r = new Random(fileCount);
+			sha1 = new String[fileCount];
+			md5 = new String[fileCount];
+			name = new String[fileCount];
+			size = new long[fileCount];
+			for (int i = 0; i < fileCount; i++) {
+				sha1[i] = hex(r, 20);
+				md5[i] = hex(r, 16);
+				name[i] = "run/d" + (i / 1000) + "/d" + (i / 32 % 32) + "/f"
+						+ i + ".raw";
+				size[i] = r.nextInt(1 << 24);
+			}
+			user.url = new URL("https://seek.example.com/people/1");
+			assay.url = new URL("https://seek.example.com/assays/1");
+		}
+
+		private static String hex(Random r, int bytes) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < bytes; i++) {
+				int b = r.nextInt(256);
+				sb.append(Digest.HEX[b >> 4]).append(Digest.HEX[b & 0xf]);
+			}
+			return sb.toString();
+		}
+	}
+
+	/** A recorder that has seen every file but has not been finalised. */
+	@State(Scope.Thread)
+	public static class Recorder {
+		MetadataRecorder md;
+
+		@Setup(Level.Invocation)
+		public void populate(Records r) {
+			md = new MetadataRecorder(r.tika, null, "benchmark");
+			md.setUser(r.user);
+			md.setExperiment(r.assay);
+			md.setOpenBISExperiment("EXP-1", null);
+			for (int i = 0; i < r.fileCount; i++)
+				md.addFile(r.sha1[i], r.md5[i], r.name[i],
+						"application/octet-stream", new File(
+								"/Instruments/SYNAPT/" + r.name[i]), new File(
+								"/data/working/MS-other/SYNAPT/" + r.name[i]),
+						r.size[i], "smb://fileserver/data/working/"
+								+ r.name[i], URI.create("https://dss/"
+								+ r.name[i]));
+		}
+
+		@TearDown(Level.Invocation)
+		public void discard() {
+			md.close();
+		}
+	}
+
+	@Benchmark
+	public String id(Recorder r) {
+		return r.md.getId();
+	}
+
+	@Benchmark
+	public String idV2(Recorder r) {
+		return r.md.getIdV2();
+	}
+
+	@Benchmark
+	public String json(Recorder r) {
+		return r.md.get();
+	}
+
+	@Benchmark
+	public void jsonStream(Recorder r) throws IOException {
+		r.md.writeManifest(new NullWriter());
+	}
+
+	@Benchmark
+	public String tsv(Recorder r) {
+		return r.md.getCSV();
+	}
+
+	@Benchmark
+	public void tsvStream(Recorder r) throws IOException {
+		r.md.writeCSV(new NullWriter());
+	}
+}
@@ -0,0 +1,166 @@
+package manchester.synbiochem.datacapture;
+
+import static java.lang.Math.exp;
+import static java.lang.Math.log;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Generator of directory trees full of synthetic files, so that the copy and
+ * characterisation stages can be measured without real instrument data. The
+ * trees are deterministic for a given seed.
+ *
+ * @author Donal Fellows
+ */
+class SyntheticTree {
+	/** How the sizes of the generated files are spread about the mean. */
+	enum SizeDistribution {
+		/** Every file is exactly the mean size. */
+		FIXED {
+			@Override
+			long size(Random r, long mean) {
+				return mean;
+			}
+		},
+		/** Sizes spread evenly between zero and twice the mean. */
+		UNIFORM {
+			@Override
+			long size(Random r, long mean) {
+				return (long) (r.nextDouble() * 2 * mean);
+			}
+		},
+		/**
+		 * Heavy-tailed sizes: many small files and a few very large ones, which
+		 * is what instrument runs tend to look like.
+		 */
+		LOGNORMAL {
+			private static final double SIGMA = 1.5;
+
+			@Override
+			long size(Random r, long mean) {
+				double mu = log(max(mean, 1)) - SIGMA * SIGMA / 2;
+				return min((long) exp(mu + SIGMA * r.nextGaussian()),
+						MAX_FILE_SIZE);
+			}
+		};
+
+		abstract long size(Random r, long mean);
+	}
+
+	/** Upper bound on any one file, so that a tail sample can't fill a disk. */
+	static final long MAX_FILE_SIZE = 1L << 30;
+	/** How many files to put in each directory. */
+	static final int FILES_PER_DIR = 32;
+	/** How many subdirectories to put in each directory. */
+	static final int DIRS_PER_DIR = 8;
+	private static final String[] EXTENSIONS = { ".raw", ".dat", ".txt",
+			".csv", ".xml", ".inf", ".bin", ".log" };
+	private static final int BLOCK = 65536;
+
+	private final Random random;
+	private final byte[] block = new byte[BLOCK];
+	private long totalBytes;
+	private int fileCount;
+
+	/**
+	 * @param seed
+	 *            The seed for the random generation of sizes and contents.
+	 */
+	SyntheticTree(long seed) {
+		random = new Random(seed);
+		random.nextBytes(block);
+	}
+
+	/** @return The total size of all files generated so far. */
+	long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/** @return The number of files generated so far. */
+	int getFileCount() {
+		return fileCount;
+	}
+
+	/**
+	 * Fill a directory with synthetic files.
+	 *
+	 * @param root
+	 *            The directory to fill. Will be created if necessary.
+	 * @param count
+	 *            How many files to create.
+	 * @param distribution
+	 *            How the file sizes should be distributed.
+	 * @param meanSize
+	 *            The mean file size, in bytes.
+	 * @return The root directory.
+	 * @throws IOException
+	 *             If file creation fails.
+	 */
+	File create(File root, int count, SizeDistribution distribution,
+			long meanSize) throws IOException {
+		root.mkdirs();
+		fill(root, count, distribution, meanSize);
+		return root;
+	}
+
+	private void fill(File dir, int count, SizeDistribution distribution,
+			long meanSize) throws IOException {
+		int here = min(count, FILES_PER_DIR);
+		for (int i = 0; i < here; i++) {
+			String ext = EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+			write(new File(dir, "f" + i + ext),
+					distribution.size(random, meanSize));
+		}
+		int remaining = count - here;
+		for (int d = 0; remaining > 0; d++) {
+			int share = (remaining + DIRS_PER_DIR - 1) / DIRS_PER_DIR;
+			if (d == DIRS_PER_DIR - 1)
+				share = remaining;
+			File sub = new File(dir, "d" + d);
+			sub.mkdir();
+			fill(sub, share, distribution, meanSize);
+			remaining -= share;
+		}
+	}
+
+	/**
+	 * Pick a file size.
+	 *
+	 * @param distribution
+	 *            How sizes are distributed.
+	 * @param meanSize
+	 *            The mean size, in bytes.
+	 * @return The size, in bytes.
+	 */
+	long size(SizeDistribution distribution, long meanSize) {
+		return distribution.size(random, meanSize);
+	}
+
+	/** @return The random number source that drives this tree. */
+	Random random() {
+		return random;
+	}
+
+	/**
+	 * Write a file of the given size. The content is a shared random block,
+	 * stamped with a per-file serial number so that no two files hash alike.
+	 */
+	void write(File file, long size) throws IOException {
+		int serial = ++fileCount;
+		block[0] = (byte) serial;
+		block[1] = (byte) (serial >> 8);
+		block[2] = (byte) (serial >> 16);
+		block[3] = (byte) (serial >> 24);
+		try (OutputStream os = new FileOutputStream(file)) {
+			for (long left = size; left > 0; left -= BLOCK)
+				os.write(block, 0, (int) min(left, BLOCK));
+		}
+		totalBytes += size;
+	}
+}
@@ -0,0 +1,61 @@
+package manchester.synbiochem.datacapture;
+
+import static java.nio.file.Files.createTempDirectory;
+import static org.apache.commons.io.FileUtils.deleteDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import manchester.synbiochem.datacapture.ArchiverTask.Entry;
+import manchester.synbiochem.datacapture.SyntheticTree.SizeDistribution;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmark state holding a synthetic source tree. The shape of the tree is
+ * controlled by JMH parameters, so it can be varied from the command line with
+ * (for example) <tt>-p fileCount=10000 -p distribution=LOGNORMAL</tt>.
+ *
+ * @author Donal Fellows
+ */
+@State(Scope.Benchmark)
+public class TreeState {
+	@Param("1000")
+	public int fileCount;
+	@Param({ "FIXED", "LOGNORMAL" })
+	public String distribution;
+	@Param("65536")
+	public long meanSize;
+
+	/** Scratch space; the source tree is in a subdirectory. */
+	File workDir;
+	/** The root of the source tree. */
+	File source;
+	/** The total number of bytes in the source tree. */
+	long totalBytes;
+	/** The files in the source tree, as the archiver sees them. */
+	List<Entry> entries;
+
+	@Setup(Level.Trial)
+	public void makeTree() throws IOException {
+		workDir = createTempDirectory("bench").toFile();
+		SyntheticTree tree = new SyntheticTree(fileCount);
+		source = tree.create(new File(workDir, "run"), fileCount,
+				SizeDistribution.valueOf(distribution), meanSize);
+		totalBytes = tree.getTotalBytes();
+		ArchiverTask lister = new ArchiverTask(source);
+		lister.listFiles(source);
+		entries = lister.getEntries();
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteTree() throws IOException {
+		deleteDirectory(workDir);
+	}
+}
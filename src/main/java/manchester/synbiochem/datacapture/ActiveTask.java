@@ -1,10 +1,5 @@
 package manchester.synbiochem.datacapture;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.net.URL;
 import java.util.Collection;
 import java.util.Date;
@@ -32,19 +27,13 @@ class ActiveTask implements TaskStore.Task {
 
 	private final MetadataRecorder md;
 	private final ArchiverTask task;
-	private Future<URL> result;
+	private volatile Future<URL> result;
 	private final String key;
 	private final List<String> dirs;
-	private URL createdAsset;
-
-	public FinishedTask toFinished(File root) throws IOException {
-		File filename = new File(root, getKey());
-		FinishedTask ft = new FinishedTask(this, filename);
-		try (OutputStream fos = new FileOutputStream(filename);
-				ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-			oos.writeObject(ft);
-		}
-		return ft;
+	private volatile URL createdAsset;
+
+	public FinishedTask toFinished() {
+		return new FinishedTask(this);
 	}
 
 	public String getKey() {
@@ -68,14 +57,16 @@ class ActiveTask implements TaskStore.Task {
 
 	@Override
 	public String getStatus() {
-		if (result.isDone())
+		Future<URL> r = result;
+		if (r == null || r.isDone())
 			return null;
 		return task.getState();
 	}
 
 	@Override
 	public Double getProgress() {
-		if (result.isDone())
+		Future<URL> r = result;
+		if (r == null || r.isDone())
 			return 1.0;
 		return task.getProgress();
 	}
@@ -104,7 +95,9 @@ class ActiveTask implements TaskStore.Task {
 		if (r == null)
 			return null;
 		if (r.isDone()) {
-			createdAsset = r.get();
+			// A cancelled task made nothing
+			if (!r.isCancelled())
+				createdAsset = r.get();
 			result = null;
 		}
 		return r;
@@ -0,0 +1,195 @@
+package manchester.synbiochem.datacapture;
+
+import static javax.ws.rs.core.HttpHeaders.RETRY_AFTER;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.core.Response;
+
+import manchester.synbiochem.datacapture.FairScheduler.Estimate;
+import manchester.synbiochem.datacapture.Metrics.Counter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Decides whether the service can take on another task. Each task let in is
+ * counted, with an estimate of how many bytes it has to copy, until it starts
+ * (for the limits on how much work may wait) and until it finishes (for
+ * checking that the archive has room for it). Counting stops after so many
+ * files, as it happens while the client waits; a task with more than that is
+ * taken to be too large to fit with anything else. A task that would go past a
+ * limit is refused with a 503 and a <tt>Retry-After</tt>, so that clients back
+ * off rather than the service running out of heap or disk.
+ *
+ * @author Donal Fellows
+ */
+class AdmissionControl {
+	private static final Log log = LogFactory.getLog(AdmissionControl.class);
+	private static final Counter refusedQueue = refusals("queue");
+	private static final Counter refusedDisk = refusals("disk");
+
+	private final int maxQueued;
+	private final long maxQueuedBytes;
+	private final File archiveRoot;
+	private final long archiveReserve;
+	private final File metadataRoot;
+	private final long metadataReserve;
+	private final long retryAfter;
+	private final long scanFiles;
+	/** Estimated sizes of the tasks let in that haven't started. */
+	private final Map<String, Long> queued = new HashMap<>();
+	/** Estimated sizes of the tasks let in that haven't finished. */
+	private final Map<String, Long> outstanding = new HashMap<>();
+	private long queuedBytes;
+	private long outstandingBytes;
+
+	private static Counter refusals(String reason) {
+		return Metrics.counter("tasks_refused_total",
+				"Task submissions refused as the service was too busy.",
+				"reason=\"" + reason + "\"");
+	}
+
+	/**
+	 * @param maxQueued
+	 *            The most tasks that may wait to start.
+	 * @param maxQueuedBytes
+	 *            The most bytes that the waiting tasks may have to copy.
+	 * @param archiveRoot
+	 *            Where tasks copy their files to.
+	 * @param archiveReserve
+	 *            How many bytes to keep free there, beyond what the unfinished
+	 *            tasks will use.
+	 * @param metadataRoot
+	 *            Where tasks write their metadata.
+	 * @param metadataReserve
+	 *            How many bytes to keep free there.
+	 * @param retryAfter
+	 *            How many seconds to tell refused clients to wait.
+	 * @param scanFiles
+	 *            The most files to count in a task's directories.
+	 */
+	AdmissionControl(int maxQueued, long maxQueuedBytes, File archiveRoot,
+			long archiveReserve, File metadataRoot, long metadataReserve,
+			long retryAfter, long scanFiles) {
+		this.maxQueued = maxQueued;
+		this.maxQueuedBytes = maxQueuedBytes;
+		this.archiveRoot = archiveRoot;
+		this.archiveReserve = archiveReserve;
+		this.metadataRoot = metadataRoot;
+		this.metadataReserve = metadataReserve;
+		this.retryAfter = retryAfter;
+		this.scanFiles = scanFiles;
+	}
+
+	/**
+	 * Let a task in, or refuse it.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @param dirs
+	 *            The directories that the task will archive.
+	 * @return The count of what the task has to copy, so that it needn't be
+	 *         counted again to schedule it.
+	 * @throws ServiceUnavailableException
+	 *             If the task would take the service past one of its limits.
+	 */
+	Estimate admit(String key, List<File> dirs)
+			throws ServiceUnavailableException {
+		long room;
+		synchronized (this) {
+			if (queued.size() >= maxQueued)
+				throw refuse(refusedQueue, "too many tasks are waiting");
+			room = maxQueuedBytes - queuedBytes;
+		}
+		// Don't hold the lock while walking the directories
+		Estimate estimate = FairScheduler.estimate(dirs, Math.max(room, 0),
+				scanFiles);
+		long size = estimate.size(Math.max(room, 0), scanFiles);
+		synchronized (this) {
+			if (size > maxQueuedBytes - queuedBytes) {
+				if (!queued.isEmpty())
+					throw refuse(refusedQueue, "too much data is waiting");
+				// Would never fit, so let it in when nothing else waits
+				size = maxQueuedBytes;
+			}
+			if (free(archiveRoot) - outstandingBytes - size < archiveReserve)
+				throw refuse(refusedDisk, "not enough space to archive into");
+			if (free(metadataRoot) < metadataReserve)
+				throw refuse(refusedDisk, "not enough space for metadata");
+			queued.put(key, size);
+			queuedBytes += size;
+			outstanding.put(key, size);
+			outstandingBytes += size;
+		}
+		return estimate;
+	}
+
+	/**
+	 * Refuse a task if too many are waiting elsewhere, as in the shared queue
+	 * of a {@link Cluster}, where this can't keep count of them itself.
+	 *
+	 * @param waiting
+	 *            How many tasks are waiting.
+	 * @throws ServiceUnavailableException
+	 *             If there are too many.
+	 */
+	void backlog(int waiting) throws ServiceUnavailableException {
+		if (waiting >= maxQueued)
+			throw refuse(refusedQueue, "too many tasks are waiting");
+	}
+
+	/**
+	 * Note that a task has started, so no longer counts as waiting.
+	 *
+	 * @param key
+	 *            The task's key. Need not have been let in by this.
+	 */
+	synchronized void started(String key) {
+		Long size = queued.remove(key);
+		if (size != null)
+			queuedBytes -= size;
+	}
+
+	/**
+	 * Note that a task has finished, been deleted, or failed to be queued.
+	 *
+	 * @param key
+	 *            The task's key. Need not have been let in by this.
+	 */
+	synchronized void finished(String key) {
+		started(key);
+		Long size = outstanding.remove(key);
+		if (size != null)
+			outstandingBytes -= size;
+	}
+
+	/** @return How many tasks that were let in are waiting to start. */
+	synchronized int queued() {
+		return queued.size();
+	}
+
+	/**
+	 * @return The usable space on the file system holding the file, or on its
+	 *         nearest existing ancestor if it doesn't exist yet.
+	 */
+	private static long free(File f) {
+		for (File d = f.getAbsoluteFile(); d != null; d = d.getParentFile())
+			if (d.exists())
+				return d.getUsableSpace();
+		return Long.MAX_VALUE;
+	}
+
+	private ServiceUnavailableException refuse(Counter counter, String why) {
+		counter.inc();
+		log.warn("refusing task: " + why);
+		return new ServiceUnavailableException(Response
+				.status(SERVICE_UNAVAILABLE).header(RETRY_AFTER, retryAfter)
+				.entity(why).type("text/plain").build());
+	}
+}
@@ -0,0 +1,23 @@
+package manchester.synbiochem.datacapture;
+
+/**
+ * The message digest algorithms that {@link Digest} is used with. Their
+ * {@linkplain #toString() string forms} are their names in the JCA.
+ *
+ * @author Donal Fellows
+ */
+enum Algorithm {
+	SHA1 {
+		@Override
+		public String toString() {
+			return "SHA-1";
+		}
+	},
+	SHA256 {
+		@Override
+		public String toString() {
+			return "SHA-256";
+		}
+	},
+	MD5
+}
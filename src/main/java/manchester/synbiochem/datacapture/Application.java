@@ -1,20 +1,22 @@
 package manchester.synbiochem.datacapture;
 
-import static java.util.Collections.sort;
 import static javax.ws.rs.core.Response.created;
 import static javax.ws.rs.core.Response.ok;
 import static javax.ws.rs.core.Response.seeOther;
 import static javax.ws.rs.core.Response.status;
-import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
 import static javax.ws.rs.core.Response.Status.NOT_FOUND;
 import static manchester.synbiochem.datacapture.Constants.JSON;
 
 import java.io.File;
 import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
+import java.util.TimeZone;
 import java.util.concurrent.ExecutionException;
 
 import javax.annotation.security.RolesAllowed;
@@ -30,12 +32,14 @@ import manchester.synbiochem.datacapture.SeekConnector.Assay;
 import manchester.synbiochem.datacapture.SeekConnector.Project;
 import manchester.synbiochem.datacapture.SeekConnector.Study;
 import manchester.synbiochem.datacapture.SeekConnector.User;
+import manchester.synbiochem.datacapture.TaskStore.Submitted;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 
 /**
  * Class and bean that implements the application's user-facing interface.
@@ -53,6 +57,9 @@ public class Application implements Interface {
 	DirectoryLister lister;
 	@Autowired
 	InformationSource infoSource;
+	/** How many days back to list tasks from, when not told. */
+	@Value("${tasks.recent.days:30}")
+	int recentDays;
 	private Log log = LogFactory.getLog(getClass());
 
 	@Override
@@ -60,6 +67,11 @@ public class Application implements Interface {
 		return "OK";
 	}
 
+	@Override
+	public String metrics() {
+		return Metrics.render();
+	}
+
 	@Override
 	public Description describe(UriInfo ui) {
 		UriBuilder ub = ui.getAbsolutePathBuilder().path("{piece}");
@@ -178,19 +190,55 @@ public class Application implements Interface {
 		return Response.ok(out, JSON).build();
 	}
 
-	private static final Comparator<ArchiveTask> taskComparator = new Comparator<ArchiveTask>() {
-		@Override
-		public int compare(ArchiveTask o1, ArchiveTask o2) {
-			return o1.id.compareTo(o2.id);
+	/** A day, in milliseconds. */
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+	private static final int MAX_PAGE = 1000;
+
+	private static Date parseTime(String name, String value) {
+		if (value == null || value.isEmpty())
+			return null;
+		for (String pattern : new String[] { "yyyy-MM-dd'T'HH:mm:ss'Z'",
+				"yyyy-MM-dd" }) {
+			SimpleDateFormat format = new SimpleDateFormat(pattern);
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			format.setLenient(false);
+			try {
+				return format.parse(value);
+			} catch (ParseException e) {
+				continue;
+			}
 		}
-	};
+		throw new BadRequestException("bad " + name + " time: " + value);
+	}
 
 	@Override
-	public ArchiveTaskList tasks(UriInfo ui) {
+	public ArchiveTaskList tasks(String user, String state, String since,
+			String until, int offset, int limit, UriInfo ui) {
+		Boolean finished;
+		if (state == null || state.isEmpty() || state.equals("all"))
+			finished = null;
+		else if (state.equals("active"))
+			finished = false;
+		else if (state.equals("finished"))
+			finished = true;
+		else
+			throw new BadRequestException("bad state: " + state);
+		if (offset < 0 || limit < 1 || limit > MAX_PAGE)
+			throw new BadRequestException("bad page");
+		Date from = parseTime("since", since);
+		Date to = parseTime("until", until);
+		if (from == null && to == null)
+			from = new Date(System.currentTimeMillis() - recentDays * DAY);
+
+		List<String> ids = tasks.list(user, finished, from, to);
 		UriBuilder ub = ui.getAbsolutePathBuilder().path("{id}");
 		ArchiveTaskList atl = new ArchiveTaskList();
 		atl.tasks = new ArrayList<>();
-		for (String id : tasks.list())
+		atl.total = ids.size();
+		// Not offset + limit, which may overflow
+		int first = Math.min(offset, ids.size());
+		int end = first + Math.min(limit, ids.size() - first);
+		for (String id : ids.subList(first, end))
 			try {
 				atl.tasks.add(tasks.describeTask(id, ub));
 			} catch (NotFoundException e) {
@@ -199,7 +247,9 @@ public class Application implements Interface {
 				 * they just don't exist for our purposes.
 				 */
 			}
-		sort(atl.tasks, taskComparator);
+		if (end < ids.size())
+			atl.next = ui.getRequestUriBuilder()
+					.replaceQueryParam("offset", end).build();
 		return atl;
 	}
 
@@ -236,31 +286,31 @@ public class Application implements Interface {
 		else
 			notes = notes.trim();
 
-		String id;
-		try {
-			id = createTask(proposedTask.submitter, proposedTask.project,
-					dirs.get(0), notes);
-		} catch (IOException e) {
-			return Response.status(BAD_REQUEST).entity(e.getMessage()).build();
-		}
+		Submitted s = createTask(proposedTask.submitter,
+				proposedTask.project, dirs, notes);
 
-		log.info("created task " + id + " to archive " + dirs.get(0));
 		UriBuilder ub = ui.getAbsolutePathBuilder().path("{id}");
-		return created(ub.build(id)).entity(tasks.describeTask(id, ub))
+		if (s.joined) {
+			// Nothing new was made; point at what was made before
+			log.info("joined task " + s.key + " to archive " + dirs);
+			return seeOther(ub.build(s.key)).build();
+		}
+		log.info("created task " + s.key + " to archive " + dirs);
+		return created(ub.build(s.key)).entity(tasks.describeTask(s.key, ub))
 				.type("application/json").build();
 	}
 
-	private String createTask(User user, Project project, String dir,
-			String notes) throws IOException {
+	private Submitted createTask(User user, Project project, List<String> dirs,
+			String notes) {
 		user = infoSource.getUser(user.url);
 		project = infoSource.getProject(project.url);
-		log.info("creating task for " + user.name + " to archive " + dir
+		log.info("creating task for " + user.name + " to archive " + dirs
 				+ " for project " + project.name);
-		return tasks.newTask(user, project, dir, notes);
+		return tasks.newTask(user, project, dirs, notes);
 	}
 
 	@SuppressWarnings("unused")
-	private String createTask(User user, Assay a0, List<String> dirs,
+	private Submitted createTask(User user, Assay a0, List<String> dirs,
 			Project project, String notes) {
 		project = infoSource.getProject(project.url);
 		Assay assay = seek.getAssay(a0.url);
@@ -270,7 +320,7 @@ public class Application implements Interface {
 	}
 
 	@SuppressWarnings("unused")
-	private String createTask(User user, Study s0, List<String> dirs,
+	private Submitted createTask(User user, Study s0, List<String> dirs,
 			Project project, String notes) {
 		project = infoSource.getProject(project.url);
 		Study study = seek.getStudy(s0.url);
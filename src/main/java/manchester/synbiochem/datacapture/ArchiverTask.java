@@ -2,8 +2,11 @@ package manchester.synbiochem.datacapture;
 
 import static java.lang.String.format;
 import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
 import static java.nio.file.Files.copy;
 import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
+import static java.util.Collections.singletonList;
+import static manchester.synbiochem.datacapture.Metrics.WORK_BUCKETS;
 
 import java.io.File;
 import java.io.IOException;
@@ -16,28 +19,41 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import manchester.synbiochem.datacapture.ExtractorPool.Extraction;
+import manchester.synbiochem.datacapture.Metrics.Counter;
+import manchester.synbiochem.datacapture.Metrics.Histogram;
 import manchester.synbiochem.datacapture.OpenBISIngester.IngestionResult;
 import manchester.synbiochem.datacapture.SeekConnector.Study;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
  * The overall sub-tasks of this task are:
  * <ol>
- * <li>List all the files to be archived.
+ * <li>List all the files to be archived, from all the task's directories.
  * <li>Copy the files from the instrument to the operational data store.
  * <li>Compute the metadata about each file.
  * <li>Construct the bagit. <i>(Not yet done.)</i>
  * <li>Instantiate the files on the NAS.
  * <li>Tell SEEK about the files.
  * </ol>
+ * All the directories of a task come from the same instrument, and share the
+ * task's worker pool, manifest and SEEK asset. Those are named after all the
+ * directories, so that they aren't taken for those of a task for just one.
  * 
  * @author Donal Fellows
  */
@@ -45,11 +61,27 @@ public class ArchiverTask implements Callable<URL> {
 	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
 	private static final Charset UTF8 = Charset.forName("UTF-8");
 	final Log log = LogFactory.getLog(ArchiverTask.class);
+	private static final Counter bytesCopied = Metrics.counter(
+			"copied_bytes_total",
+			"Bytes copied from instruments to the working store.");
+	private static final Counter filesCopied = Metrics.counter(
+			"copied_files_total",
+			"Files copied from instruments to the working store.");
+	private static final Histogram taskDuration = Metrics.histogram(
+			"task_duration_seconds", "Time taken to run an archiving task.",
+			WORK_BUCKETS);
 
 	private static int tasksCounter;
 	final int myID;
 	final MetadataRecorder metadata;
+	final List<File> directoriesToArchive;
+	/** The first of the {@link #directoriesToArchive}. */
 	final File directoryToArchive;
+	/**
+	 * What the manifest and any assay are named after: the names of the
+	 * {@link #directoriesToArchive}, joined with <tt>+</tt>.
+	 */
+	final String name;
 	final File archiveRoot;
 	final File metastoreRoot;
 	final URI cifsRoot;
@@ -58,10 +90,19 @@ public class ArchiverTask implements Callable<URL> {
 	final String machine;
 	final String project;
 	volatile int fileCount;
-	volatile int metaCount;
-	volatile int copyCount;
+	final AtomicInteger metaCount = new AtomicInteger();
+	final AtomicInteger copyCount = new AtomicInteger();
 	volatile boolean done;
 	private Future<?> javaTask;
+	private Executor characteriser;
+	private int characteriserThreads = 1;
+	private Executor copier;
+	private int copierThreads = 1;
+	private Semaphore remoteCalls;
+	private ExtractorPool extractors;
+	private String instrumentType;
+	/** The results of ingesting each directory, by the directory's name. */
+	private final Map<String, IngestionResult> ingestions = new HashMap<>();
 	final List<Entry> entries;
 	Long start;
 	Long finish;
@@ -69,7 +110,9 @@ public class ArchiverTask implements Callable<URL> {
 	DateFormat HUMAN_READABLE;
 
 	ArchiverTask(File dir) {
+		directoriesToArchive = singletonList(dir);
 		directoryToArchive = dir;
+		name = dir.getName();
 		entries = new ArrayList<>();
 		// Init stuff
 		myID = 0;
@@ -92,13 +135,19 @@ public class ArchiverTask implements Callable<URL> {
 	}
 
 	public ArchiverTask(MetadataRecorder metadata, File archiveRoot,
-			File metastoreRoot, URI cifsRoot, File directoryToArchive,
+			File metastoreRoot, URI cifsRoot, List<File> directoriesToArchive,
 			OpenBISIngester ingester, InformationSource infoSource) {
 		ISO8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
 		ISO8601.setTimeZone(UTC);
 		HUMAN_READABLE = new SimpleDateFormat("dd MMMM yyyy");
 		HUMAN_READABLE.setTimeZone(UTC);
 		this.metadata = metadata;
+		this.directoriesToArchive = new ArrayList<>(directoriesToArchive);
+		this.directoryToArchive = directoriesToArchive.get(0);
+		StringBuilder names = new StringBuilder();
+		for (File dir : directoriesToArchive)
+			names.append(names.length() > 0 ? "+" : "").append(dir.getName());
+		this.name = names.toString();
 
 		machine = infoSource.getMachineName(directoryToArchive);
 		project = infoSource.getProjectName(machine, metadata);
@@ -106,7 +155,6 @@ public class ArchiverTask implements Callable<URL> {
 		this.archiveRoot = new File(new File(archiveRoot, project), machine);
 		this.cifsRoot = cifsRoot.resolve(project + "/" + machine);
 		this.metastoreRoot = metastoreRoot;
-		this.directoryToArchive = directoryToArchive;
 		this.ingester = ingester;
 		this.entries = new ArrayList<>();
 		this.info = infoSource;
@@ -123,7 +171,8 @@ public class ArchiverTask implements Callable<URL> {
 	public Double getProgress() {
 		if (done)
 			return 1.0;
-		int files = fileCount, metas = metaCount, copies = copyCount;
+		int files = fileCount, metas = metaCount.get(), copies = copyCount
+				.get();
 		if (files == 0)
 			return null;
 		return (metas + copies) / (files * 2.0);
@@ -133,6 +182,7 @@ public class ArchiverTask implements Callable<URL> {
 	public URL call() {
 		log.info("task[" + myID + "] started archive");
 		start = currentTimeMillis();
+		long t0 = nanoTime();
 		try {
 			return workflow();
 		} catch (RuntimeException e) {
@@ -140,6 +190,9 @@ public class ArchiverTask implements Callable<URL> {
 			return null;
 		} finally {
 			finish = currentTimeMillis();
+			taskDuration.observeSince(t0);
+			if (metadata != null)
+				metadata.close();
 			log.info("task[" + myID + "] finished archive");
 		}
 	}
@@ -165,9 +218,11 @@ public class ArchiverTask implements Callable<URL> {
 	protected URL workflow() {
 		setState("listing");
 
-		listFiles(directoryToArchive);
-		if (isCancelled())
-			return null;
+		for (File dir : directoriesToArchive) {
+			listFiles(dir);
+			if (isCancelled())
+				return null;
+		}
 
 		setState("copying");
 
@@ -177,14 +232,22 @@ public class ArchiverTask implements Callable<URL> {
 
 		setState("ingesting");
 
+		// Through the dropbox, so not a remote call; may take a long time
 		IngestionResult ingestion = ingestIntoOpenBIS();
 		if (isCancelled())
 			return null;
 
 		setState("registering");
 
-		if (metadata.getExperiment() == null)
-			makeAssay(ingestion);
+		if (metadata.getExperiment() == null) {
+			if (!startRemote())
+				return null;
+			try {
+				makeAssay(ingestion);
+			} finally {
+				endRemote();
+			}
+		}
 
 		setState("meta-ing");
 
@@ -197,20 +260,45 @@ public class ArchiverTask implements Callable<URL> {
 
 		setState("finishing");
 
-		saveJsonManifest();
+		File manifest = saveJsonManifest();
+		if (manifest != null)
+			saveBinaryManifest(manifest);
 		return getCreatedAssetLocation(ingestion);
 	}
 
+	/**
+	 * Wait for a turn to call SEEK, if the task has been given a
+	 * {@linkplain #setRemoteCalls(Semaphore) limit} on those calls.
+	 *
+	 * @return Whether to go ahead; not if interrupted while waiting.
+	 */
+	final boolean startRemote() {
+		if (remoteCalls == null)
+			return true;
+		try {
+			remoteCalls.acquire();
+			return true;
+		} catch (InterruptedException e) {
+			log.warn("task[" + myID + "] interrupted while waiting to call out");
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	final void endRemote() {
+		if (remoteCalls != null)
+			remoteCalls.release();
+	}
+
 	private File saveJsonManifest() {
-		String name = directoryToArchive.getName() + ".json";
-		File jsonFile = new File(metastoreRoot, name);
+		File jsonFile = new File(metastoreRoot, name + ".json");
 		try {
 			int counter = 0;
 			while (jsonFile.exists())
 				// We don't really ever want to overwrite an existing file
-				jsonFile = new File(metastoreRoot, directoryToArchive.getName()
-						+ "." + (++counter) + ".json");
-			FileUtils.write(jsonFile, metadata.get(), UTF8);
+				jsonFile = new File(metastoreRoot, name + "."
+						+ (++counter) + ".json");
+			metadata.writeManifest(jsonFile);
 			return jsonFile;
 		} catch (IOException e) {
 			final String MSG = "task[%d] failed to write metadata descriptor to %s";
@@ -219,6 +307,22 @@ public class ArchiverTask implements Callable<URL> {
 		}
 	}
 
+	/**
+	 * Write the binary manifest next to the JSON one, with the same name
+	 * except for the extension.
+	 */
+	private void saveBinaryManifest(File jsonFile) {
+		File binFile = new File(jsonFile.getParentFile(), jsonFile.getName()
+				.replaceFirst("\\.json$", BinaryManifest.EXTENSION));
+		try {
+			metadata.writeBinaryManifest(binFile);
+		} catch (IOException e) {
+			final String MSG = "task[%d] failed to write binary manifest to %s";
+			log.warn(format(MSG, myID, binFile), e);
+			binFile.delete();
+		}
+	}
+
 	/**
 	 * Discovers where all the files are in a folder, and what their names are
 	 * mapped from (relative to the archRoot folder passed in).
@@ -247,23 +351,33 @@ public class ArchiverTask implements Callable<URL> {
 
 	/**
 	 * Copy all the files (identified by {@link #listFiles(File)}) to the task's
-	 * target directory structure.
+	 * target directory structure. If the task has been given a
+	 * {@linkplain #setCopier(Executor, int) copier} or a
+	 * {@linkplain #setCharacteriser(Executor, int) worker pool}, the files are
+	 * copied in parallel by it.
 	 */
 	protected void copyToWorkingDirectory() {
-		for (Entry ent : entries) {
-			File source = ent.getFile();
-			File dest = new File(archiveRoot, ent.getName());
-			try {
-				log.debug("task[" + myID + "] copying " + source);
-				ent.setDest(copyOneFile(source, dest));
-			} catch (IOException e) {
-				log.warn("task[" + myID + "] failed to copy " + source + " to "
-						+ dest, e);
-			} finally {
-				copyCount++;
+		Executor executor = copier != null ? copier : characteriser;
+		int threads = copier != null ? copierThreads : characteriserThreads;
+		forEachEntry(executor, threads, new EntryAction() {
+			@Override
+			public void apply(Entry ent) {
+				copyEntry(ent);
 			}
-			if (javaTask != null && javaTask.isCancelled())
-				break;
+		});
+	}
+
+	private void copyEntry(Entry ent) {
+		File source = ent.getFile();
+		File dest = new File(archiveRoot, ent.getName());
+		try {
+			log.debug("task[" + myID + "] copying " + source);
+			ent.setDest(copyOneFile(source, dest));
+		} catch (IOException e) {
+			log.warn("task[" + myID + "] failed to copy " + source + " to "
+					+ dest, e);
+		} finally {
+			copyCount.incrementAndGet();
 		}
 	}
 
@@ -273,20 +387,41 @@ public class ArchiverTask implements Callable<URL> {
 			dir.mkdirs();
 		try {
 			copy(source.toPath(), dest.toPath(), COPY_ATTRIBUTES);
+			bytesCopied.add(dest.length());
+			filesCopied.inc();
 		} catch (FileAlreadyExistsException e) {
 			// ignore; assume it is the same thing
 		}
 		return dest;
 	}
 
+	/**
+	 * Ingest each of the copied directories into OpenBIS.
+	 *
+	 * @return The result for the first directory that was ingested, or
+	 *         <tt>null</tt> if none were.
+	 */
 	protected IngestionResult ingestIntoOpenBIS() {
-		try {
-			File base = new File(archiveRoot, directoryToArchive.getName());
-			return ingester.ingest(base, machine, project);
-		} catch (IOException | InterruptedException e) {
-			log.error("problem during openbis-ingestion phase", e);
+		IngestionResult first = null;
+		for (File dir : directoriesToArchive) {
+			try {
+				File base = new File(archiveRoot, dir.getName());
+				IngestionResult result = ingester.ingest(base, machine, project);
+				if (result == null)
+					continue;
+				ingestions.put(dir.getName(), result);
+				if (first == null)
+					first = result;
+			} catch (IOException e) {
+				log.error("problem during openbis-ingestion phase", e);
+			} catch (InterruptedException e) {
+				log.error("problem during openbis-ingestion phase", e);
+				break;
+			}
+			if (isCancelled())
+				break;
 		}
-		return null;
+		return first;
 	}
 
 	protected void makeAssay(IngestionResult ingestion) {
@@ -321,43 +456,130 @@ public class ArchiverTask implements Callable<URL> {
 	 * Get the metadata out of a single file.
 	 * 
 	 * @param ingestion
-	 *            The info out of the OpenBIS ingestion process.
+	 *            The info out of the OpenBIS ingestion process for the
+	 *            directory that the file came from.
 	 */
 	private void extractMetadatum(Entry ent, IngestionResult ingestion)
 			throws IOException, URISyntaxException {
 		String cifs = resolveToURI(cifsRoot, ent.getName()).toString();
-		metadata.addFile(
+		Extraction extraction = null;
+		if (extractors != null && ent.getDestination() != null)
+			extraction = extractors.start(instrumentType, ent.getDestination());
+		ent.setType(metadata.addFile(
 				ent.getName(),
 				ent.getFile(),
 				ent.getDestination(),
 				cifs,
 				ingestion != null ? resolveToURI(ingestion.dataRoot,
-						ent.getName()) : null);
+						ent.getName()) : null, extraction));
 	}
 
 	/**
 	 * Get the metadata out of the files (identified by {@link #listFiles(File)}
-	 * ).
+	 * ). If the task has been given a {@linkplain #setCharacteriser(Executor,
+	 * int) characteriser}, the files are characterised in parallel by it.
 	 * 
 	 * @param ingestion
-	 *            The info out of the OpenBIS ingestion process.
+	 *            The info out of the OpenBIS ingestion of the first directory.
 	 */
 	protected void extractMetadata(IngestionResult ingestion) {
 		if (ingestion != null)
 			metadata.setOpenBISExperiment(ingestion.experimentID,
 					ingestion.experimentURL);
-		for (Entry ent : entries) {
-			try {
-				log.debug("task[" + myID + "] characterising " + ent.getFile());
-				extractMetadatum(ent, ingestion);
-			} catch (IOException | URISyntaxException e) {
-				log.warn("task[" + myID + "] failed to generate metadata for "
-						+ ent.getDestination(), e);
-			} finally {
-				metaCount++;
+		if (info != null && machine != null)
+			instrumentType = info.getInstrumentType(machine);
+		forEachEntry(characteriser, characteriserThreads, new EntryAction() {
+			@Override
+			public void apply(Entry ent) {
+				characterise(ent, ingestions.get(ent.getName().replaceFirst(
+						"/.*", "")));
 			}
-			if (javaTask != null && javaTask.isCancelled())
-				break;
+		});
+	}
+
+	/** Something done to each file of a task. */
+	private interface EntryAction {
+		void apply(Entry ent);
+	}
+
+	/**
+	 * Do something to each file of the task, stopping early if the task is
+	 * cancelled.
+	 *
+	 * @param executor
+	 *            What to work on the files in parallel with, or <tt>null</tt>
+	 *            to do it in the task's own thread.
+	 * @param threads
+	 *            How many files the executor can work on at once.
+	 * @param action
+	 *            What to do to each file.
+	 */
+	private void forEachEntry(Executor executor, int threads,
+			final EntryAction action) {
+		if (executor == null) {
+			for (Entry ent : entries) {
+				action.apply(ent);
+				if (isCancelled())
+					break;
+			}
+			return;
+		}
+
+		/*
+		 * Keep a couple of files per thread in flight, so that the pool is
+		 * kept busy without queueing up the whole directory in it.
+		 */
+		CompletionService<Void> cs = new ExecutorCompletionService<>(executor);
+		int inFlight = 0, window = threads * 2;
+		try {
+			for (final Entry ent : entries) {
+				if (isCancelled())
+					break;
+				if (inFlight >= window) {
+					waitFor(cs.take());
+					inFlight--;
+				}
+				cs.submit(new Runnable() {
+					@Override
+					public void run() {
+						action.apply(ent);
+					}
+				}, null);
+				inFlight++;
+			}
+			for (; inFlight > 0; inFlight--)
+				waitFor(cs.take());
+		} catch (InterruptedException e) {
+			log.warn("task[" + myID + "] interrupted while working on files");
+			// Let the files in flight finish; the recorder is closed after
+			for (; inFlight > 0; inFlight--)
+				try {
+					cs.take();
+				} catch (InterruptedException e2) {
+					inFlight++;
+				}
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void characterise(Entry ent, IngestionResult ingestion) {
+		try {
+			log.debug("task[" + myID + "] characterising " + ent.getFile());
+			extractMetadatum(ent, ingestion);
+		} catch (IOException | URISyntaxException e) {
+			log.warn("task[" + myID + "] failed to generate metadata for "
+					+ ent.getDestination(), e);
+		} finally {
+			metaCount.incrementAndGet();
+		}
+	}
+
+	private void waitFor(Future<?> f) throws InterruptedException {
+		try {
+			f.get();
+		} catch (ExecutionException e) {
+			log.warn("task[" + myID + "] unexpected problem with a file",
+					e.getCause());
 		}
 	}
 
@@ -373,6 +595,8 @@ public class ArchiverTask implements Callable<URL> {
 	/**
 	 * Get the location of the asset that has been created to correspond to this
 	 * upload. This URL is <i>only</i> ever used to report to the user.
+	 * Anything that calls SEEK must {@linkplain #startRemote() wait for a
+	 * turn} around the calls, and only around them.
 	 * 
 	 * @param result
 	 *            The information from OpenBIS.
@@ -398,6 +622,7 @@ public class ArchiverTask implements Callable<URL> {
 		private final String name;
 		private final File file;
 		private File dest;
+		private String type;
 
 		public String getName() {
 			return name;
@@ -415,6 +640,15 @@ public class ArchiverTask implements Callable<URL> {
 			this.dest = dest;
 		}
 
+		/** @return The MIME type, once the file has been characterised. */
+		public String getType() {
+			return type;
+		}
+
+		void setType(String type) {
+			this.type = type;
+		}
+
 		@Override
 		public boolean equals(Object o) {
 			if (o == null || !(o instanceof Entry))
@@ -432,6 +666,58 @@ public class ArchiverTask implements Callable<URL> {
 	public void setJavaTask(Future<?> result) {
 		javaTask = result;
 	}
+
+	/**
+	 * Set what extracts instrument-specific metadata from the files.
+	 *
+	 * @param extractors
+	 *            The extractors, or <tt>null</tt> for none.
+	 */
+	public void setExtractors(ExtractorPool extractors) {
+		this.extractors = extractors;
+	}
+
+	/**
+	 * Set where the files are copied and characterised.
+	 *
+	 * @param characteriser
+	 *            The executor to work on the files with, or <tt>null</tt> to
+	 *            do it in the task's own thread.
+	 * @param threads
+	 *            How many threads the executor has.
+	 */
+	public void setCharacteriser(Executor characteriser, int threads) {
+		this.characteriser = characteriser;
+		this.characteriserThreads = Math.max(threads, 1);
+	}
+
+	/**
+	 * Set where the files are copied, if not where they are characterised.
+	 *
+	 * @param copier
+	 *            The executor to copy the files with, or <tt>null</tt> to use
+	 *            the {@linkplain #setCharacteriser(Executor, int)
+	 *            characteriser}.
+	 * @param threads
+	 *            How many files the executor can copy at once.
+	 */
+	public void setCopier(Executor copier, int threads) {
+		this.copier = copier;
+		this.copierThreads = Math.max(threads, 1);
+	}
+
+	/**
+	 * Limit how many tasks make their calls to SEEK (to make an assay, and to
+	 * register what was archived) at once. Ingesting into OpenBIS goes
+	 * through its dropbox, and isn't limited by this.
+	 *
+	 * @param remoteCalls
+	 *            The permits to call them, shared by the tasks, or
+	 *            <tt>null</tt> for no limit.
+	 */
+	public void setRemoteCalls(Semaphore remoteCalls) {
+		this.remoteCalls = remoteCalls;
+	}
 }
 
 class SeekAwareArchiverTask extends ArchiverTask {
@@ -445,10 +731,10 @@ class SeekAwareArchiverTask extends ArchiverTask {
 
 	public SeekAwareArchiverTask(MetadataRecorder metadata,
 			File archiveRoot, File metastoreRoot, URI cifsRoot,
-			File directoryToArchive, SeekConnector seek,
+			List<File> directoriesToArchive, SeekConnector seek,
 			OpenBISIngester ingester, InformationSource infoSource) {
 		super(metadata, archiveRoot, metastoreRoot, cifsRoot,
-				directoryToArchive, ingester, infoSource);
+				directoriesToArchive, ingester, infoSource);
 		this.seek = seek;
 	}
 
@@ -478,6 +764,9 @@ class SeekAwareArchiverTask extends ArchiverTask {
 	/** Create an asset in SEEK corresponding to this upload. */
 	@Override
 	protected URL getCreatedAssetLocation(IngestionResult ingestion) {
+		boolean linking = USE_SEEK_LINKS && ingestion != null;
+		if (linking && !startRemote())
+			return null;
 		try {
 			for (Entry ent : entries) {
 				if (USE_SEEK_LINKS && ingestion != null)
@@ -489,16 +778,35 @@ class SeekAwareArchiverTask extends ArchiverTask {
 		} catch (RuntimeException e) {
 			log.warn("failed to notify SEEK about file; skipping remaining links");
 		} finally {
-			linkCount = metaCount;
+			if (linking)
+				endRemote();
+			linkCount = metaCount.get();
 		}
 
-		// Finalize the metadata NOW
-		metadata.get();
+		// Finalize the metadata NOW, before waiting for a turn to upload it
+		metadata.getId();
 		String description = describeManifest(ingestion);
-		return seek.uploadFileAsset(metadata.getUser(),
-				metadata.getExperiment(), "metadata.tsv", description,
-				"Experimental Results Manifest", CSV_CONTENT_TYPE,
-				metadata.getCSV());
+		File manifest = null;
+		try {
+			manifest = File.createTempFile("metadata", ".tsv");
+			metadata.writeCSV(manifest);
+			if (!startRemote())
+				return null;
+			try {
+				return seek.uploadFileAsset(metadata.getUser(),
+						metadata.getExperiment(), "metadata.tsv",
+						description, "Experimental Results Manifest",
+						CSV_CONTENT_TYPE, manifest);
+			} finally {
+				endRemote();
+			}
+		} catch (IOException e) {
+			log.warn("task[" + myID + "] failed to write TSV manifest", e);
+			return null;
+		} finally {
+			if (manifest != null)
+				manifest.delete();
+		}
 	}
 
 	private void putLinkToFileInSeek(Entry ent, IngestionResult ingestion)
@@ -515,7 +823,7 @@ class SeekAwareArchiverTask extends ArchiverTask {
 		Date ts = new Date(start);
 		return "File copied from <i>" + ent.getFile()
 				+ "</i> of (presumed) type <i>"
-				+ metadata.getFileType(ent.getFile())
+				+ ent.getType()
 				+ "</i> and generated by <i>"
 				+ info.getMachineName(directoryToArchive)
 				+ "</i>; this upload was done at <abbr title=\""
@@ -529,7 +837,8 @@ class SeekAwareArchiverTask extends ArchiverTask {
 	public Double getProgress() {
 		if (done)
 			return 1.0;
-		int files = fileCount, metas = metaCount, copies = copyCount, links = linkCount;
+		int files = fileCount, metas = metaCount.get(), copies = copyCount
+				.get(), links = linkCount;
 		if (files == 0)
 			return null;
 		return (metas + copies + links) / (files * 3.0);
@@ -541,10 +850,10 @@ class AssayCreatingArchiverTask extends SeekAwareArchiverTask {
 
 	public AssayCreatingArchiverTask(Study study, MetadataRecorder metadata,
 			File archiveRoot, File metastoreRoot, URI cifsRoot,
-			File directoryToArchive, SeekConnector seek,
+			List<File> directoriesToArchive, SeekConnector seek,
 			OpenBISIngester ingester, InformationSource infoSource) {
 		super(metadata, archiveRoot, metastoreRoot, cifsRoot,
-				directoryToArchive, seek, ingester, infoSource);
+				directoriesToArchive, seek, ingester, infoSource);
 		this.study = study;
 	}
 
@@ -589,9 +898,7 @@ class AssayCreatingArchiverTask extends SeekAwareArchiverTask {
 
 	@Override
 	protected void makeAssay(IngestionResult ingestion) {
-		String directoryName = directoryToArchive.getAbsolutePath()
-				.replaceFirst("/+$", "").replaceFirst(".*/", "")
-				.replace("_", " ");
+		String directoryName = name.replace("_", " ");
 		String description = describeAssay(directoryName, ingestion);
 		String title = getAssayTitle(directoryName);
 
@@ -0,0 +1,486 @@
+package manchester.synbiochem.datacapture;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import manchester.synbiochem.datacapture.ExternalSort.Sink;
+
+import org.json.JSONObject;
+
+/**
+ * The compact binary form of a manifest, for tools that need to scan very
+ * many manifests ("where is this file?", "which runs contain this hash?")
+ * without parsing JSON. The file records are stored column by column:
+ * <ul>
+ * <li>The digests are fixed width (20 bytes for SHA-1, 16 for MD5).
+ * <li>The size and modification time are 8-byte integers.
+ * <li>The MIME type is an index into a string dictionary.
+ * <li>Each path or URL is an index into the dictionary for its directory part
+ * and an offset into a string heap for its leaf part (or <tt>-1</tt> for
+ * both, for absent URLs).
+ * <li>The instrument-specific metadata, if any, is an offset into the string
+ * heap of its JSON text (or <tt>-1</tt>).
+ * </ul>
+ * The records are in the same order as in the JSON manifest, by SHA-1, so
+ * lookup by hash is a binary search. The document-level fields of the JSON
+ * manifest are stored as a JSON object in their own section. A footer at the
+ * end of the file gives the offset and length of every section.
+ * <p>
+ * All numbers are big-endian. The layout is: a 16-byte header (magic, format
+ * version, record count), the fixed-width columns, the heap, the dictionary,
+ * the document section, the footer (section count, then the id, offset and
+ * length of each section), and finally the offset of the footer and the
+ * magic number again.
+ * <p>
+ * Tools read manifests with {@link #open(File)}, which gives a
+ * {@link Reader}. The manifests are written next to the JSON manifests in the
+ * metadata store, with the extension {@value #EXTENSION}.
+ *
+ * @author Donal Fellows
+ */
+public final class BinaryManifest {
+	/** The file extension used for binary manifests. */
+	public static final String EXTENSION = ".manifest";
+	static final int MAGIC = 0x5342434d; // "SBCM"
+	static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int TRAILER_SIZE = 12;
+	private static final int BUFFER_SIZE = 65536;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int NONE = -1;
+
+	/** The sections of the file, with their widths per record if fixed. */
+	enum Section {
+		SHA1(20), MD5(16), SIZE(8), TIME(8), MIME(4), NAME(8), SOURCE(8),
+		ARCHIVE(8), CIFS(8), OPENBIS(8), EXTRACTED(4), HEAP(0), DICTIONARY(0),
+		DOCUMENT(0);
+		final int width;
+
+		private Section(int width) {
+			this.width = width;
+		}
+	}
+
+	private BinaryManifest() {
+	}
+
+	/**
+	 * Open a binary manifest for reading. The reader should be closed when
+	 * done with.
+	 *
+	 * @param manifest
+	 *            The file to read.
+	 * @return The reader.
+	 * @throws IOException
+	 *             If the file can't be read or isn't a binary manifest.
+	 */
+	public static Reader open(File manifest) throws IOException {
+		return new Reader(manifest);
+	}
+
+	/** Buffered writing of a section at its own position in the file. */
+	private static class SectionWriter {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		final long start;
+		private long position;
+
+		SectionWriter(FileChannel channel, long start) {
+			this.channel = channel;
+			this.start = this.position = start;
+		}
+
+		private void need(int bytes) throws IOException {
+			if (buffer.remaining() < bytes)
+				flush();
+		}
+
+		void putInt(int value) throws IOException {
+			need(4);
+			buffer.putInt(value);
+		}
+
+		void putLong(long value) throws IOException {
+			need(8);
+			buffer.putLong(value);
+		}
+
+		void put(byte[] bytes) throws IOException {
+			need(bytes.length);
+			if (buffer.remaining() >= bytes.length) {
+				buffer.put(bytes);
+				return;
+			}
+			ByteBuffer b = ByteBuffer.wrap(bytes);
+			while (b.hasRemaining())
+				position += channel.write(b, position);
+		}
+
+		/** @return The offset, relative to the start, of the next byte. */
+		long offset() {
+			return position + buffer.position() - start;
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				position += channel.write(buffer, position);
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Write a binary manifest.
+	 *
+	 * @param file
+	 *            The file to write.
+	 * @param document
+	 *            The document-level fields of the manifest.
+	 * @param records
+	 *            The file records, which will be visited once.
+	 * @throws IOException
+	 *             If writing fails.
+	 */
+	static void write(File file, JSONObject document,
+			ExternalSort<FileRecord> records) throws IOException {
+		final long count = records.size();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				FileChannel ch = raf.getChannel()) {
+			raf.setLength(0);
+			final SectionWriter[] columns = new SectionWriter[Section.HEAP
+					.ordinal()];
+			long pos = HEADER_SIZE;
+			for (Section s : Section.values()) {
+				if (s.width == 0)
+					break;
+				columns[s.ordinal()] = new SectionWriter(ch, pos);
+				pos += s.width * count;
+			}
+			final SectionWriter heap = new SectionWriter(ch, pos);
+			final Map<String, Integer> dictionary = new HashMap<>();
+			final List<String> strings = new ArrayList<>();
+
+			records.forEach(new Sink<FileRecord>() {
+				/** Strings already put in the heap for this record. */
+				private final String[] leaves = new String[6];
+				private final int[] offsets = new int[6];
+				private int used;
+
+				private int string(String s) {
+					if (s == null)
+						return NONE;
+					Integer index = dictionary.get(s);
+					if (index == null) {
+						index = strings.size();
+						strings.add(s);
+						dictionary.put(s, index);
+					}
+					return index;
+				}
+
+				private int leaf(String s) throws IOException {
+					if (s == null)
+						return NONE;
+					for (int i = 0; i < used; i++)
+						if (leaves[i].equals(s))
+							return offsets[i];
+					long offset = heap.offset();
+					if (offset > Integer.MAX_VALUE)
+						throw new IOException("string heap too large");
+					byte[] bytes = s.getBytes(UTF8);
+					heap.putInt(bytes.length);
+					heap.put(bytes);
+					leaves[used] = s;
+					offsets[used++] = (int) offset;
+					return (int) offset;
+				}
+
+				private void path(Section s, String dir, String leaf)
+						throws IOException {
+					SectionWriter w = columns[s.ordinal()];
+					w.putInt(string(dir));
+					w.putInt(leaf(leaf));
+				}
+
+				@Override
+				public void accept(FileRecord f) throws IOException {
+					if (f.sha1.length != Section.SHA1.width
+							|| f.md5.length != Section.MD5.width)
+						throw new IOException("unexpected digest length");
+					used = 0;
+					columns[Section.SHA1.ordinal()].put(f.sha1);
+					columns[Section.MD5.ordinal()].put(f.md5);
+					columns[Section.SIZE.ordinal()].putLong(f.size);
+					columns[Section.TIME.ordinal()].putLong(f.time);
+					columns[Section.MIME.ordinal()].putInt(string(f.mimetype));
+					path(Section.NAME, f.nameDir, f.nameLeaf);
+					path(Section.SOURCE, f.srcDir, f.srcLeaf);
+					path(Section.ARCHIVE, f.dstDir, f.dstLeaf);
+					path(Section.CIFS, f.cifsDir, f.cifsLeaf);
+					path(Section.OPENBIS, f.openbisDir, f.openbisLeaf);
+					columns[Section.EXTRACTED.ordinal()]
+							.putInt(leaf(f.extracted));
+				}
+			});
+			for (SectionWriter w : columns)
+				w.flush();
+			heap.flush();
+
+			SectionWriter rest = new SectionWriter(ch, heap.start
+					+ heap.offset());
+			long[] offsets = new long[Section.values().length];
+			long[] lengths = new long[offsets.length];
+			for (Section s : Section.values())
+				if (s.width != 0) {
+					offsets[s.ordinal()] = columns[s.ordinal()].start;
+					lengths[s.ordinal()] = s.width * count;
+				}
+			offsets[Section.HEAP.ordinal()] = heap.start;
+			lengths[Section.HEAP.ordinal()] = heap.offset();
+
+			offsets[Section.DICTIONARY.ordinal()] = rest.start + rest.offset();
+			rest.putInt(strings.size());
+			for (String s : strings) {
+				byte[] bytes = s.getBytes(UTF8);
+				rest.putInt(bytes.length);
+				rest.put(bytes);
+			}
+			lengths[Section.DICTIONARY.ordinal()] = rest.start + rest.offset()
+					- offsets[Section.DICTIONARY.ordinal()];
+
+			offsets[Section.DOCUMENT.ordinal()] = rest.start + rest.offset();
+			rest.put(document.toString().getBytes(UTF8));
+			lengths[Section.DOCUMENT.ordinal()] = rest.start + rest.offset()
+					- offsets[Section.DOCUMENT.ordinal()];
+
+			long footer = rest.start + rest.offset();
+			rest.putInt(offsets.length);
+			for (Section s : Section.values()) {
+				rest.putInt(s.ordinal());
+				rest.putLong(offsets[s.ordinal()]);
+				rest.putLong(lengths[s.ordinal()]);
+			}
+			rest.putLong(footer);
+			rest.putInt(MAGIC);
+			rest.flush();
+
+			SectionWriter header = new SectionWriter(ch, 0);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putLong(count);
+			header.flush();
+		}
+	}
+
+	/**
+	 * Read access to a binary manifest. The file is mapped into memory, so
+	 * the records can be visited in any order at little more than the cost
+	 * of reading the columns that are actually used.
+	 *
+	 * @author Donal Fellows
+	 */
+	public static final class Reader implements Closeable {
+		private final RandomAccessFile file;
+		private final ByteBuffer map;
+		private final int count;
+		private final int[] offsets = new int[Section.values().length];
+		private final String[] dictionary;
+		private final JSONObject document;
+
+		/**
+		 * Open a binary manifest.
+		 *
+		 * @param manifest
+		 *            The file to read.
+		 * @throws IOException
+		 *             If the file can't be read or isn't a binary manifest.
+		 */
+		private Reader(File manifest) throws IOException {
+			file = new RandomAccessFile(manifest, "r");
+			try {
+				long length = file.length();
+				if (length > Integer.MAX_VALUE)
+					throw new IOException("manifest too large to map: "
+							+ manifest);
+				if (length < HEADER_SIZE + TRAILER_SIZE)
+					throw new IOException("not a binary manifest: " + manifest);
+				map = file.getChannel().map(READ_ONLY, 0, length);
+				if (map.getInt(0) != MAGIC
+						|| map.getInt((int) length - 4) != MAGIC)
+					throw new IOException("not a binary manifest: " + manifest);
+				if (map.getInt(4) != VERSION)
+					throw new IOException("unsupported manifest version "
+							+ map.getInt(4) + ": " + manifest);
+				count = (int) map.getLong(8);
+				int footer = (int) map.getLong((int) length - TRAILER_SIZE);
+				int sections = map.getInt(footer);
+				for (int i = 0; i < sections; i++) {
+					int at = footer + 4 + i * 20;
+					int id = map.getInt(at);
+					if (id < offsets.length)
+						offsets[id] = (int) map.getLong(at + 4);
+				}
+				int at = offsets[Section.DICTIONARY.ordinal()];
+				dictionary = new String[map.getInt(at)];
+				at += 4;
+				for (int i = 0; i < dictionary.length; i++) {
+					int len = map.getInt(at);
+					dictionary[i] = string(at + 4, len);
+					at += 4 + len;
+				}
+				int doc = offsets[Section.DOCUMENT.ordinal()];
+				document = new JSONObject(string(doc, footer - doc));
+			} catch (IOException | RuntimeException e) {
+				file.close();
+				throw e;
+			}
+		}
+
+		private String string(int offset, int length) {
+			byte[] bytes = new byte[length];
+			ByteBuffer b = map.duplicate();
+			b.position(offset);
+			b.get(bytes);
+			return new String(bytes, UTF8);
+		}
+
+		private int at(Section s, int index) {
+			if (index < 0 || index >= count)
+				throw new IndexOutOfBoundsException("no record " + index);
+			return offsets[s.ordinal()] + s.width * index;
+		}
+
+		private byte[] bytes(Section s, int index) {
+			byte[] bytes = new byte[s.width];
+			ByteBuffer b = map.duplicate();
+			b.position(at(s, index));
+			b.get(bytes);
+			return bytes;
+		}
+
+		private String path(Section s, int index) {
+			int at = at(s, index);
+			int dir = map.getInt(at), leaf = map.getInt(at + 4);
+			if (dir == NONE)
+				return null;
+			int heap = offsets[Section.HEAP.ordinal()] + leaf;
+			return dictionary[dir] + string(heap + 4, map.getInt(heap));
+		}
+
+		/** @return The number of file records. */
+		public int size() {
+			return count;
+		}
+
+		/** @return The document-level fields of the manifest. */
+		public JSONObject getDocument() {
+			return document;
+		}
+
+		/** @return The SHA-1 digest of the file's contents. */
+		public byte[] getSHA1(int index) {
+			return bytes(Section.SHA1, index);
+		}
+
+		/** @return The MD5 digest of the file's contents. */
+		public byte[] getMD5(int index) {
+			return bytes(Section.MD5, index);
+		}
+
+		/** @return The length of the file, in bytes. */
+		public long getSize(int index) {
+			return map.getLong(at(Section.SIZE, index));
+		}
+
+		/** @return The modification time, in ms since the epoch. */
+		public long getTime(int index) {
+			return map.getLong(at(Section.TIME, index));
+		}
+
+		/** @return The MIME type of the file, or <tt>null</tt>. */
+		public String getMimeType(int index) {
+			int i = map.getInt(at(Section.MIME, index));
+			return i == NONE ? null : dictionary[i];
+		}
+
+		/** @return The name of the file within the task. */
+		public String getName(int index) {
+			return path(Section.NAME, index);
+		}
+
+		/** @return Where the file was copied from. */
+		public String getOrigin(int index) {
+			return path(Section.SOURCE, index);
+		}
+
+		/** @return Where the file was copied to. */
+		public String getArchive(int index) {
+			return path(Section.ARCHIVE, index);
+		}
+
+		/** @return The CIFS URL of the copy, or <tt>null</tt>. */
+		public String getCifs(int index) {
+			return path(Section.CIFS, index);
+		}
+
+		/** @return The OpenBIS URL of the file, or <tt>null</tt>. */
+		public String getOpenBIS(int index) {
+			return path(Section.OPENBIS, index);
+		}
+
+		/** @return The instrument-specific metadata, or <tt>null</tt>. */
+		public JSONObject getExtracted(int index) {
+			int leaf = map.getInt(at(Section.EXTRACTED, index));
+			if (leaf == NONE)
+				return null;
+			int heap = offsets[Section.HEAP.ordinal()] + leaf;
+			return new JSONObject(string(heap + 4, map.getInt(heap)));
+		}
+
+		/**
+		 * Find a file by its content.
+		 *
+		 * @param sha1
+		 *            The SHA-1 digest to look for.
+		 * @return The index of the first record with that digest, or
+		 *         <tt>-1</tt> if there is none.
+		 */
+		public int find(byte[] sha1) {
+			int lo = 0, hi = count;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (compareSHA1(mid, sha1) < 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo < count && compareSHA1(lo, sha1) == 0 ? lo : NONE;
+		}
+
+		private int compareSHA1(int index, byte[] sha1) {
+			int at = at(Section.SHA1, index);
+			for (int i = 0; i < Section.SHA1.width; i++) {
+				int cmp = (map.get(at + i) & 0xff) - (sha1[i] & 0xff);
+				if (cmp != 0)
+					return cmp;
+			}
+			return 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+}
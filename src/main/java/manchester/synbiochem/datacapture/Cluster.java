@@ -0,0 +1,469 @@
+package manchester.synbiochem.datacapture;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.Arrays.asList;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import manchester.synbiochem.datacapture.TaskQueue.Pending;
+import manchester.synbiochem.datacapture.TaskQueue.Submission;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Lets several services that keep their saved tasks in one directory (on the
+ * NAS, say) share out the work of archiving. Submitted tasks wait in the
+ * shared {@link TaskQueue}; a service takes one on by <i>claiming</i> it,
+ * which moves its record into the leases directory under a name that says
+ * which service holds it. Renaming is atomic, so only one service can win. The
+ * holder touches its leases as a heartbeat; a lease that goes untouched for
+ * too long has expired, as its holder has presumably died, and another service
+ * may take it over (again by renaming) and run the task afresh.
+ * <p>
+ * Each service also publishes what its tasks are doing, so that any of them
+ * can report on all the tasks, and passes on requests to delete tasks that
+ * other services hold. Unfinished tasks claim the directories they archive,
+ * so that no two services archive the same directory at once.
+ *
+ * @author Donal Fellows
+ */
+class Cluster {
+	/** The names of the directories within the saved tasks directory. */
+	static final String LEASES = ".leases", NODES = ".nodes",
+			CANCELS = ".cancel", CLAIMS = ".claims";
+	private static final String SUFFIX = ".json";
+	/** Separates a task's key from its holder in the name of a lease. */
+	private static final char HOLDER = '@';
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Log log = LogFactory.getLog(Cluster.class);
+
+	private final TaskQueue queue;
+	private final File leases;
+	private final File nodes;
+	private final File cancels;
+	private final File claims;
+	private final String node;
+	private final long timeout;
+
+	/**
+	 * @param root
+	 *            The shared saved tasks directory.
+	 * @param queue
+	 *            The shared queue of tasks.
+	 * @param node
+	 *            The name of this service; must differ from the others'. If
+	 *            empty, one is made from the process ID and host name.
+	 * @param timeout
+	 *            How long, in ms, before a lease that hasn't been renewed
+	 *            expires.
+	 */
+	Cluster(File root, TaskQueue queue, String node, long timeout) {
+		this.queue = queue;
+		this.leases = new File(root, LEASES);
+		this.nodes = new File(root, NODES);
+		this.cancels = new File(root, CANCELS);
+		this.claims = new File(root, CLAIMS);
+		if (node == null || node.trim().isEmpty())
+			node = ManagementFactory.getRuntimeMXBean().getName();
+		this.node = node.trim().replaceAll("[^A-Za-z0-9_.-]+", "_");
+		this.timeout = timeout;
+		leases.mkdirs();
+		nodes.mkdirs();
+		cancels.mkdirs();
+		claims.mkdirs();
+	}
+
+	/** @return The name of this service. */
+	String node() {
+		return node;
+	}
+
+	private File lease(String key) {
+		return new File(leases, key + HOLDER + node + SUFFIX);
+	}
+
+	private static String keyOf(File lease) {
+		String name = lease.getName();
+		int at = name.lastIndexOf(HOLDER);
+		if (at < 1 || !name.endsWith(SUFFIX))
+			return null;
+		return name.substring(0, at);
+	}
+
+	private static String holderOf(File lease) {
+		String name = lease.getName();
+		return name.substring(name.lastIndexOf(HOLDER) + 1, name.length()
+				- SUFFIX.length());
+	}
+
+	private File[] list(File dir) {
+		File[] files = dir.listFiles();
+		return files == null ? new File[0] : files;
+	}
+
+	private Submission read(String key, File lease) {
+		try {
+			return TaskQueue.read(lease);
+		} catch (IOException | JSONException e) {
+			log.error("problem reading leased task " + key + "; dropping it",
+					e);
+			lease.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Claim a task from the queue.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @return What the task was submitted with, or <tt>null</tt> if another
+	 *         service claimed it first.
+	 */
+	Submission claim(String key) {
+		File lease = lease(key);
+		if (!queue.moveTo(key, lease))
+			return null;
+		// The move keeps the time of queueing; make it the time of claiming
+		lease.setLastModified(currentTimeMillis());
+		return read(key, lease);
+	}
+
+	/**
+	 * Take over the tasks whose leases have expired.
+	 *
+	 * @return The tasks, to run afresh.
+	 */
+	List<Pending> takeOver() {
+		List<Pending> taken = new ArrayList<>();
+		long expiry = currentTimeMillis() - timeout;
+		for (File f : list(leases)) {
+			String key = keyOf(f);
+			if (key == null || holderOf(f).equals(node)
+					|| f.lastModified() >= expiry)
+				continue;
+			File lease = lease(key);
+			if (!f.renameTo(lease))
+				// Another service got there first
+				continue;
+			lease.setLastModified(currentTimeMillis());
+			log.warn("taking over task " + key + " from " + holderOf(f));
+			Submission s = read(key, lease);
+			if (s != null)
+				taken.add(new Pending(key, s));
+		}
+		return taken;
+	}
+
+	/**
+	 * @return The tasks that this service held when it stopped, to pick up
+	 *         again.
+	 */
+	List<Pending> held() {
+		List<Pending> held = new ArrayList<>();
+		for (File f : list(leases)) {
+			String key = keyOf(f);
+			if (key == null || !holderOf(f).equals(node))
+				continue;
+			Submission s = read(key, f);
+			if (s != null)
+				held.add(new Pending(key, s));
+		}
+		return held;
+	}
+
+	/**
+	 * Renew the lease on a task.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @return Whether this service still holds the task; if not, another has
+	 *         taken it over.
+	 */
+	boolean renew(String key) {
+		return lease(key).setLastModified(currentTimeMillis());
+	}
+
+	/**
+	 * @param key
+	 *            The task's key.
+	 * @return Whether this service holds the task.
+	 */
+	boolean holds(String key) {
+		return lease(key).exists();
+	}
+
+	/**
+	 * @param key
+	 *            The task's key.
+	 * @return Whether the task is still queued or held by any service.
+	 */
+	boolean unfinished(String key) {
+		// Claiming moves a task from the queue to the leases; look in order
+		if (queue.keys().contains(key))
+			return true;
+		for (File f : list(leases))
+			if (key.equals(keyOf(f)))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param key
+	 *            The task's key.
+	 * @return What the task was submitted with, if it is still queued or held
+	 *         by any service; otherwise <tt>null</tt>.
+	 */
+	Submission submission(String key) {
+		Submission s = queue.get(key);
+		if (s != null)
+			return s;
+		for (File f : list(leases))
+			if (key.equals(keyOf(f)))
+				try {
+					return TaskQueue.read(f);
+				} catch (IOException | JSONException e) {
+					// Released or taken over while reading it
+					return null;
+				}
+		return null;
+	}
+
+	/** The claim on a directory, named by a digest of its canonical path. */
+	private File claimOn(String path) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			return new File(claims, Digest.hex(md.digest(path.getBytes(UTF8))));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 not supported", e);
+		}
+	}
+
+	/** @return Who holds a claim, or <tt>null</tt> if nobody does. */
+	private static String owner(File claim) throws IOException {
+		try {
+			return FileUtils.readFileToString(claim, UTF8);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Claim the directories that a task archives. Each claim is a file made
+	 * by linking to one holding the task's key, which is atomic and fails if
+	 * another service has the directory. A claim that has been there a long
+	 * time by a task that no service has any more is left from a service that
+	 * died, and is taken.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @param paths
+	 *            The canonical directories.
+	 * @return The key of an unfinished task that already has one of the
+	 *         directories, in which case the task has none of them, or
+	 *         <tt>null</tt> if the task now has all of them.
+	 */
+	String claimDirectories(String key, List<String> paths) {
+		File mine = new File(claims, "." + key);
+		List<String> made = new ArrayList<>();
+		try {
+			FileUtils.write(mine, key, UTF8);
+			for (String path : paths) {
+				File claim = claimOn(path);
+				while (true) {
+					try {
+						Files.createLink(claim.toPath(), mine.toPath());
+						made.add(path);
+						break;
+					} catch (FileAlreadyExistsException e) {
+						long age = claim.lastModified();
+						String owner = owner(claim);
+						if (owner == null)
+							// Given up while we looked
+							continue;
+						if (owner.equals(key))
+							break;
+						if (age < currentTimeMillis() - timeout
+								&& !unfinished(owner)) {
+							log.warn("dropping claim on " + path
+									+ " left by " + owner);
+							releaseDirectories(owner, asList(path));
+							continue;
+						}
+						releaseDirectories(key, made);
+						return owner;
+					}
+				}
+			}
+			return null;
+		} catch (IOException e) {
+			releaseDirectories(key, made);
+			throw new RuntimeException("unexpected IO failure", e);
+		} finally {
+			mine.delete();
+		}
+	}
+
+	/**
+	 * Give up the claims that a task has on directories.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @param paths
+	 *            The canonical directories.
+	 */
+	void releaseDirectories(String key, Collection<String> paths) {
+		for (String path : paths) {
+			File claim = claimOn(path);
+			try {
+				if (key.equals(owner(claim)) && !claim.delete())
+					log.warn("failed to release claim on " + path);
+			} catch (IOException e) {
+				log.warn("problem reading claim on " + path, e);
+			}
+		}
+	}
+
+	/**
+	 * Give up a task, as it has finished or can't be run.
+	 *
+	 * @param key
+	 *            The task's key.
+	 */
+	void release(String key) {
+		File lease = lease(key);
+		if (lease.exists() && !lease.delete())
+			log.warn("failed to release lease " + lease);
+	}
+
+	/**
+	 * Delete a task that this service doesn't hold: straight away if it is
+	 * still queued, or by asking the service that holds it.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @return Whether there was such a task.
+	 */
+	boolean cancel(String key) {
+		File dead = new File(cancels, "." + key + SUFFIX);
+		if (queue.moveTo(key, dead)) {
+			dead.delete();
+			return true;
+		}
+		for (File f : list(leases))
+			if (key.equals(keyOf(f))) {
+				try {
+					FileUtils.touch(new File(cancels, key));
+				} catch (IOException e) {
+					throw new RuntimeException("unexpected IO failure", e);
+				}
+				return true;
+			}
+		return false;
+	}
+
+	/**
+	 * @return The keys of the tasks that other services have asked to be
+	 *         deleted. Requests that no service has acted on for a long time
+	 *         are dropped.
+	 */
+	List<String> cancelRequests() {
+		List<String> keys = new ArrayList<>();
+		long expiry = currentTimeMillis() - 2 * timeout;
+		for (File f : list(cancels)) {
+			if (f.getName().startsWith("."))
+				continue;
+			if (f.lastModified() < expiry)
+				f.delete();
+			else
+				keys.add(f.getName());
+		}
+		return keys;
+	}
+
+	/**
+	 * Note that a request to delete a task has been acted on.
+	 *
+	 * @param key
+	 *            The task's key.
+	 */
+	void cancelled(String key) {
+		new File(cancels, key).delete();
+	}
+
+	/**
+	 * Tell the other services what this one's tasks are doing.
+	 *
+	 * @param tasks
+	 *            A record of each task, as made by
+	 *            {@link RemoteTask#record(ActiveTask, String)}.
+	 */
+	void publish(List<JSONObject> tasks) {
+		File tmp = new File(nodes, "." + node + SUFFIX);
+		try {
+			try (FileOutputStream out = new FileOutputStream(tmp)) {
+				out.write(new JSONArray(tasks).toString().getBytes(UTF8));
+			}
+			if (!tmp.renameTo(new File(nodes, node + SUFFIX)))
+				throw new IOException("failed to replace status of " + node);
+		} catch (IOException e) {
+			log.warn("problem publishing status of tasks", e);
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * @return What the other live services' tasks are doing, as they last
+	 *         published.
+	 */
+	List<RemoteTask> published() {
+		List<RemoteTask> tasks = new ArrayList<>();
+		long expiry = currentTimeMillis() - timeout;
+		for (File f : list(nodes)) {
+			String name = f.getName();
+			if (name.startsWith(".") || !name.endsWith(SUFFIX)
+					|| name.equals(node + SUFFIX) || f.lastModified() < expiry)
+				continue;
+			try {
+				JSONArray a = new JSONArray(FileUtils.readFileToString(f, UTF8));
+				for (int i = 0; i < a.length(); i++)
+					tasks.add(new RemoteTask(a.getJSONObject(i)));
+			} catch (IOException | JSONException e) {
+				log.warn("problem reading status of tasks from " + f, e);
+			}
+		}
+		return tasks;
+	}
+
+	/** @return The tasks that no service has claimed yet. */
+	List<RemoteTask> unclaimed() {
+		List<RemoteTask> tasks = new ArrayList<>();
+		for (String key : queue.keys()) {
+			Submission s = queue.get(key);
+			if (s != null)
+				try {
+					tasks.add(new RemoteTask(RemoteTask.record(key, s)));
+				} catch (IOException e) {
+					log.warn("problem describing queued task " + key, e);
+				}
+		}
+		return tasks;
+	}
+}
@@ -17,6 +17,7 @@ class Digest {
 	private static final Charset UTF8 = Charset.forName("UTF-8");
 	
 	private MessageDigest md;
+	private byte[] bytes;
 	private String hex;
 
 	/**
@@ -27,12 +28,11 @@ class Digest {
 	 */
 	public Digest(Algorithm algorithm) {
 		try {
-			md = MessageDigest.getInstance(algorithm.name());
+			md = MessageDigest.getInstance(algorithm.toString());
 		} catch (NoSuchAlgorithmException e) {
 			throw new IllegalArgumentException(
 					"unexpected failure to configure message digest", e);
 		}
-		hex = null;
 	}
 
 	/**
@@ -73,26 +73,60 @@ class Digest {
 		return update(string.getBytes(UTF8));
 	}
 
+	/**
+	 * Finish the digest.
+	 * 
+	 * @return The digest bytes. Do not modify.
+	 */
+	public byte[] digest() {
+		if (bytes == null)
+			bytes = md.digest();
+		return bytes;
+	}
+
 	@Override
 	public String toString() {
-		if (hex != null)
-			return hex;
-		StringBuilder sb = new StringBuilder();
-		for (byte b : md.digest()) {
-			int un = (((int) b) >> 4) & 0xf;
-			int ln = b & 0xf;
-			sb.append(HEX[un]).append(HEX[ln]);
+		if (hex == null)
+			hex = hex(digest());
+		return hex;
+	}
+
+	/**
+	 * Convert bytes to (upper-case) hexadecimal.
+	 * 
+	 * @param bytes
+	 *            The bytes to convert.
+	 * @return The hex string.
+	 */
+	static String hex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
 		}
-		return hex = sb.toString();
+		return new String(chars);
 	}
-}
 
-enum Algorithm {
-	SHA1 {
-		@Override
-		public String toString() {
-			return "SHA-1";
+	/**
+	 * Convert hexadecimal to bytes.
+	 * 
+	 * @param hex
+	 *            The hex string, in either case.
+	 * @return The bytes.
+	 * @throws IllegalArgumentException
+	 *             If the string isn't hex.
+	 */
+	static byte[] unhex(String hex) {
+		if (hex.length() % 2 != 0)
+			throw new IllegalArgumentException("odd length hex string");
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int un = Character.digit(hex.charAt(i * 2), 16);
+			int ln = Character.digit(hex.charAt(i * 2 + 1), 16);
+			if (un < 0 || ln < 0)
+				throw new IllegalArgumentException("bad hex string: " + hex);
+			bytes[i] = (byte) ((un << 4) | ln);
 		}
-	},
-	MD5
+		return bytes;
+	}
 }
@@ -1,7 +1,10 @@
 package manchester.synbiochem.datacapture;
 
 import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
 import static java.util.Collections.unmodifiableList;
+import static manchester.synbiochem.datacapture.Metrics.CALL_BUCKETS;
+import static manchester.synbiochem.datacapture.Metrics.cacheLookups;
 import static org.apache.commons.logging.LogFactory.getLog;
 
 import java.io.File;
@@ -17,6 +20,8 @@ import javax.ws.rs.BadRequestException;
 import javax.ws.rs.WebApplicationException;
 
 import manchester.synbiochem.datacapture.Interface.DirectoryEntry;
+import manchester.synbiochem.datacapture.Metrics.Counter;
+import manchester.synbiochem.datacapture.Metrics.Histogram;
 
 import org.apache.commons.logging.Log;
 import org.springframework.beans.factory.annotation.Value;
@@ -67,6 +72,11 @@ public class DirectoryLister {
 	 * and the time between listings when warnings will be issued.
 	 */
 	private static final long LONG_RATIO = 30L;
+	private static final Histogram refreshTime = Metrics.histogram(
+			"directory_refresh_duration_seconds",
+			"Time taken to relist the instrument directories.", CALL_BUCKETS);
+	private static final Counter hits = cacheLookups("directories", true);
+	private static final Counter misses = cacheLookups("directories", false);
 
 	/**
 	 * Get the subdirectories that we have vetted as being acceptable places to
@@ -78,15 +88,20 @@ public class DirectoryLister {
 		if (subtime + LIFE_INTERVAL < now) {
 			synchronized (this) {
 				if (subtime + LIFE_INTERVAL < now) {
+					misses.inc();
+					long t0 = nanoTime();
 					subs = subdirectories();
+					refreshTime.observeSince(t0);
 					long delta = currentTimeMillis() - now;
 					if (delta > LIFE_INTERVAL / LONG_RATIO)
 						log.warn("directory listing took " + delta
 								+ " milliseconds");
 					subtime = now;
+					return subs;
 				}
 			}
 		}
+		hits.inc();
 		return subs;
 	}
 
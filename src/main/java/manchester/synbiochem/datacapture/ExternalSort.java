@@ -0,0 +1,312 @@
+package manchester.synbiochem.datacapture;
+
+import static java.util.Collections.sort;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sorted collection of records that is too large to be held in memory. Items
+ * are buffered until there are enough of them to be worth writing out as a
+ * sorted run in a temporary file; the runs are then merged when the items are
+ * {@linkplain #forEach(Sink) visited}. Only one buffer-load of items and one
+ * item per run are ever held in memory at once. So that there are never too
+ * many files open, no more than a fixed number of runs are merged at once;
+ * when there are more, they are first merged in groups into longer runs.
+ * <p>
+ * Items may be {@linkplain #add(Object) added} from many threads at once
+ * without locking; the thread whose item fills a buffer-load sorts and writes
+ * that run while the others carry on adding. The sorted items may be visited
+ * any number of times, until the collection is {@linkplain #close() closed},
+ * which deletes the temporary files. Neither visiting nor closing may overlap
+ * with adding.
+ *
+ * @author Donal Fellows
+ * @param <T>
+ *            The type of the items.
+ */
+class ExternalSort<T> implements Closeable {
+	/** How to write items to, and read them from, the temporary files. */
+	interface Codec<T> {
+		void write(DataOutputStream out, T item) throws IOException;
+
+		T read(DataInputStream in) throws IOException;
+	}
+
+	/** What receives the items, in order. */
+	interface Sink<T> {
+		void accept(T item) throws IOException;
+	}
+
+	private static final int WRITE_BUFFER = 65536;
+	private static final int READ_BUFFER = 16384;
+	/** How many runs to merge at once, by default. */
+	static final int FAN_IN = 64;
+	private final File tempDir;
+	private final Codec<T> codec;
+	private final Comparator<? super T> order;
+	private final int runSize;
+	private final int fanIn;
+	/** Items added but not yet written to a run. */
+	private final Queue<T> pending = new ConcurrentLinkedQueue<>();
+	/** How many items are in {@link #pending} and not claimed for a run. */
+	private final AtomicInteger unclaimed = new AtomicInteger();
+	private final AtomicLong size = new AtomicLong();
+	/** Items taken from {@link #pending} by {@link #forEach(Sink)}. */
+	private final List<T> buffer = new ArrayList<>();
+	private final List<Run> runs = new ArrayList<>();
+	private boolean sorted = true;
+
+	/**
+	 * @param tempDir
+	 *            Where to put the temporary files. If <tt>null</tt>, the
+	 *            system default temporary directory is used.
+	 * @param codec
+	 *            How to serialize the items.
+	 * @param order
+	 *            The order to deliver the items in.
+	 * @param runSize
+	 *            How many items to hold in memory before spilling them to
+	 *            disk.
+	 */
+	ExternalSort(File tempDir, Codec<T> codec, Comparator<? super T> order,
+			int runSize) {
+		this(tempDir, codec, order, runSize, FAN_IN);
+	}
+
+	/**
+	 * @param tempDir
+	 *            Where to put the temporary files. If <tt>null</tt>, the
+	 *            system default temporary directory is used.
+	 * @param codec
+	 *            How to serialize the items.
+	 * @param order
+	 *            The order to deliver the items in.
+	 * @param runSize
+	 *            How many items to hold in memory before spilling them to
+	 *            disk.
+	 * @param fanIn
+	 *            How many runs to merge at once, and so how many temporary
+	 *            files may be open at once.
+	 */
+	ExternalSort(File tempDir, Codec<T> codec, Comparator<? super T> order,
+			int runSize, int fanIn) {
+		if (runSize < 1)
+			throw new IllegalArgumentException("run size must be positive");
+		if (fanIn < 2)
+			throw new IllegalArgumentException("must merge at least two runs");
+		this.tempDir = tempDir;
+		this.codec = codec;
+		this.order = order;
+		this.runSize = runSize;
+		this.fanIn = fanIn;
+	}
+
+	/** @return How many items have been added. */
+	long size() {
+		return size.get();
+	}
+
+	/**
+	 * Add an item. Safe to call from several threads at once.
+	 *
+	 * @param item
+	 *            The item to add.
+	 * @throws IOException
+	 *             If spilling to disk fails.
+	 */
+	void add(T item) throws IOException {
+		pending.add(item);
+		size.incrementAndGet();
+		/*
+		 * Every item is in the queue before it is counted, so whoever takes
+		 * the count to a full run can always take a full run from the queue.
+		 */
+		if (unclaimed.incrementAndGet() % runSize != 0)
+			return;
+		unclaimed.addAndGet(-runSize);
+		List<T> run = new ArrayList<>(runSize);
+		for (int i = 0; i < runSize; i++) {
+			T t = pending.poll();
+			if (t == null)
+				break;
+			run.add(t);
+		}
+		Run r = spill(run);
+		synchronized (this) {
+			runs.add(r);
+		}
+	}
+
+	private Run spill(List<T> items) throws IOException {
+		sort(items, order);
+		File f = File.createTempFile("sort", ".run", tempDir);
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(f), WRITE_BUFFER))) {
+			for (T item : items)
+				codec.write(out, item);
+		} catch (IOException | RuntimeException e) {
+			f.delete();
+			throw e;
+		}
+		return new Run(f, items.size());
+	}
+
+	/** Take the unclaimed items into {@link #buffer}. */
+	private void drain() {
+		T t;
+		while ((t = pending.poll()) != null) {
+			buffer.add(t);
+			sorted = false;
+		}
+		unclaimed.set(0);
+	}
+
+	/**
+	 * Deliver all the items, in order, to a sink.
+	 *
+	 * @param sink
+	 *            Where to deliver the items.
+	 * @throws IOException
+	 *             If reading the temporary files fails, or the sink fails.
+	 */
+	synchronized void forEach(Sink<? super T> sink) throws IOException {
+		drain();
+		if (runs.isEmpty()) {
+			if (!sorted) {
+				sort(buffer, order);
+				sorted = true;
+			}
+			for (T item : buffer)
+				sink.accept(item);
+			return;
+		}
+		if (!buffer.isEmpty()) {
+			runs.add(spill(buffer));
+			buffer.clear();
+		}
+		// Later visits reuse the longer runs
+		while (runs.size() > fanIn) {
+			List<Run> group = runs.subList(0, fanIn);
+			Run merged = mergeToFile(group);
+			for (Run run : group)
+				run.file.delete();
+			group.clear();
+			runs.add(merged);
+		}
+		merge(runs, sink);
+	}
+
+	/** Merge some runs into one. */
+	private Run mergeToFile(List<Run> group) throws IOException {
+		File f = File.createTempFile("sort", ".run", tempDir);
+		int count = 0;
+		try (final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(f), WRITE_BUFFER))) {
+			merge(group, new Sink<T>() {
+				@Override
+				public void accept(T item) throws IOException {
+					codec.write(out, item);
+				}
+			});
+		} catch (IOException | RuntimeException e) {
+			f.delete();
+			throw e;
+		}
+		for (Run run : group)
+			count += run.count;
+		return new Run(f, count);
+	}
+
+	private void merge(List<Run> group, Sink<? super T> sink)
+			throws IOException {
+		PriorityQueue<Head> heads = new PriorityQueue<>(group.size());
+		try {
+			for (Run run : group) {
+				Head h = new Head(run);
+				if (h.advance())
+					heads.add(h);
+				else
+					h.close();
+			}
+			while (!heads.isEmpty()) {
+				Head h = heads.poll();
+				sink.accept(h.item);
+				if (h.advance())
+					heads.add(h);
+				else
+					h.close();
+			}
+		} finally {
+			for (Head h : heads)
+				h.close();
+		}
+	}
+
+	/** Delete the temporary files. */
+	@Override
+	public synchronized void close() {
+		for (Run run : runs)
+			run.file.delete();
+		runs.clear();
+		buffer.clear();
+		pending.clear();
+		unclaimed.set(0);
+	}
+
+	private static class Run {
+		final File file;
+		final int count;
+
+		Run(File file, int count) {
+			this.file = file;
+			this.count = count;
+		}
+	}
+
+	/** The next unmerged item of a run. */
+	private class Head implements Comparable<Head>, Closeable {
+		private final DataInputStream in;
+		private int remaining;
+		T item;
+
+		Head(Run run) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(run.file), READ_BUFFER));
+			remaining = run.count;
+		}
+
+		boolean advance() throws IOException {
+			if (remaining == 0)
+				return false;
+			remaining--;
+			item = codec.read(in);
+			return true;
+		}
+
+		@Override
+		public int compareTo(Head o) {
+			return order.compare(item, o.item);
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package manchester.synbiochem.datacapture;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+
+import manchester.synbiochem.datacapture.Metrics.Counter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Runs the {@linkplain MetadataExtractor metadata extractors} on a bounded
+ * pool of their own, so that a slow or stuck parser can only ever use up that
+ * pool. Each file has a time budget, counted from when its extraction is
+ * {@linkplain #start(String, File) started}; whoever collects the result
+ * waits no longer than that. When the pool's queue is full, extraction is
+ * skipped for the file rather than waited for. Each extraction is counted
+ * once, by its outcome, when its result is collected.
+ *
+ * @author Donal Fellows
+ */
+class ExtractorPool {
+	private static final Log log = LogFactory.getLog(ExtractorPool.class);
+	private static final String HELP = "Runs of instrument metadata "
+			+ "extractors, by outcome.";
+	private static final Counter succeeded = Metrics.counter(
+			"extractions_total", HELP, "result=\"ok\"");
+	private static final Counter failed = Metrics.counter("extractions_total",
+			HELP, "result=\"failed\"");
+	private static final Counter timedOut = Metrics.counter(
+			"extractions_total", HELP, "result=\"timeout\"");
+	private static final Counter rejected = Metrics.counter(
+			"extractions_total", HELP, "result=\"rejected\"");
+
+	private final List<MetadataExtractor> extractors;
+	private final ThreadPoolExecutor pool;
+	private final long budget;
+
+	/**
+	 * @param extractors
+	 *            The extractors to choose from.
+	 * @param threads
+	 *            How many extractions may run at once.
+	 * @param queueLength
+	 *            How many extractions may wait for a thread.
+	 * @param budgetMillis
+	 *            How long each file's extraction may take, in milliseconds.
+	 */
+	ExtractorPool(Iterable<MetadataExtractor> extractors, int threads,
+			int queueLength, long budgetMillis) {
+		this.extractors = new ArrayList<>();
+		for (MetadataExtractor e : extractors)
+			this.extractors.add(e);
+		CustomizableThreadFactory factory = new CustomizableThreadFactory(
+				"extract-");
+		factory.setDaemon(true);
+		pool = new ThreadPoolExecutor(threads, threads, 0, MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueLength), factory);
+		budget = MILLISECONDS.toNanos(budgetMillis);
+	}
+
+	/**
+	 * Make a pool of the extractors registered with {@link ServiceLoader}.
+	 */
+	static ExtractorPool load(int threads, int queueLength, long budgetMillis) {
+		ExtractorPool pool = new ExtractorPool(ServiceLoader.load(
+				MetadataExtractor.class, ExtractorPool.class.getClassLoader()),
+				threads, queueLength, budgetMillis);
+		for (MetadataExtractor e : pool.extractors)
+			log.info("loaded metadata extractor " + e.getClass().getName());
+		return pool;
+	}
+
+	/**
+	 * Start extracting metadata from a file, if any extractor wants to.
+	 *
+	 * @param instrumentType
+	 *            The type of instrument that produced the file.
+	 * @param file
+	 *            The file.
+	 * @return The pending extraction, or <tt>null</tt> if there is nothing to
+	 *         do or no room to do it.
+	 */
+	Extraction start(String instrumentType, final File file) {
+		final List<MetadataExtractor> chosen = new ArrayList<>();
+		for (MetadataExtractor e : extractors)
+			if (e.supports(instrumentType) && e.accepts(file))
+				chosen.add(e);
+		if (chosen.isEmpty())
+			return null;
+		Callable<Outcome> job = new Callable<Outcome>() {
+			@Override
+			public Outcome call() {
+				Outcome outcome = new Outcome();
+				for (MetadataExtractor e : chosen)
+					try {
+						outcome.metadata.putAll(e.extract(file));
+					} catch (Exception ex) {
+						outcome.failed = true;
+						log.warn(e.getClass().getName()
+								+ " failed to extract metadata from " + file,
+								ex);
+					}
+				return outcome;
+			}
+		};
+		try {
+			return new Extraction(file, pool.submit(job));
+		} catch (RejectedExecutionException e) {
+			rejected.inc();
+			log.debug("no room to extract metadata from " + file);
+			return null;
+		}
+	}
+
+	/**
+	 * What the extractors made of a file. The metadata is whatever the
+	 * extractors that worked produced; if any failed, the extraction counts as
+	 * failed.
+	 */
+	private static final class Outcome {
+		final Map<String, String> metadata = new LinkedHashMap<>();
+		boolean failed;
+	}
+
+	/** Stop the pool, interrupting any running extractions. */
+	void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * The metadata being extracted from a file.
+	 *
+	 * @author Donal Fellows
+	 */
+	final class Extraction {
+		private final File file;
+		private final Future<Outcome> future;
+		private final long deadline;
+
+		private Extraction(File file, Future<Outcome> future) {
+			this.file = file;
+			this.future = future;
+			this.deadline = nanoTime() + budget;
+		}
+
+		/**
+		 * Wait, no longer than the file's time budget, for the metadata.
+		 *
+		 * @return The metadata, or <tt>null</tt> if there is none or it
+		 *         wasn't extracted in time.
+		 */
+		Map<String, String> get() {
+			try {
+				Outcome outcome = future.get(
+						Math.max(deadline - nanoTime(), 0), NANOSECONDS);
+				(outcome.failed ? failed : succeeded).inc();
+				Map<String, String> result = outcome.metadata;
+				return result.isEmpty() ? null : result;
+			} catch (TimeoutException e) {
+				future.cancel(true);
+				timedOut.inc();
+				log.warn("gave up extracting metadata from " + file);
+			} catch (ExecutionException e) {
+				failed.inc();
+				log.warn("failed to extract metadata from " + file,
+						e.getCause());
+			} catch (InterruptedException e) {
+				future.cancel(true);
+				Thread.currentThread().interrupt();
+			}
+			return null;
+		}
+	}
+}
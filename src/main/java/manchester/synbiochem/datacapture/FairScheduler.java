@@ -0,0 +1,535 @@
+package manchester.synbiochem.datacapture;
+
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.FileVisitResult.TERMINATE;
+import static java.util.Collections.sort;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Decides which archiving task runs next, so that one user or one instrument
+ * with a long run of submissions can't hold everyone else up. Tasks wait in a
+ * queue per user within a queue per instrument; the instruments take turns,
+ * and within each instrument the users take turns, with the turn going to
+ * whichever has gone longest without one (so newcomers go first). At most so
+ * many tasks run
+ * at once overall, and at most so many per instrument (which is also what
+ * stops a busy instrument's share of the file server swamping the others).
+ * <p>
+ * Small tasks, by a quick {@linkplain #sizeOf(List, long, int) estimate} of
+ * how much they have to copy, skip all that: they have a lane of their own,
+ * with a few reserved workers, in which the smallest goes first. They may also
+ * use any worker that the ordinary tasks leave idle. A few megabytes of data
+ * are then never stuck behind a few terabytes.
+ * <p>
+ * Tasks are handed to the executor only when they may run, so the executor's
+ * own queue stays short and the order here is the order things happen. The
+ * executor needs as many workers as both lanes together.
+ *
+ * @author Donal Fellows
+ */
+class FairScheduler {
+	private static final Log log = LogFactory.getLog(FairScheduler.class);
+
+	private final Executor executor;
+	private final int slots;
+	private final int fastSlots;
+	private final long smallLimit;
+	private final int defaultCap;
+	private final Map<String, Integer> caps;
+	/** Waiting tasks, by instrument then user. */
+	private final Map<String, Map<String, Deque<Job>>> queues = new LinkedHashMap<>();
+	/**
+	 * When each instrument, and each user of each instrument, last had a
+	 * turn, by a count of turns.
+	 */
+	private final Map<String, Long> lastTurn = new HashMap<>();
+	private long turns;
+	private final Map<String, Job> waiting = new HashMap<>();
+	/** Waiting small tasks, smallest first. */
+	private final Queue<Job> fast = new PriorityQueue<>(11, SMALLEST_FIRST);
+	private final Map<String, Integer> running = new HashMap<>();
+	private int runningTotal;
+	private int runningFast;
+	private long submitted;
+	/**
+	 * What {@link #queueStatus(String)} says of each waiting task, or
+	 * <tt>null</tt> if the queues have changed since it was worked out. Lets
+	 * describing every task read the queues once, not once per task.
+	 */
+	private volatile Map<String, String> statuses;
+
+	private static final class Job {
+		final String key;
+		final String instrument;
+		final String user;
+		final long size;
+		final boolean small;
+		/** For first-come first-served among tasks of the same size. */
+		final long seq;
+		final Runnable task;
+		/** Whether the task is using one of the small tasks' workers. */
+		boolean inFastLane;
+
+		Job(String key, String instrument, String user, long size,
+				boolean small, long seq, Runnable task) {
+			this.key = key;
+			this.instrument = instrument;
+			this.user = user;
+			this.size = size;
+			this.small = small;
+			this.seq = seq;
+			this.task = task;
+		}
+	}
+
+	private static final Comparator<Job> SMALLEST_FIRST = new Comparator<Job>() {
+		@Override
+		public int compare(Job a, Job b) {
+			if (a.size != b.size)
+				return a.size < b.size ? -1 : 1;
+			return a.seq < b.seq ? -1 : a.seq > b.seq ? 1 : 0;
+		}
+	};
+
+	/**
+	 * @param executor
+	 *            What actually runs the tasks.
+	 * @param slots
+	 *            How many tasks may run at once.
+	 * @param defaultCap
+	 *            How many tasks may run at once from an instrument not
+	 *            mentioned in the caps.
+	 * @param caps
+	 *            How many tasks may run at once from particular instruments,
+	 *            as a comma-separated list of <tt>name=count</tt> items. May be
+	 *            empty.
+	 * @param fastSlots
+	 *            How many workers are kept for small tasks.
+	 * @param smallLimit
+	 *            The largest size of task that counts as small; negative if
+	 *            none do.
+	 */
+	FairScheduler(Executor executor, int slots, int defaultCap, String caps,
+			int fastSlots, long smallLimit) {
+		this.executor = executor;
+		this.slots = Math.max(slots, 1);
+		this.fastSlots = Math.max(fastSlots, 0);
+		this.smallLimit = smallLimit;
+		this.defaultCap = Math.max(defaultCap, 1);
+		this.caps = new HashMap<>();
+		for (String item : caps.split(",")) {
+			String[] kv = item.trim().split("\\s*=\\s*");
+			if (kv.length == 2)
+				this.caps.put(kv[0], Math.max(Integer.parseInt(kv[1]), 1));
+			else if (!item.trim().isEmpty())
+				throw new IllegalArgumentException("bad instrument cap: "
+						+ item);
+		}
+	}
+
+	private int cap(String instrument) {
+		Integer cap = caps.get(instrument);
+		return cap == null ? defaultCap : cap;
+	}
+
+	private static String userKey(String instrument, String user) {
+		return instrument + "\0" + user;
+	}
+
+	private static long lastTurn(Map<String, Long> lastTurn, String key) {
+		Long turn = lastTurn.get(key);
+		return turn == null ? 0 : turn;
+	}
+
+	/** Which of the keys has gone longest without a turn. */
+	private static String longestWaiting(Iterable<String> keys,
+			Map<String, Long> lastTurn, String prefix) {
+		String best = null;
+		long bestTurn = Long.MAX_VALUE;
+		for (String key : keys) {
+			long turn = lastTurn(lastTurn, prefix == null ? key : userKey(
+					prefix, key));
+			if (turn < bestTurn) {
+				best = key;
+				bestTurn = turn;
+			}
+		}
+		return best;
+	}
+
+	private int running(String instrument) {
+		Integer count = running.get(instrument);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Queue a task to run when its turn comes.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @param instrument
+	 *            The instrument that the task's data came from.
+	 * @param user
+	 *            Who submitted the task; <tt>null</tt> if not known.
+	 * @param size
+	 *            The estimated size of the task, in bytes;
+	 *            {@link Long#MAX_VALUE} if unknown or too large to estimate.
+	 * @param task
+	 *            The task. Cancelling it before it runs should be followed by
+	 *            a call to {@link #cancel(String)}.
+	 */
+	synchronized void submit(String key, String instrument, String user,
+			long size, Runnable task) {
+		enqueue(new Job(key, instrument, user == null ? "" : user, size,
+				size <= smallLimit, submitted++, task), false);
+		dispatch();
+	}
+
+	private void enqueue(Job job, boolean atFront) {
+		waiting.put(job.key, job);
+		if (job.small) {
+			fast.add(job);
+			return;
+		}
+		Map<String, Deque<Job>> users = queues.get(job.instrument);
+		if (users == null) {
+			users = new LinkedHashMap<>();
+			queues.put(job.instrument, users);
+		}
+		Deque<Job> jobs = users.get(job.user);
+		if (jobs == null) {
+			jobs = new ArrayDeque<>();
+			users.put(job.user, jobs);
+		}
+		if (atFront)
+			jobs.addFirst(job);
+		else
+			jobs.add(job);
+	}
+
+	/**
+	 * Stop waiting for a task to run.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @return Whether the task was waiting.
+	 */
+	synchronized boolean cancel(String key) {
+		Job job = waiting.remove(key);
+		if (job == null)
+			return false;
+		statuses = null;
+		if (job.small)
+			return fast.remove(job);
+		Map<String, Deque<Job>> users = queues.get(job.instrument);
+		Deque<Job> jobs = users.get(job.user);
+		jobs.remove(job);
+		if (jobs.isEmpty())
+			users.remove(job.user);
+		if (users.isEmpty())
+			queues.remove(job.instrument);
+		return true;
+	}
+
+	/**
+	 * Where a task is in the order that the waiting tasks will be started in,
+	 * if nothing else is submitted first.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @return The position, counting from 1, or 0 if the task isn't waiting.
+	 */
+	synchronized int position(String key) {
+		Job job = waiting.get(key);
+		if (job == null)
+			return 0;
+		List<Job> order = (job.small ? smallOrder() : order());
+		for (int i = 0; i < order.size(); i++)
+			if (order.get(i).key.equals(key))
+				return i + 1;
+		return 0;
+	}
+
+	/** @return How many tasks are waiting. */
+	synchronized int waiting() {
+		return waiting.size();
+	}
+
+	/**
+	 * Describe where a task is in its queue.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @return The description, or <tt>null</tt> if the task isn't waiting.
+	 */
+	String queueStatus(String key) {
+		Map<String, String> s = statuses;
+		if (s == null)
+			s = statuses();
+		return s.get(key);
+	}
+
+	private synchronized Map<String, String> statuses() {
+		if (statuses == null) {
+			Map<String, String> s = new HashMap<>();
+			describe(s, order(), "queued (");
+			describe(s, smallOrder(), "queued, fast lane (");
+			statuses = s;
+		}
+		return statuses;
+	}
+
+	private static void describe(Map<String, String> statuses,
+			List<Job> order, String prefix) {
+		for (int i = 0; i < order.size(); i++)
+			statuses.put(order.get(i).key, prefix + (i + 1) + " of "
+					+ order.size() + ")");
+	}
+
+	private List<Job> smallOrder() {
+		List<Job> order = new ArrayList<>(fast);
+		sort(order, SMALLEST_FIRST);
+		return order;
+	}
+
+	/** The waiting tasks, in the order that turn-taking would start them. */
+	private List<Job> order() {
+		Map<String, Map<String, Iterator<Job>>> its = new LinkedHashMap<>();
+		for (Map.Entry<String, Map<String, Deque<Job>>> e : queues.entrySet()) {
+			Map<String, Iterator<Job>> users = new LinkedHashMap<>();
+			for (Map.Entry<String, Deque<Job>> u : e.getValue().entrySet())
+				users.put(u.getKey(), u.getValue().iterator());
+			its.put(e.getKey(), users);
+		}
+		Map<String, Long> turns = new HashMap<>(lastTurn);
+		long turn = this.turns;
+		List<Job> order = new ArrayList<>();
+		while (!its.isEmpty()) {
+			String instrument = longestWaiting(its.keySet(), turns, null);
+			Map<String, Iterator<Job>> users = its.get(instrument);
+			String user = longestWaiting(users.keySet(), turns, instrument);
+			Iterator<Job> it = users.get(user);
+			order.add(it.next());
+			turns.put(instrument, ++turn);
+			turns.put(userKey(instrument, user), turn);
+			if (!it.hasNext())
+				users.remove(user);
+			if (users.isEmpty())
+				its.remove(instrument);
+		}
+		return order;
+	}
+
+	/**
+	 * Start as many waiting tasks as the limits allow: small tasks on their
+	 * own workers, then ordinary tasks, then small tasks again on any workers
+	 * the ordinary ones leave idle.
+	 */
+	private void dispatch() {
+		statuses = null;
+		while (runningFast < fastSlots && !fast.isEmpty())
+			if (!start(take(fast.peek()), true))
+				return;
+		while (runningTotal < slots) {
+			Job job = next();
+			if (job != null) {
+				if (!start(job, false))
+					return;
+				lastTurn.put(job.instrument, ++turns);
+				lastTurn.put(userKey(job.instrument, job.user), turns);
+			} else if (fast.isEmpty() || !start(take(fast.peek()), false))
+				return;
+		}
+	}
+
+	private Job take(Job smallJob) {
+		fast.remove(smallJob);
+		waiting.remove(smallJob.key);
+		return smallJob;
+	}
+
+	/**
+	 * Take the next task to start: from the instrument with room that has
+	 * gone longest without a turn, the user of that instrument who has gone
+	 * longest without a turn.
+	 */
+	private Job next() {
+		List<String> ready = new ArrayList<>();
+		for (String instrument : queues.keySet())
+			if (running(instrument) < cap(instrument))
+				ready.add(instrument);
+		String instrument = longestWaiting(ready, lastTurn, null);
+		if (instrument == null)
+			return null;
+		Map<String, Deque<Job>> users = queues.get(instrument);
+		String user = longestWaiting(users.keySet(), lastTurn, instrument);
+		Deque<Job> jobs = users.get(user);
+		Job job = jobs.remove();
+		if (jobs.isEmpty())
+			users.remove(user);
+		if (users.isEmpty())
+			queues.remove(instrument);
+		waiting.remove(job.key);
+		return job;
+	}
+
+	/**
+	 * Hand a task to the executor. If the executor won't take it, it goes
+	 * back to the front of its queue to be tried again when the next task
+	 * is submitted or finishes.
+	 */
+	private boolean start(final Job job, boolean inFastLane) {
+		job.inFastLane = inFastLane;
+		if (inFastLane)
+			runningFast++;
+		else
+			runningTotal++;
+		if (!job.small)
+			running.put(job.instrument, running(job.instrument) + 1);
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						job.task.run();
+					} finally {
+						finished(job);
+					}
+				}
+			});
+			return true;
+		} catch (RuntimeException e) {
+			log.warn("executor refused task " + job.key + "; will retry", e);
+			release(job);
+			enqueue(job, true);
+			return false;
+		}
+	}
+
+	private void release(Job job) {
+		if (job.inFastLane)
+			runningFast--;
+		else
+			runningTotal--;
+		if (job.small)
+			return;
+		int count = running(job.instrument) - 1;
+		if (count > 0)
+			running.put(job.instrument, count);
+		else
+			running.remove(job.instrument);
+	}
+
+	/**
+	 * A count of what a task has to copy, as far as it got before reaching
+	 * its limits.
+	 */
+	static final class Estimate {
+		final long bytes;
+		final long files;
+		/** Whether the count stopped at a limit (or couldn't read a file). */
+		final boolean partial;
+
+		Estimate(long bytes, long files, boolean partial) {
+			this.bytes = bytes;
+			this.files = files;
+			this.partial = partial;
+		}
+
+		/**
+		 * @param byteLimit
+		 *            The most bytes to allow.
+		 * @param fileLimit
+		 *            The most files to allow.
+		 * @return The number of bytes, or {@link Long#MAX_VALUE} if that's
+		 *         more than either limit or not known.
+		 */
+		long size(long byteLimit, long fileLimit) {
+			if (partial || bytes > byteLimit || files > fileLimit)
+				return Long.MAX_VALUE;
+			return bytes;
+		}
+	}
+
+	/**
+	 * Count what a task has to copy, without spending long on large ones.
+	 *
+	 * @param dirs
+	 *            The directories that the task will archive.
+	 * @param byteLimit
+	 *            Stop counting after this many bytes.
+	 * @param fileLimit
+	 *            Stop counting after this many files.
+	 * @return The count.
+	 */
+	static Estimate estimate(List<File> dirs, final long byteLimit,
+			final long fileLimit) {
+		final long[] total = new long[2];
+		final boolean[] partial = new boolean[1];
+		FileVisitor<Path> counter = new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) {
+				total[0] += attrs.size();
+				if (total[0] > byteLimit || ++total[1] > fileLimit) {
+					partial[0] = true;
+					return TERMINATE;
+				}
+				return CONTINUE;
+			}
+		};
+		try {
+			for (File dir : dirs)
+				if (!partial[0])
+					Files.walkFileTree(dir.toPath(), counter);
+		} catch (IOException e) {
+			partial[0] = true;
+		}
+		return new Estimate(total[0], total[1], partial[0]);
+	}
+
+	/**
+	 * Estimate the size of a task, without spending long on large ones.
+	 *
+	 * @param dirs
+	 *            The directories that the task will archive.
+	 * @param byteLimit
+	 *            Stop counting after this many bytes.
+	 * @param fileLimit
+	 *            Stop counting after this many files.
+	 * @return The total size of the files in the directories, or
+	 *         {@link Long#MAX_VALUE} if it is larger than either limit (or
+	 *         can't be read).
+	 */
+	static long sizeOf(List<File> dirs, long byteLimit, int fileLimit) {
+		return estimate(dirs, byteLimit, fileLimit).size(byteLimit, fileLimit);
+	}
+
+	private synchronized void finished(Job job) {
+		release(job);
+		dispatch();
+	}
+}
@@ -0,0 +1,277 @@
+package manchester.synbiochem.datacapture;
+
+import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_ARCHIVE;
+import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_CIFS;
+import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_EXTRACTED;
+import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_MD5;
+import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_MIME;
+import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_NAME;
+import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_OPENBIS_URL;
+import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_ORIGIN;
+import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_SHA1;
+import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_SIZE;
+import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_TIME;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.ConcurrentMap;
+
+import org.json.JSONObject;
+
+/**
+ * The metadata about one archived file, held compactly. The digests are held
+ * as bytes, not hex, and the size and modification time as primitives. Each
+ * path or URL is split into its directory part, which is interned (per
+ * {@link MetadataRecorder}) as very many files share a handful of directories,
+ * and its leaf part, which is shared between the locations when they agree.
+ * The JSON and TSV views of the record are only made when needed.
+ *
+ * @author Donal Fellows
+ */
+final class FileRecord {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	final byte[] sha1;
+	final byte[] md5;
+	final String mimetype;
+	final long size;
+	/** Modification time of the source file, in ms since the epoch. */
+	final long time;
+	final String nameDir, nameLeaf;
+	final String srcDir, srcLeaf;
+	final String dstDir, dstLeaf;
+	final String cifsDir, cifsLeaf;
+	final String openbisDir, openbisLeaf;
+	/** The instrument-specific metadata, as JSON text, or <tt>null</tt>. */
+	final String extracted;
+
+	/**
+	 * @param sha1
+	 *            The SHA-1 digest of the file.
+	 * @param md5
+	 *            The MD5 digest of the file.
+	 * @param name
+	 *            The user-visible name of the file.
+	 * @param mimetype
+	 *            The MIME type of the file.
+	 * @param source
+	 *            The original location of the file.
+	 * @param archived
+	 *            The archived location of the file.
+	 * @param size
+	 *            The length of the file.
+	 * @param time
+	 *            The modification time of the file.
+	 * @param cifs
+	 *            The CIFS URL of the file, or <tt>null</tt>.
+	 * @param openbis
+	 *            The OpenBIS URL of the file, or <tt>null</tt>.
+	 * @param extracted
+	 *            The instrument-specific metadata, as JSON text, or
+	 *            <tt>null</tt>.
+	 * @param prefixes
+	 *            Where the directory parts are interned.
+	 */
+	FileRecord(byte[] sha1, byte[] md5, String name, String mimetype,
+			String source, String archived, long size, long time,
+			String cifs, String openbis, String extracted,
+			ConcurrentMap<String, String> prefixes) {
+		this.sha1 = sha1;
+		this.md5 = md5;
+		this.mimetype = intern(prefixes, mimetype);
+		this.size = size;
+		this.time = time;
+		nameDir = dir(prefixes, name);
+		nameLeaf = leaf(name, null);
+		srcDir = dir(prefixes, source);
+		srcLeaf = leaf(source, nameLeaf);
+		dstDir = dir(prefixes, archived);
+		dstLeaf = leaf(archived, nameLeaf);
+		cifsDir = dir(prefixes, cifs);
+		cifsLeaf = leaf(cifs, nameLeaf);
+		openbisDir = dir(prefixes, openbis);
+		openbisLeaf = leaf(openbis, cifsLeaf);
+		this.extracted = extracted;
+	}
+
+	private static String intern(ConcurrentMap<String, String> prefixes,
+			String s) {
+		if (s == null)
+			return null;
+		String existing = prefixes.putIfAbsent(s, s);
+		return existing != null ? existing : s;
+	}
+
+	private static String dir(ConcurrentMap<String, String> prefixes,
+			String path) {
+		if (path == null)
+			return null;
+		return intern(prefixes, path.substring(0, path.lastIndexOf('/') + 1));
+	}
+
+	private static String leaf(String path, String like) {
+		if (path == null)
+			return null;
+		String leaf = path.substring(path.lastIndexOf('/') + 1);
+		return leaf.equals(like) ? like : leaf;
+	}
+
+	private static String join(String dir, String leaf) {
+		return dir == null ? null : dir + leaf;
+	}
+
+	String getName() {
+		return join(nameDir, nameLeaf);
+	}
+
+	String getOrigin() {
+		return join(srcDir, srcLeaf);
+	}
+
+	String getArchive() {
+		return join(dstDir, dstLeaf);
+	}
+
+	String getCifs() {
+		return join(cifsDir, cifsLeaf);
+	}
+
+	String getOpenBIS() {
+		return join(openbisDir, openbisLeaf);
+	}
+
+	/**
+	 * Render the record as it appears in the JSON manifest.
+	 *
+	 * @param iso8601
+	 *            How to format the modification time.
+	 * @return The JSON object.
+	 */
+	JSONObject toJSON(DateFormat iso8601) {
+		JSONObject f = new JSONObject();
+		f.put(FILE_SHA1, Digest.hex(sha1));
+		f.put(FILE_MD5, Digest.hex(md5));
+		f.put(FILE_NAME, getName());
+		f.put(FILE_MIME, mimetype);
+		f.put(FILE_ORIGIN, getOrigin());
+		f.put(FILE_ARCHIVE, getArchive());
+		f.put(FILE_TIME, iso8601.format(new Date(time)));
+		f.put(FILE_SIZE, size);
+		f.put(FILE_CIFS, getCifs());
+		f.put(FILE_OPENBIS_URL, getOpenBIS());
+		if (extracted != null)
+			f.put(FILE_EXTRACTED, new JSONObject(extracted));
+		return f;
+	}
+
+	/**
+	 * The order of records in the manifests: by SHA-1, then by origin.
+	 */
+	static final Comparator<FileRecord> ORDER = new Comparator<FileRecord>() {
+		@Override
+		public int compare(FileRecord a, FileRecord b) {
+			int len = Math.min(a.sha1.length, b.sha1.length);
+			for (int i = 0; i < len; i++) {
+				int cmp = (a.sha1[i] & 0xff) - (b.sha1[i] & 0xff);
+				if (cmp != 0)
+					return cmp;
+			}
+			if (a.sha1.length != b.sha1.length)
+				return a.sha1.length - b.sha1.length;
+			return compareJoined(a.srcDir, a.srcLeaf, b.srcDir, b.srcLeaf);
+		}
+	};
+
+	/** Compare <tt>a1+a2</tt> with <tt>b1+b2</tt> without joining them. */
+	private static int compareJoined(String a1, String a2, String b1, String b2) {
+		if (a1 == b1)
+			return a2.compareTo(b2);
+		int la = a1.length() + a2.length(), lb = b1.length() + b2.length();
+		for (int i = 0; i < Math.min(la, lb); i++) {
+			char ca = i < a1.length() ? a1.charAt(i) : a2.charAt(i - a1.length());
+			char cb = i < b1.length() ? b1.charAt(i) : b2.charAt(i - b1.length());
+			if (ca != cb)
+				return ca - cb;
+		}
+		return la - lb;
+	}
+
+	/**
+	 * Write the record to a spool file.
+	 *
+	 * @param out
+	 *            Where to write.
+	 * @throws IOException
+	 *             If writing fails.
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeByte(sha1.length);
+		out.write(sha1);
+		out.writeByte(md5.length);
+		out.write(md5);
+		writeOptional(out, mimetype);
+		out.writeLong(size);
+		out.writeLong(time);
+		out.writeUTF(getName());
+		out.writeUTF(getOrigin());
+		out.writeUTF(getArchive());
+		writeOptional(out, getCifs());
+		writeOptional(out, getOpenBIS());
+		// Might be too long for writeUTF
+		byte[] bytes = (extracted == null ? new byte[0] : extracted
+				.getBytes(UTF8));
+		out.writeInt(extracted == null ? -1 : bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Read a record from a spool file.
+	 *
+	 * @param in
+	 *            Where to read from.
+	 * @param prefixes
+	 *            Where the directory parts are interned.
+	 * @return The record.
+	 * @throws IOException
+	 *             If reading fails.
+	 */
+	static FileRecord read(DataInputStream in,
+			ConcurrentMap<String, String> prefixes) throws IOException {
+		byte[] sha1 = new byte[in.readUnsignedByte()];
+		in.readFully(sha1);
+		byte[] md5 = new byte[in.readUnsignedByte()];
+		in.readFully(md5);
+		String mimetype = readOptional(in);
+		long size = in.readLong();
+		long time = in.readLong();
+		String name = in.readUTF();
+		String source = in.readUTF();
+		String archived = in.readUTF();
+		String cifs = readOptional(in);
+		String openbis = readOptional(in);
+		String extracted = null;
+		int len = in.readInt();
+		if (len >= 0) {
+			byte[] bytes = new byte[len];
+			in.readFully(bytes);
+			extracted = new String(bytes, UTF8);
+		}
+		return new FileRecord(sha1, md5, name, mimetype, source, archived,
+				size, time, cifs, openbis, extracted, prefixes);
+	}
+
+	private static void writeOptional(DataOutputStream out, String s)
+			throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static String readOptional(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -2,6 +2,7 @@ package manchester.synbiochem.datacapture;
 
 import java.io.File;
 import java.io.Serializable;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.Collection;
@@ -10,18 +11,28 @@ import java.util.Date;
 import manchester.synbiochem.datacapture.SeekConnector.Assay;
 import manchester.synbiochem.datacapture.SeekConnector.User;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A task that has finished, as kept in the {@link TaskHistory}. Still
+ * {@link Serializable} only so that tasks saved by older versions, one file
+ * each, can be read in to be migrated.
+ */
 public class FinishedTask implements TaskStore.Task, Serializable {
 	private static final long serialVersionUID = 3774514312844079068L;
 
+	/** Only set in tasks saved by older versions. */
 	private File file;
+	private transient String key;
 	private Assay assay;
 	private User user;
 	private Long start, end;
 	private String[] dirs;
 	private URL asset;
 
-	public FinishedTask(ActiveTask t, File filename) {
-		file = filename;
+	public FinishedTask(ActiveTask t) {
+		key = t.getKey();
 		assay = t.getExperiment();
 		user = t.getUser();
 		start = ts(t.getStart());
@@ -30,18 +41,56 @@ public class FinishedTask implements TaskStore.Task, Serializable {
 		asset = t.getCreatedAsset();
 	}
 
+	/**
+	 * Recreate a task from its record in the history.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @param json
+	 *            The record, as made by {@link #toJSON()}.
+	 * @throws MalformedURLException
+	 *             If the record holds a bad URL.
+	 */
+	FinishedTask(String key, JSONObject json) throws MalformedURLException {
+		this.key = key;
+		user = SeekJson.toUser(json.optJSONObject("user"));
+		assay = SeekJson.toAssay(json.optJSONObject("assay"));
+		start = json.has("start") ? json.getLong("start") : null;
+		end = json.has("end") ? json.getLong("end") : null;
+		JSONArray d = json.getJSONArray("dirs");
+		dirs = new String[d.length()];
+		for (int i = 0; i < dirs.length; i++)
+			dirs[i] = d.getString(i);
+		asset = json.has("asset") ? new URL(json.getString("asset")) : null;
+	}
+
+	private static String str(Object o) {
+		return o == null ? null : o.toString();
+	}
+
+	/**
+	 * @return The record of this task in the history. Does not include the
+	 *         key.
+	 */
+	JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		json.put("user", SeekJson.toJSON(user));
+		json.put("assay", SeekJson.toJSON(assay));
+		json.put("start", start);
+		json.put("end", end);
+		json.put("dirs", new JSONArray(Arrays.asList(dirs)));
+		json.put("asset", str(asset));
+		return json;
+	}
+
 	public String getKey() {
-		return file.getName();
+		return key != null ? key : file.getName();
 	}
 
 	private static Long ts(Date d) {
 		return d == null ? null : d.getTime();
 	}
 
-	public void delete() {
-		file.delete();
-	}
-
 	@Override
 	public boolean isDone() {
 		return true;
@@ -47,6 +47,7 @@ public interface Interface {
 		String DIR = "dir";
 		String TREE = "tree";
 		String TASKS = "tasks";
+		String METRICS = "metrics";
 	}
 	@GET
 	@Path(Paths.ROOT)
@@ -58,6 +59,11 @@ public interface Interface {
 	@Produces(JSON)
 	Description describe(@Context UriInfo ui);
 
+	@GET
+	@Path(Paths.METRICS)
+	@Produces("text/plain; version=0.0.4")
+	String metrics();
+
 	@GET
 	@Path(Paths.USERS)
 	@Produces(JSON)
@@ -94,10 +100,34 @@ public interface Interface {
 	Response tree(@QueryParam("id") @DefaultValue("#") String id,
 			@Context UriInfo ui);
 
+	/**
+	 * List the tasks, most recently active first.
+	 *
+	 * @param user
+	 *            Only list tasks submitted by the user with this URL.
+	 * @param state
+	 *            Only list <tt>active</tt> or <tt>finished</tt> tasks.
+	 * @param since
+	 *            Only list tasks active at or after this time (ISO 8601 date or
+	 *            timestamp). If neither this nor <tt>until</tt> is given, only
+	 *            recently active tasks are listed.
+	 * @param until
+	 *            Only list tasks last active before this time.
+	 * @param offset
+	 *            How many of the matching tasks to skip.
+	 * @param limit
+	 *            The most tasks to list.
+	 */
 	@GET
 	@Path(Paths.TASKS)
 	@Produces(JSON)
-	ArchiveTaskList tasks(@Context UriInfo ui);
+	ArchiveTaskList tasks(@QueryParam("user") String user,
+			@QueryParam("state") String state,
+			@QueryParam("since") String since,
+			@QueryParam("until") String until,
+			@QueryParam("offset") @DefaultValue("0") int offset,
+			@QueryParam("limit") @DefaultValue("100") int limit,
+			@Context UriInfo ui);
 
 	@GET
 	@Path(Paths.TASKS + "/{id}")
@@ -240,6 +270,12 @@ public interface Interface {
 	class ArchiveTaskList {
 		@XmlElement(name = "task")
 		public List<ArchiveTask> tasks = new ArrayList<>();
+		/** How many tasks matched, across all pages. */
+		@XmlElement
+		public Integer total;
+		/** The next page of tasks, if there is one. */
+		@XmlElement
+		public URI next;
 	}
 
 	@XmlRootElement(name = "task")
@@ -49,6 +49,12 @@ public interface JsonMetadataFields {
 	 * The location for the file in the OpenBIS DSS.
 	 */
 	public static final String FILE_OPENBIS_URL = "url";
+	/**
+	 * Key for the instrument-specific metadata about the file, as found by a
+	 * {@link MetadataExtractor}: used in an individual file record, when there
+	 * is any.
+	 */
+	public static final String FILE_EXTRACTED = "extracted";
 	/**
 	 * The ID of the experiment in openBIS that the file is uploaded to (as part
 	 * of a data-set).
@@ -69,6 +75,11 @@ public interface JsonMetadataFields {
 	public static final String FILES = "files";
 	/** Key for the ID for the overall record. */
 	public static final String ID = "id";
+	/**
+	 * Key for the version 2 ID for the overall record, which does not depend
+	 * on the order of the files. See {@link ManifestId}.
+	 */
+	public static final String ID_V2 = "id2";
 	/** Key for the timestamp for the overall record. */
 	public static final String TIME = "timestamp";
 	/** Key for who is creating the record? */
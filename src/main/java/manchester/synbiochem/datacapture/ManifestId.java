@@ -0,0 +1,56 @@
+package manchester.synbiochem.datacapture;
+
+import static manchester.synbiochem.datacapture.Algorithm.SHA256;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The version 2 manifest ID: an order-independent digest of the set of
+ * (origin, SHA-1) pairs in a manifest. Each pair is hashed with SHA-256 as it
+ * is added, and the hashes are summed, lane by lane, modulo 2<sup>64</sup>;
+ * the ID is the SHA-256 of the count and the sums. Adding is therefore
+ * lock-free and the ID is available at any time without visiting the files
+ * again, unlike the version 1 ID which is the SHA-1 of the whole sorted list.
+ *
+ * @author Donal Fellows
+ */
+final class ManifestId {
+	/** The version of the ID scheme implemented by this class. */
+	static final int VERSION = 2;
+	private static final int LANES = 4;
+	private final AtomicLongArray sums = new AtomicLongArray(LANES);
+	private final AtomicLong count = new AtomicLong();
+
+	/**
+	 * Add a file to the set. May be called from several threads at once.
+	 *
+	 * @param origin
+	 *            The original location of the file.
+	 * @param sha1
+	 *            The SHA-1 digest of the file.
+	 */
+	void add(String origin, byte[] sha1) {
+		ByteBuffer h = ByteBuffer.wrap(new Digest(SHA256).update(origin)
+				.update(new byte[] { 0 }).update(sha1).digest());
+		for (int i = 0; i < LANES; i++)
+			sums.addAndGet(i, h.getLong());
+		count.incrementAndGet();
+	}
+
+	/** @return How many files have been added. */
+	long size() {
+		return count.get();
+	}
+
+	/** @return The ID of the set of files added so far, in hex. */
+	@Override
+	public String toString() {
+		ByteBuffer b = ByteBuffer.allocate(8 * (LANES + 1));
+		b.putLong(count.get());
+		for (int i = 0; i < LANES; i++)
+			b.putLong(sums.get(i));
+		return new Digest(SHA256).update(b.array()).toString();
+	}
+}
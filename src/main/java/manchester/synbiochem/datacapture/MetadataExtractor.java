@@ -0,0 +1,49 @@
+package manchester.synbiochem.datacapture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A source of instrument-specific metadata about archived files, such as scan
+ * counts or method names from vendor headers. Implementations are found with
+ * {@link java.util.ServiceLoader}, so they are registered by listing them in
+ * <tt>META-INF/services/manchester.synbiochem.datacapture.MetadataExtractor</tt>
+ * and must have a public no-argument constructor.
+ * <p>
+ * Extractors are run on a small pool of their own, several at once, and are
+ * given a limited time for each file; one that overruns is interrupted and
+ * its result discarded.
+ *
+ * @author Donal Fellows
+ */
+public interface MetadataExtractor {
+	/**
+	 * @param instrumentType
+	 *            The type of instrument, as given by
+	 *            {@link InformationSource#getInstrumentType(String)}.
+	 * @return Whether this extractor should be used for files from that type
+	 *         of instrument.
+	 */
+	boolean supports(String instrumentType);
+
+	/**
+	 * Decide cheaply, without reading it, whether to extract from a file.
+	 *
+	 * @param file
+	 *            The file.
+	 * @return Whether to call {@link #extract(File)} on the file.
+	 */
+	boolean accepts(File file);
+
+	/**
+	 * Extract the metadata from a file.
+	 *
+	 * @param file
+	 *            The file to read.
+	 * @return The metadata, as key-value pairs. May be empty.
+	 * @throws IOException
+	 *             If the file can't be read or parsed.
+	 */
+	Map<String, String> extract(File file) throws IOException;
+}
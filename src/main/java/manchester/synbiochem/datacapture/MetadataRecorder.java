@@ -1,6 +1,5 @@
 package manchester.synbiochem.datacapture;
 
-import static java.util.Collections.sort;
 import static manchester.synbiochem.datacapture.Algorithm.MD5;
 import static manchester.synbiochem.datacapture.Algorithm.SHA1;
 import static manchester.synbiochem.datacapture.JsonMetadataFields.EXPERIMENT;
@@ -11,7 +10,6 @@ import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_ARCHIVE;
 import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_CIFS;
 import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_MD5;
 import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_MIME;
-import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_NAME;
 import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_NOTES;
 import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_OPENBIS_URL;
 import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_ORIGIN;
@@ -21,26 +19,40 @@ import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_SHA1;
 import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_SIZE;
 import static manchester.synbiochem.datacapture.JsonMetadataFields.FILE_TIME;
 import static manchester.synbiochem.datacapture.JsonMetadataFields.ID;
+import static manchester.synbiochem.datacapture.JsonMetadataFields.ID_V2;
 import static manchester.synbiochem.datacapture.JsonMetadataFields.TIME;
 import static manchester.synbiochem.datacapture.JsonMetadataFields.USER;
+import static org.apache.commons.io.IOUtils.read;
 import static org.json.JSONObject.NULL;
+import static org.json.JSONObject.quote;
 
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import manchester.synbiochem.datacapture.ArchiverTask.Entry;
+import manchester.synbiochem.datacapture.ExternalSort.Codec;
+import manchester.synbiochem.datacapture.ExternalSort.Sink;
+import manchester.synbiochem.datacapture.ExtractorPool.Extraction;
+import manchester.synbiochem.datacapture.Metrics.Counter;
 import manchester.synbiochem.datacapture.SeekConnector.Assay;
 import manchester.synbiochem.datacapture.SeekConnector.Project;
 import manchester.synbiochem.datacapture.SeekConnector.Study;
@@ -49,81 +61,108 @@ import manchester.synbiochem.datacapture.SeekConnector.User;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.tika.Tika;
-import org.json.JSONArray;
 import org.json.JSONObject;
 
-public class MetadataRecorder {
+/**
+ * Accumulates the metadata about the files archived by a task, and produces
+ * the JSON and TSV manifests from it. The per-file records are
+ * {@linkplain FileRecord compact}, and are spooled to
+ * temporary files as they are added, so the manifests can be written out
+ * without holding every record in memory; {@linkplain #close() close} the
+ * recorder once the manifests are written to release them.
+ * <p>
+ * Files may be {@linkplain #addFile(String, File, File, String, URI) added}
+ * from several threads at once. Everything else is expected to be done by the
+ * task's own thread.
+ *
+ * @author Donal Fellows
+ */
+public class MetadataRecorder implements Closeable {
 	/** Standard timezone; Z(ulu) */
 	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
-	private static final int BUFFER_SIZE = 8192;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = MimeTypeDetector.HEADER_LENGTH;
+	/** How many file records to hold in memory before spilling to disk. */
+	private static final int RUN_SIZE = 8192;
+	/** How far the file records are indented in the JSON manifest. */
+	private static final String RECORD_INDENT = "        ";
+	private static final Counter bytesHashed = Metrics.counter(
+			"hashed_bytes_total", "Bytes read to compute file checksums.");
+	private static final Counter filesCharacterised = Metrics.counter(
+			"characterised_files_total",
+			"Files that have had checksums and types computed.");
 
-	// Thread-safe: http://stackoverflow.com/a/11163920/301832
-	private final Tika tika;
+	private final MimeTypeDetector detector;
 
-	private final String timestamp;
 	/**
-	 * ISO8601 timestamp formatter. DO NOT share between instances; not
-	 * thread-safe.
+	 * ISO8601 timestamp formatter. One per thread, as {@link SimpleDateFormat}
+	 * isn't thread-safe.
 	 */
-	private final DateFormat ISO8601;
-	private final Map<String, JSONObject> files;
+	private static final ThreadLocal<DateFormat> ISO8601 = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+			df.setTimeZone(UTC);
+			return df;
+		}
+	};
+
+	private final String timestamp;
+	private final ExternalSort<FileRecord> files;
 	private final JSONObject o;
 	private User user;
 	private Assay assay;
 	private Study study;
-	private StringBuilder csvBuffer;
-	private CSVPrinter csv;
-	private Map<String, CSVRow> csvRows = new HashMap<>();
 	private JSONObject openbisExperiment;
 	private Object openbisExperimentID;
 	private Object openbisExperimentURL;
 	private final String project;
 	private final String notes;
-	private final Map<String, String> filetypeMap = new HashMap<>();
-
-	private class CSVRow implements Comparable<CSVRow> {
-		CSVRow(File archived, File source, String sha1, String md5,
-				String mimetype, long size, Date time, String cifs,
-				URI openbis) {
-			this.archived = archived.getAbsolutePath();
-			this.source = source.getAbsolutePath();
-			this.sha1 = sha1;
-			this.md5 = md5;
-			this.mimetype = mimetype;
-			this.size = size;
-			this.time = time;
-			this.cifs = cifs;
-			this.openbis = openbis;
-			this.seek = "";
-		}
-
-		String sha1, source;
-		Object archived, md5, mimetype, size, time, cifs, openbis, seek;
-
-		void write() {
-			addRecord(getExperiment().url, getUser().url, openbisExperimentID,
-					openbisExperimentURL, timestamp, archived, source, sha1,
-					md5, mimetype, size, ISO8601.format(time), cifs, seek,
-					project, notes, openbis);
+	private final Map<String, String> seekLocations = new ConcurrentHashMap<>();
+	private final ManifestId idV2 = new ManifestId();
+	/** The interned directory parts of the file records. */
+	private final ConcurrentMap<String, String> prefixes = new ConcurrentHashMap<>();
+	/** How file records are written to the spool. */
+	private final Codec<FileRecord> codec = new Codec<FileRecord>() {
+		@Override
+		public void write(DataOutputStream out, FileRecord item)
+				throws IOException {
+			item.write(out);
 		}
 
 		@Override
-		public int compareTo(CSVRow o) {
-			int cmp = sha1.compareTo(o.sha1);
-			if (cmp == 0)
-				cmp = source.compareTo(o.source);
-			return cmp;
+		public FileRecord read(DataInputStream in) throws IOException {
+			return FileRecord.read(in, prefixes);
 		}
-	}
+	};
 
 	public MetadataRecorder(Tika tika, Project project, String notes) {
-		ISO8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-		ISO8601.setTimeZone(UTC);
-		this.tika = tika;
+		this(new MimeTypeDetector(tika), project, notes, null);
+	}
+
+	public MetadataRecorder(Tika tika, Project project, String notes,
+			File spoolDir) {
+		this(new MimeTypeDetector(tika), project, notes, spoolDir);
+	}
+
+	/**
+	 * @param detector
+	 *            The type detector. May be shared between recorders.
+	 * @param project
+	 *            The project that the files belong to.
+	 * @param notes
+	 *            The user's notes on the files.
+	 * @param spoolDir
+	 *            Where to spool the per-file records. If <tt>null</tt>, the
+	 *            system temporary directory is used.
+	 */
+	MetadataRecorder(MimeTypeDetector detector, Project project,
+			String notes, File spoolDir) {
+		this.detector = detector;
 		this.project = (project != null ? project.name : null);
 		this.notes = notes;
 
-		timestamp = ISO8601.format(new Date());
+		timestamp = ISO8601.get().format(new Date());
 		o = new JSONObject();
 		o.put(ID, "");
 		o.put(TIME, "");
@@ -132,59 +171,74 @@ public class MetadataRecorder {
 		if (this.project != null)
 			o.put(FILE_PROJECT, this.project);
 		o.put(FILE_NOTES, notes);
-		files = new HashMap<>();
-		csvBuffer = new StringBuilder();
-		try {
-			csv = new CSVPrinter(csvBuffer, CSVFormat.TDF);
-		} catch (IOException e) {
-			throw new RuntimeException("unexpected IO failure", e);
-		}
-		addRecord(EXPERIMENT, USER, EXP_OPENBIS_ID, EXP_OPENBIS_URL, TIME,
-				FILE_ARCHIVE, FILE_ORIGIN, FILE_SHA1, FILE_MD5, FILE_MIME,
-				FILE_SIZE, FILE_TIME, FILE_CIFS, FILE_SEEK_URL, FILE_PROJECT,
-				FILE_NOTES, FILE_OPENBIS_URL);
+		files = new ExternalSort<>(spoolDir, codec, FileRecord.ORDER, RUN_SIZE);
 	}
 
 	/**
-	 * Force there to be exactly 11 columns in the CSV.
+	 * Force there to be exactly 17 columns in the CSV.
 	 */
-	private void addRecord(Object a1, Object a2, Object a3, Object a4,
-			Object a5, Object a6, Object a7, Object a8, Object a9, Object a10,
-			Object a11, Object a12, Object a13, Object a14, Object a15,
-			Object a16, Object a17) {
-		try {
-			csv.printRecord(a1, a2, a3, a4, a5, a6, a7, a8, a9, a10, a11, a12,
-					a13, a14, a15, a16, a17);
-		} catch (IOException e) {
-			throw new RuntimeException("unexpected IO failure", e);
-		}
+	private static void addRecord(CSVPrinter csv, Object a1, Object a2,
+			Object a3, Object a4, Object a5, Object a6, Object a7, Object a8,
+			Object a9, Object a10, Object a11, Object a12, Object a13,
+			Object a14, Object a15, Object a16, Object a17) throws IOException {
+		csv.printRecord(a1, a2, a3, a4, a5, a6, a7, a8, a9, a10, a11, a12,
+				a13, a14, a15, a16, a17);
 	}
 
 	protected final void addFile(String sha1, String md5, String name,
 			String mimetype, File source, File archived, long size,
 			String cifs, URI openbis) {
-		Date time = new Date(source.lastModified());
-		String key = source.getAbsolutePath();
-		filetypeMap.put(key, mimetype);
-		JSONObject f = new JSONObject();
-		f.put(FILE_SHA1, sha1);
-		f.put(FILE_MD5, md5);
-		f.put(FILE_NAME, name);
-		f.put(FILE_MIME, mimetype);
-		f.put(FILE_ORIGIN, source.getAbsolutePath());
-		f.put(FILE_ARCHIVE, archived.getAbsolutePath());
-		f.put(FILE_TIME, ISO8601.format(time));
-		f.put(FILE_SIZE, size);
-		f.put(FILE_CIFS, cifs);
-		f.put(FILE_OPENBIS_URL, openbis);
-		files.put(key, f);
-		csvRows.put(key, new CSVRow(archived, source, sha1, md5, mimetype,
-				size, time, cifs, openbis));
+		addFile(Digest.unhex(sha1), Digest.unhex(md5), name, mimetype,
+				source, archived, size, cifs, openbis, null);
+	}
+
+	private void addFile(byte[] sha1, byte[] md5, String name,
+			String mimetype, File source, File archived, long size,
+			String cifs, URI openbis, Map<String, String> extracted) {
+		String origin = source.getAbsolutePath();
+		try {
+			files.add(new FileRecord(sha1, md5, name, mimetype, origin,
+					archived.getAbsolutePath(), size, source.lastModified(),
+					cifs, openbis == null ? null : openbis.toString(),
+					extracted == null ? null : new JSONObject(extracted)
+							.toString(), prefixes));
+		} catch (IOException e) {
+			throw new RuntimeException("unexpected IO failure", e);
+		}
+		idV2.add(origin, sha1);
 	}
 
 	/**
 	 * Add the given file to the metadata record with the given name. This is an
-	 * expensive operation.
+	 * expensive operation, but may be done for several files in parallel.
+	 * 
+	 * @param name
+	 *            The name of the file that should be used as the user-visible
+	 *            name.
+	 * @param source
+	 *            The original location of the file.
+	 * @param archived
+	 *            The file to add. Will have checksums computed and its MIME
+	 *            type determined.
+	 * @param cifs
+	 *            The direct location for the file on the filestore at the time
+	 *            that this record was created. Not guaranteed to stay relevant.
+	 * @param openbis
+	 *            The location on the OpenBIS DSS for the file. Persistent.
+	 * @return The MIME type of the file.
+	 * @throws IOException
+	 *             If anything goes wrong when computing checksums or MIME
+	 *             types.
+	 */
+	public String addFile(String name, File source, File archived,
+			String cifs, URI openbis) throws IOException {
+		return addFile(name, source, archived, cifs, openbis, null);
+	}
+
+	/**
+	 * Add the given file to the metadata record with the given name, together
+	 * with the instrument-specific metadata being extracted from it. This is
+	 * an expensive operation, but may be done for several files in parallel.
 	 * 
 	 * @param name
 	 *            The name of the file that should be used as the user-visible
@@ -199,26 +253,39 @@ public class MetadataRecorder {
 	 *            that this record was created. Not guaranteed to stay relevant.
 	 * @param openbis
 	 *            The location on the OpenBIS DSS for the file. Persistent.
-	 * @return The archive location to copy the file to.
+	 * @param extraction
+	 *            The extraction of instrument-specific metadata from the file,
+	 *            which is collected (within its time budget) once the
+	 *            checksums are done. May be <tt>null</tt>.
+	 * @return The MIME type of the file.
 	 * @throws IOException
 	 *             If anything goes wrong when computing checksums or MIME
 	 *             types.
 	 */
-	public void addFile(String name, File source, File archived, String cifs,
-			URI openbis) throws IOException {
+	public String addFile(String name, File source, File archived,
+			String cifs, URI openbis, Extraction extraction) throws IOException {
 		Digest sha1 = new Digest(SHA1);
 		Digest md5 = new Digest(MD5);
 		byte[] buffer = new byte[BUFFER_SIZE];
 		long size = source.length();
+		String type;
 		try (FileInputStream fis = new FileInputStream(archived)) {
-			int len;
-			while ((len = fis.read(buffer)) >= 0) {
+			// The first block is read in full, to detect the type from
+			int len = read(fis, buffer);
+			type = detector.detect(source.getName(), buffer, len);
+			do {
 				sha1.update(buffer, len);
 				md5.update(buffer, len);
-			}
+				bytesHashed.add(len);
+			} while ((len = fis.read(buffer)) >= 0);
 		}
-		addFile(sha1.toString(), md5.toString(), name, tika.detect(source),
-				source, archived, size, cifs, openbis);
+		filesCharacterised.inc();
+		Map<String, String> extracted = null;
+		if (extraction != null)
+			extracted = extraction.get();
+		addFile(sha1.digest(), md5.digest(), name, type, source, archived,
+				size, cifs, openbis, extracted);
+		return type;
 	}
 
 	public void setExperiment(Assay experiment) {
@@ -263,10 +330,6 @@ public class MetadataRecorder {
 		return user;
 	}
 
-	public String getFileType(File originFile) {
-		return filetypeMap.get(originFile.getAbsolutePath());
-	}
-
 	/**
 	 * Get the ID of the document. <strong>NB:</strong> this finalizes the
 	 * document the first time it is called.
@@ -274,73 +337,209 @@ public class MetadataRecorder {
 	 * @return The ID (<i>implementation detail:</i> computed from a SHA-1 hash
 	 *         of the file mapping)
 	 */
-	public String getId() {
+	public synchronized String getId() {
 		String id = o.getString(ID);
 		if (id.isEmpty()) {
-			ArrayList<JSONObject> files = new ArrayList<>(this.files.values());
-			sort(files, comparator);
-			JSONArray a = new JSONArray();
-			for (JSONObject f : files) {
-				a.put(f.get(FILE_ORIGIN));
-				a.put(f.get(FILE_SHA1));
+			/*
+			 * The hash of the JSON array of (origin, sha1) pairs, but without
+			 * ever building that array.
+			 */
+			final Digest digest = new Digest(SHA1).update("[");
+			try {
+				files.forEach(new Sink<FileRecord>() {
+					private String sep = "";
+
+					@Override
+					public void accept(FileRecord f) {
+						digest.update(sep + quote(f.getOrigin()) + ","
+								+ quote(Digest.hex(f.sha1)));
+						sep = ",";
+					}
+				});
+			} catch (IOException e) {
+				throw new RuntimeException("unexpected IO failure", e);
 			}
-			id = new Digest(SHA1).update(a.toString()).toString();
+			id = digest.update("]").toString();
 			o.put(TIME, timestamp);
 			o.put(ID, id);
-			o.put(FILES, files);
+			o.put(ID_V2, idV2.toString());
 			o.put("OpenBISExperiment", openbisExperiment);
 		}
 		return id;
 	}
 
+	/**
+	 * Get the version 2 ID of the document. Unlike {@link #getId()}, this is
+	 * maintained as files are added, so it is cheap to get and does not
+	 * finalize the document.
+	 *
+	 * @return The ID (<i>implementation detail:</i> see {@link ManifestId})
+	 */
+	public String getIdV2() {
+		return idV2.toString();
+	}
+
 	/**
 	 * Get the JSON document. <strong>NB:</strong> this finalizes the document
-	 * the first time it is called.
+	 * the first time it is called. The whole document is built in memory; use
+	 * {@link #writeManifest(File)} where possible.
 	 * 
 	 * @return JSON in a string.
 	 */
 	public String get() {
+		StringWriter w = new StringWriter();
+		try {
+			writeManifest(w);
+		} catch (IOException e) {
+			throw new RuntimeException("unexpected IO failure", e);
+		}
+		return w.toString();
+	}
+
+	/**
+	 * Write the JSON document to a file, one file record at a time.
+	 * <strong>NB:</strong> this finalizes the document.
+	 *
+	 * @param manifest
+	 *            The file to write.
+	 * @throws IOException
+	 *             If writing fails.
+	 */
+	public void writeManifest(File manifest) throws IOException {
+		try (Writer w = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(manifest), UTF8))) {
+			writeManifest(w);
+		}
+	}
+
+	/**
+	 * Write the JSON document, one file record at a time.
+	 * <strong>NB:</strong> this finalizes the document.
+	 *
+	 * @param out
+	 *            Where to write the document.
+	 * @throws IOException
+	 *             If writing fails.
+	 */
+	public synchronized void writeManifest(final Writer out) throws IOException {
 		getId();
-		return o.toString(4);
+		// The header is the document without its closing brace
+		String header = o.toString(4);
+		out.write(header.substring(0, header.lastIndexOf('}')).replaceFirst(
+				"\\s+$", ""));
+		out.write(",\n    " + quote(FILES) + ": [");
+		final DateFormat iso8601 = ISO8601.get();
+		files.forEach(new Sink<FileRecord>() {
+			private String sep = "\n";
+
+			@Override
+			public void accept(FileRecord f) throws IOException {
+				out.write(sep);
+				out.write(RECORD_INDENT);
+				out.write(withSeekLocation(f.toJSON(iso8601)).toString(4)
+						.replace("\n", "\n" + RECORD_INDENT));
+				sep = ",\n";
+			}
+		});
+		out.write("\n    ]\n}");
 	}
 
 	/**
-	 * Get the CSV document.
+	 * Write the {@linkplain BinaryManifest binary form} of the document.
+	 * <strong>NB:</strong> this finalizes the document. The SEEK locations of
+	 * the files are not included.
+	 *
+	 * @param manifest
+	 *            The file to write.
+	 * @throws IOException
+	 *             If writing fails.
+	 */
+	public synchronized void writeBinaryManifest(File manifest)
+			throws IOException {
+		getId();
+		BinaryManifest.write(manifest, o, files);
+	}
+
+	private JSONObject withSeekLocation(JSONObject f) {
+		String seek = seekLocations.get(f.getString(FILE_ORIGIN));
+		if (seek != null)
+			f.put(FILE_SEEK_URL, seek);
+		return f;
+	}
+
+	/**
+	 * Discard the spooled file records. The manifests cannot be written after
+	 * this.
+	 */
+	@Override
+	public void close() {
+		files.close();
+	}
+
+	/**
+	 * Get the CSV document. The whole document is built in memory; use
+	 * {@link #writeCSV(File)} where possible.
 	 * 
 	 * @return CSV in a string.
 	 */
-	public synchronized String getCSV() {
-		if (csvRows != null) {
-			List<CSVRow> rows = new ArrayList<>(csvRows.values());
-			csvRows = null;
-			sort(rows);
-			for (CSVRow r : rows)
-				r.write();
+	public String getCSV() {
+		StringWriter w = new StringWriter();
+		try {
+			writeCSV(w);
+		} catch (IOException e) {
+			throw new RuntimeException("unexpected IO failure", e);
 		}
-		return csvBuffer.toString();
+		return w.toString();
 	}
 
 	/**
-	 * How to compare two entries describing the metadata of individual files
-	 * for ordering. We only need one instance of this. It's entirely
-	 * thread-safe.
+	 * Write the CSV (actually tab-separated) document to a file, one row at a
+	 * time.
+	 *
+	 * @param manifest
+	 *            The file to write.
+	 * @throws IOException
+	 *             If writing fails.
 	 */
-	private static final Comparator<JSONObject> comparator = new MetadataFileComparator();
+	public void writeCSV(File manifest) throws IOException {
+		try (Writer w = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(manifest), UTF8))) {
+			writeCSV(w);
+		}
+	}
 
-	private static class MetadataFileComparator implements
-			Comparator<JSONObject> {
-		@Override
-		public int compare(JSONObject o1, JSONObject o2) {
-			String s1 = o1.getString(FILE_SHA1);
-			String s2 = o2.getString(FILE_SHA1);
-			int cmp = s1.compareTo(s2);
-			if (cmp == 0) {
-				s1 = o1.getString(FILE_ORIGIN);
-				s2 = o2.getString(FILE_ORIGIN);
-				cmp = s1.compareTo(s2);
+	/**
+	 * Write the CSV (actually tab-separated) document, one row at a time. The
+	 * rows are in the same order as the file records of the JSON document.
+	 *
+	 * @param out
+	 *            Where to write the document.
+	 * @throws IOException
+	 *             If writing fails.
+	 */
+	public synchronized void writeCSV(Writer out) throws IOException {
+		final CSVPrinter csv = new CSVPrinter(out, CSVFormat.TDF);
+		addRecord(csv, EXPERIMENT, USER, EXP_OPENBIS_ID, EXP_OPENBIS_URL,
+				TIME, FILE_ARCHIVE, FILE_ORIGIN, FILE_SHA1, FILE_MD5,
+				FILE_MIME, FILE_SIZE, FILE_TIME, FILE_CIFS, FILE_SEEK_URL,
+				FILE_PROJECT, FILE_NOTES, FILE_OPENBIS_URL);
+		final Object experiment = (assay == null ? null : assay.url);
+		final Object uploader = (user == null ? null : user.url);
+		final DateFormat iso8601 = ISO8601.get();
+		files.forEach(new Sink<FileRecord>() {
+			@Override
+			public void accept(FileRecord f) throws IOException {
+				String src = f.getOrigin();
+				String seek = seekLocations.get(src);
+				addRecord(csv, experiment, uploader, openbisExperimentID,
+						openbisExperimentURL, timestamp, f.getArchive(), src,
+						Digest.hex(f.sha1), Digest.hex(f.md5), f.mimetype,
+						f.size, iso8601.format(new Date(f.time)), f.getCifs(),
+						seek == null ? "" : seek, project, notes,
+						f.getOpenBIS());
 			}
-			return cmp;
-		}
+		});
+		csv.flush();
 	}
 
 	private static String emptyIfNull(Object o) {
@@ -360,11 +559,6 @@ public class MetadataRecorder {
 	}
 
 	public void setSeekLocation(Entry ent, URL seekURL) {
-		JSONObject obj = files.get(ent.getName());
-		if (obj != null)
-			obj.put(FILE_SEEK_URL, seekURL.toString());
-		CSVRow row = csvRows.get(ent.getName());
-		if (row != null)
-			row.seek = seekURL.toString();
+		seekLocations.put(ent.getFile().getAbsolutePath(), seekURL.toString());
 	}
 }
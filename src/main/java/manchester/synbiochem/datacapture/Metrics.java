@@ -0,0 +1,273 @@
+package manchester.synbiochem.datacapture;
+
+import static java.lang.System.nanoTime;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide registry of operational metrics, rendered in the Prometheus
+ * text exposition format by the <tt>/metrics</tt> resource. Counters and
+ * histograms are updated directly from where the work is done; gauges are
+ * callbacks registered by the beans that own the state being measured.
+ * <p>
+ * Rates (e.g., bytes copied per second) are not computed here; they're
+ * derived by the monitoring system from the counters.
+ *
+ * @author Donal Fellows
+ */
+final class Metrics {
+	private Metrics() {
+	}
+
+	/** Prefix applied to the names of all metrics. */
+	static final String PREFIX = "datacapture_";
+	/** Default histogram buckets for remote calls, in seconds. */
+	static final double[] CALL_BUCKETS = { 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5,
+			5, 10, 30, 60 };
+	/** Default histogram buckets for long-running work, in seconds. */
+	static final double[] WORK_BUCKETS = { 1, 5, 15, 60, 300, 900, 1800, 3600,
+			7200, 14400, 43200 };
+
+	private static final Map<String, Family> families = new LinkedHashMap<>();
+
+	/** A source of the current value of a gauge. */
+	interface Gauge {
+		double value();
+	}
+
+	/** A monotonically increasing count. */
+	static final class Counter {
+		private final AtomicLong value = new AtomicLong();
+
+		void inc() {
+			value.incrementAndGet();
+		}
+
+		void add(long delta) {
+			value.addAndGet(delta);
+		}
+
+		long get() {
+			return value.get();
+		}
+	}
+
+	/** A distribution of observed values, in fixed cumulative buckets. */
+	static final class Histogram {
+		private final double[] bounds;
+		private final AtomicLongArray counts;
+		private final AtomicLong count = new AtomicLong();
+		/** Sum of observations, in nanounits so it can be held atomically. */
+		private final AtomicLong sum = new AtomicLong();
+
+		Histogram(double[] bounds) {
+			this.bounds = bounds;
+			this.counts = new AtomicLongArray(bounds.length);
+		}
+
+		void observe(double value) {
+			for (int i = 0; i < bounds.length; i++)
+				if (value <= bounds[i]) {
+					counts.incrementAndGet(i);
+					break;
+				}
+			count.incrementAndGet();
+			sum.addAndGet((long) (value * 1e9));
+		}
+
+		/**
+		 * Record the time since a start point.
+		 *
+		 * @param startNanos
+		 *            The start, as given by {@link System#nanoTime()}.
+		 */
+		void observeSince(long startNanos) {
+			observe((nanoTime() - startNanos) / 1e9);
+		}
+	}
+
+	private static final class Family {
+		final String name, help, type;
+		final Map<String, Object> children = new LinkedHashMap<>();
+
+		Family(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private static synchronized Object child(String name, String help,
+			String type, String labels, Object child) {
+		Family f = families.get(name);
+		if (f == null)
+			families.put(name, f = new Family(name, help, type));
+		else if (!f.type.equals(type))
+			throw new IllegalArgumentException(name + " is a " + f.type);
+		Object existing = f.children.get(labels);
+		if (existing != null && !(child instanceof Gauge))
+			return existing;
+		f.children.put(labels, child);
+		return child;
+	}
+
+	/**
+	 * Get a counter, creating it if necessary.
+	 *
+	 * @param name
+	 *            The name of the metric, without the {@link #PREFIX}.
+	 * @param help
+	 *            What the metric counts.
+	 * @param labels
+	 *            The label set, e.g., <tt>cache="users",result="hit"</tt>;
+	 *            empty for none.
+	 */
+	static Counter counter(String name, String help, String labels) {
+		return (Counter) child(PREFIX + name, help, "counter", labels,
+				new Counter());
+	}
+
+	static Counter counter(String name, String help) {
+		return counter(name, help, "");
+	}
+
+	/**
+	 * Get the counter of hits or misses in one of the service's caches. The
+	 * hit rate is derived from the pair of these.
+	 *
+	 * @param cache
+	 *            The name of the cache.
+	 * @param hit
+	 *            Whether to get the hit counter or the miss counter.
+	 */
+	static Counter cacheLookups(String cache, boolean hit) {
+		return counter("cache_requests_total",
+				"Lookups in the service's caches, by outcome.", "cache=\""
+						+ cache + "\",result=\"" + (hit ? "hit" : "miss")
+						+ "\"");
+	}
+
+	/**
+	 * Get a histogram, creating it if necessary.
+	 *
+	 * @param name
+	 *            The name of the metric, without the {@link #PREFIX}.
+	 * @param help
+	 *            What the metric measures.
+	 * @param buckets
+	 *            The upper bounds of the buckets, in increasing order.
+	 * @param labels
+	 *            The label set; empty for none.
+	 */
+	static Histogram histogram(String name, String help, double[] buckets,
+			String labels) {
+		return (Histogram) child(PREFIX + name, help, "histogram", labels,
+				new Histogram(buckets));
+	}
+
+	static Histogram histogram(String name, String help, double[] buckets) {
+		return histogram(name, help, buckets, "");
+	}
+
+	/**
+	 * Register a gauge, replacing any existing gauge with the same name and
+	 * labels.
+	 *
+	 * @param name
+	 *            The name of the metric, without the {@link #PREFIX}.
+	 * @param help
+	 *            What the metric measures.
+	 * @param labels
+	 *            The label set; empty for none.
+	 * @param gauge
+	 *            Where to get the value from.
+	 */
+	static void gauge(String name, String help, String labels, Gauge gauge) {
+		child(PREFIX + name, help, "gauge", labels, gauge);
+	}
+
+	static void gauge(String name, String help, Gauge gauge) {
+		gauge(name, help, "", gauge);
+	}
+
+	/**
+	 * Render all metrics.
+	 *
+	 * @return The metrics in Prometheus text format, version 0.0.4.
+	 */
+	static String render() {
+		List<Family> snapshot;
+		Map<Family, Map<String, Object>> children = new LinkedHashMap<>();
+		synchronized (Metrics.class) {
+			snapshot = new ArrayList<>(families.values());
+			for (Family f : snapshot)
+				children.put(f, new LinkedHashMap<>(f.children));
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Family f : snapshot) {
+			sb.append("# HELP ").append(f.name).append(' ').append(f.help)
+					.append('\n');
+			sb.append("# TYPE ").append(f.name).append(' ').append(f.type)
+					.append('\n');
+			for (Map.Entry<String, Object> e : children.get(f).entrySet())
+				renderChild(sb, f.name, e.getKey(), e.getValue());
+		}
+		return sb.toString();
+	}
+
+	private static void renderChild(StringBuilder sb, String name,
+			String labels, Object child) {
+		if (child instanceof Counter) {
+			sample(sb, name, labels, ((Counter) child).get());
+		} else if (child instanceof Gauge) {
+			double value;
+			try {
+				value = ((Gauge) child).value();
+			} catch (RuntimeException e) {
+				value = Double.NaN;
+			}
+			sample(sb, name, labels, value);
+		} else if (child instanceof Histogram) {
+			Histogram h = (Histogram) child;
+			String sep = labels.isEmpty() ? "" : labels + ",";
+			long cumulative = 0;
+			for (int i = 0; i < h.bounds.length; i++) {
+				cumulative += h.counts.get(i);
+				sample(sb, name + "_bucket", sep + "le=\"" + h.bounds[i] + "\"",
+						cumulative);
+			}
+			long count = h.count.get();
+			sample(sb, name + "_bucket", sep + "le=\"+Inf\"", count);
+			sample(sb, name + "_sum", labels, h.sum.get() / 1e9);
+			sample(sb, name + "_count", labels, count);
+		}
+	}
+
+	private static void sample(StringBuilder sb, String name, String labels,
+			Object value) {
+		sb.append(name);
+		if (!labels.isEmpty())
+			sb.append('{').append(labels).append('}');
+		sb.append(' ');
+		if (value instanceof Double)
+			sb.append(formatDouble((Double) value));
+		else
+			sb.append(value);
+		sb.append('\n');
+	}
+
+	private static String formatDouble(double d) {
+		if (Double.isNaN(d))
+			return "NaN";
+		if (Double.isInfinite(d))
+			return d > 0 ? "+Inf" : "-Inf";
+		if (d == Math.rint(d) && Math.abs(d) < 1e15)
+			return Long.toString((long) d);
+		return Double.toString(d);
+	}
+}
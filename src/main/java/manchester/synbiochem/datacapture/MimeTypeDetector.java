@@ -0,0 +1,91 @@
+package manchester.synbiochem.datacapture;
+
+import static java.util.Arrays.copyOf;
+import static manchester.synbiochem.datacapture.Metrics.cacheLookups;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import manchester.synbiochem.datacapture.Metrics.Counter;
+
+import org.apache.tika.Tika;
+
+/**
+ * Works out the MIME types of files from their names and their leading bytes,
+ * which the caller has already read (to compute checksums), so detection does
+ * no I/O of its own. Instrument runs are thousands of files of a few kinds, so
+ * the results are remembered in a bounded LRU cache keyed by the file's
+ * extension and its first few bytes (its magic signature).
+ * <p>
+ * Textual and XML types are not cached, as Tika refines those by looking
+ * further into the content than the signature.
+ *
+ * @author Donal Fellows
+ */
+class MimeTypeDetector {
+	/** How many leading bytes of a file Tika should be given to look at. */
+	static final int HEADER_LENGTH = 65536;
+	/** How many leading bytes of a file form its signature. */
+	private static final int SIGNATURE_LENGTH = 32;
+	private static final int CACHE_SIZE = 1024;
+	private static final Counter hits = cacheLookups("mime_types", true);
+	private static final Counter misses = cacheLookups("mime_types", false);
+
+	// Thread-safe: http://stackoverflow.com/a/11163920/301832
+	private final Tika tika;
+	private final Map<String, String> cache = new LinkedHashMap<String, String>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	MimeTypeDetector(Tika tika) {
+		this.tika = tika;
+	}
+
+	/**
+	 * Detect the type of a file. Safe to call from several threads at once.
+	 *
+	 * @param name
+	 *            The name of the file.
+	 * @param header
+	 *            A buffer holding the leading bytes of the file. Not retained
+	 *            or modified.
+	 * @param length
+	 *            How many bytes of the buffer are valid; should be
+	 *            {@link #HEADER_LENGTH} unless the file is shorter.
+	 * @return The MIME type.
+	 */
+	String detect(String name, byte[] header, int length) {
+		String key = key(name, header, length);
+		String type;
+		synchronized (cache) {
+			type = cache.get(key);
+		}
+		if (type != null) {
+			hits.inc();
+			return type;
+		}
+		misses.inc();
+		type = tika.detect(copyOf(header, length), name);
+		if (!type.startsWith("text/") && !type.endsWith("xml"))
+			synchronized (cache) {
+				cache.put(key, type);
+			}
+		return type;
+	}
+
+	private static String key(String name, byte[] header, int length) {
+		int dot = name.lastIndexOf('.');
+		String ext = (dot < 0 ? "" : name.substring(dot + 1).toLowerCase());
+		StringBuilder sb = new StringBuilder(ext).append('/');
+		for (int i = 0; i < Math.min(length, SIGNATURE_LENGTH); i++)
+			sb.append(Digest.HEX[(header[i] >> 4) & 0xf]).append(
+					Digest.HEX[header[i] & 0xf]);
+		return sb.toString();
+	}
+}
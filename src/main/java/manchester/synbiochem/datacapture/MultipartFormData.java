@@ -1,5 +1,23 @@
 package manchester.synbiochem.datacapture;
 
+import static java.nio.file.Files.copy;
+import static java.nio.file.Files.newBufferedReader;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A <tt>multipart/form-data</tt> document. Fields are held in memory, but the
+ * content of file parts may be taken from files on disk, in which case it is
+ * only read when the form is {@linkplain #writeTo(OutputStream) written}.
+ */
 class MultipartFormData {
 	private static final String DASH = "--";
 	private static final String N = "\r\n";
@@ -7,17 +25,56 @@ class MultipartFormData {
 	private static final String CD = "Content-Disposition: form-data; name=\"";
 	private final StringBuilder b = new StringBuilder();
 	private final String token;
-	private byte[] bytes;
+	/** The parts of the form: either <tt>byte[]</tt> or {@link File}. */
+	private final List<Object> parts = new ArrayList<>();
+	private Long length;
 
 	public MultipartFormData(String content) {
+		this(Collections.singleton(content));
+	}
+
+	/**
+	 * Make a form that will contain the given file as content. The file is
+	 * scanned to choose a boundary token that it does not contain.
+	 *
+	 * @param content
+	 *            The text file that will be uploaded.
+	 * @throws IOException
+	 *             If the file can't be read.
+	 */
+	public MultipartFormData(File content) throws IOException {
+		this(linesContaining(content, PREFIX));
+	}
+
+	private MultipartFormData(Collection<String> contents) {
 		String token;
 		int tokenid = 10203040;
 		do {
 			token = PREFIX + (tokenid++);
-		} while (content.indexOf(token) >= 0);
+		} while (contains(contents, token));
 		this.token = token;
 	}
 
+	private static boolean contains(Collection<String> contents, String token) {
+		for (String content : contents)
+			if (content.indexOf(token) >= 0)
+				return true;
+		return false;
+	}
+
+	private static List<String> linesContaining(File file, String prefix)
+			throws IOException {
+		List<String> lines = new ArrayList<>();
+		try (BufferedReader r = newBufferedReader(file.toPath(),
+				SeekConnector.UTF8)) {
+			String line;
+			while ((line = r.readLine()) != null)
+				if (line.contains(prefix))
+					lines.add(line);
+		}
+		return lines;
+	}
+
 	private void addSeparator(boolean terminal) {
 		b.append(DASH).append(token);
 		if (terminal)
@@ -35,34 +92,96 @@ class MultipartFormData {
 				.append(N);
 	}
 
-	public void addContent(String field, String name, String type,
-			String content) {
+	private void addContentHeader(String field, String name, String type) {
 		addSeparator(false);
 		b.append(CD).append(field).append("\"; filename=\"").append(name)
 				.append("\"").append(N).append("Content-Type: ")
 				.append(type).append(N)
-				.append("Content-Transfer-Encoding: binary" + N + N)
-				.append(content).append(N);
+				.append("Content-Transfer-Encoding: binary" + N + N);
+	}
+
+	public void addContent(String field, String name, String type,
+			String content) {
+		addContentHeader(field, name, type);
+		b.append(content).append(N);
+	}
+
+	/**
+	 * Add a file part whose content is streamed from disk when the form is
+	 * written.
+	 */
+	public void addContent(String field, String name, String type,
+			File content) {
+		addContentHeader(field, name, type);
+		flush();
+		parts.add(content);
+		b.append(N);
+	}
+
+	private void flush() {
+		if (b.length() > 0) {
+			parts.add(b.toString().getBytes(SeekConnector.UTF8));
+			b.setLength(0);
+		}
 	}
 
 	public void build() {
 		addSeparator(true);
-		bytes = b.toString().getBytes(SeekConnector.UTF8);
+		flush();
+		long len = 0;
+		for (Object part : parts)
+			if (part instanceof File)
+				len += ((File) part).length();
+			else
+				len += ((byte[]) part).length;
+		length = len;
 	}
 
 	public String contentType() {
 		return "multipart/form-data; boundary=" + token;
 	}
 
+	/** @return The size of the form, in bytes. */
+	public long size() {
+		if (length == null)
+			throw new IllegalStateException("form must be built before use");
+		return length;
+	}
+
 	public String length() {
-		if (bytes == null)
+		return Long.toString(size());
+	}
+
+	/**
+	 * Write the form.
+	 *
+	 * @param out
+	 *            Where to write the form to.
+	 * @throws IOException
+	 *             If writing fails, or if a file part can't be read.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		if (length == null)
 			throw new IllegalStateException("form must be built before use");
-		return Integer.toString(bytes.length);
+		for (Object part : parts)
+			if (part instanceof File)
+				copy(((File) part).toPath(), out);
+			else
+				out.write((byte[]) part);
 	}
 
+	/**
+	 * @return The whole form. Avoid for forms with large file parts.
+	 */
 	public byte[] content() {
-		if (bytes == null)
+		if (length == null)
 			throw new IllegalStateException("form must be built before use");
-		return bytes;
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) size());
+		try {
+			writeTo(out);
+		} catch (IOException e) {
+			throw new RuntimeException("unexpected IO failure", e);
+		}
+		return out.toByteArray();
 	}
-}
\ No newline at end of file
+}
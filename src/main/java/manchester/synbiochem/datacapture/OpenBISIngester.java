@@ -1,9 +1,11 @@
 package manchester.synbiochem.datacapture;
 
 import static java.lang.String.format;
+import static java.lang.System.nanoTime;
 import static java.lang.Thread.sleep;
 import static java.nio.charset.Charset.defaultCharset;
 import static java.nio.file.Files.readAllLines;
+import static manchester.synbiochem.datacapture.Metrics.WORK_BUCKETS;
 
 import java.io.File;
 import java.io.IOException;
@@ -12,6 +14,8 @@ import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
 
+import manchester.synbiochem.datacapture.Metrics.Histogram;
+
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,11 +35,15 @@ public class OpenBISIngester {
 	public static final String OUT_PREFIX = ".MARKER_is_ingested_";
 
 	private Log log = LogFactory.getLog(OpenBISIngester.class);
+	private static final Histogram ingestTime = Metrics.histogram(
+			"openbis_ingest_duration_seconds",
+			"Time taken to hand a directory to OpenBIS and have it ingested.",
+			WORK_BUCKETS);
 
 	@Value("${openbis.dssUrlRootPattern}")
-	private String datasetRootPattern;
+	String datasetRootPattern;
 	@Value("${openbis.experimentUrlPattern}")
-	private String experimentPattern;
+	String experimentPattern;
 
 	@Value("${openbis.dropbox}")
 	public void setOpenbisDropbox(String json) {
@@ -74,6 +82,7 @@ public class OpenBISIngester {
 			return null;
 		}
 		log.info("dropbox located at " + dropbox);
+		long t0 = nanoTime();
 		File target = copyToOpenBIS(source, dropbox);
 		File outMarker = new File(dropbox, OUT_PREFIX + source.getName());
 		try {
@@ -81,6 +90,7 @@ public class OpenBISIngester {
 			return parseIngestionResult(source, outMarker, ticks);
 		} finally {
 			outMarker.delete();
+			ingestTime.observeSince(t0);
 		}
 	}
 
@@ -0,0 +1,119 @@
+package manchester.synbiochem.datacapture;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Date;
+
+import manchester.synbiochem.datacapture.SeekConnector.Assay;
+import manchester.synbiochem.datacapture.SeekConnector.User;
+import manchester.synbiochem.datacapture.TaskQueue.Submission;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A task that another service in the {@link Cluster} holds, as that service
+ * last published it, or a task that no service has claimed yet. The record of
+ * such a task is its {@linkplain FinishedTask#toJSON() record in the history}
+ * plus its key, status, progress and whether it is done.
+ *
+ * @author Donal Fellows
+ */
+class RemoteTask implements TaskStore.Task {
+	/** The status of a task that no service has claimed. */
+	static final String UNCLAIMED = "queued (unclaimed)";
+
+	private final FinishedTask task;
+	private final String status;
+	private final Double progress;
+	private final boolean done;
+
+	RemoteTask(JSONObject record) throws MalformedURLException {
+		task = new FinishedTask(record.getString("key"), record);
+		status = record.optString("status", null);
+		progress = record.has("progress") ? record.getDouble("progress")
+				: null;
+		done = record.optBoolean("done");
+	}
+
+	/**
+	 * Describe one of this service's tasks for the others.
+	 *
+	 * @param task
+	 *            The task.
+	 * @param status
+	 *            What the task is doing.
+	 */
+	static JSONObject record(ActiveTask task, String status) {
+		return task.toFinished().toJSON().put("key", task.getKey())
+				.put("status", status).put("progress", task.getProgress())
+				.put("done", task.isDone());
+	}
+
+	/**
+	 * Describe a task that no service has claimed.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @param s
+	 *            What the task was submitted with.
+	 */
+	static JSONObject record(String key, Submission s) {
+		return new JSONObject().put("key", key)
+				.put("user", SeekJson.toJSON(s.user))
+				.put("assay", SeekJson.toJSON(s.assay))
+				.put("dirs", new JSONArray(s.dirs)).put("status", UNCLAIMED)
+				.put("done", false);
+	}
+
+	@Override
+	public String getKey() {
+		return task.getKey();
+	}
+
+	@Override
+	public boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public Double getProgress() {
+		return progress;
+	}
+
+	@Override
+	public String getStatus() {
+		return status;
+	}
+
+	@Override
+	public User getUser() {
+		return task.getUser();
+	}
+
+	@Override
+	public Assay getExperiment() {
+		return task.getExperiment();
+	}
+
+	@Override
+	public Date getStart() {
+		return task.getStart();
+	}
+
+	@Override
+	public Date getFinish() {
+		return task.getFinish();
+	}
+
+	@Override
+	public Collection<String> getDirectories() {
+		return task.getDirectories();
+	}
+
+	@Override
+	public URL getCreatedAsset() {
+		return task.getCreatedAsset();
+	}
+}
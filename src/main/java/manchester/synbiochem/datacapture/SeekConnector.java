@@ -1,14 +1,18 @@
 package manchester.synbiochem.datacapture;
 
 import static java.lang.String.format;
+import static java.lang.System.nanoTime;
 import static java.net.Proxy.Type.HTTP;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.sort;
 import static java.util.regex.Pattern.compile;
 import static javax.ws.rs.core.Response.Status.fromStatusCode;
+import static manchester.synbiochem.datacapture.Metrics.CALL_BUCKETS;
+import static manchester.synbiochem.datacapture.Metrics.cacheLookups;
 import static org.apache.commons.codec.binary.Base64.encodeBase64String;
 import static org.apache.commons.io.IOUtils.readLines;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -41,6 +45,9 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
+import manchester.synbiochem.datacapture.Metrics.Counter;
+import manchester.synbiochem.datacapture.Metrics.Histogram;
+
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -235,6 +242,20 @@ public class SeekConnector {
 		this.proxy = new Proxy(HTTP, new InetSocketAddress(split[0], port));
 	}
 
+	private static final String SEEK_CALL = "seek_request_duration_seconds";
+	private static final String SEEK_CALL_HELP = "Time taken by requests to SEEK.";
+	private static final Histogram getTime = Metrics.histogram(SEEK_CALL,
+			SEEK_CALL_HELP, CALL_BUCKETS, "method=\"GET\"");
+	private static final Histogram postTime = Metrics.histogram(SEEK_CALL,
+			SEEK_CALL_HELP, CALL_BUCKETS, "method=\"POST\"");
+
+	private static final Counter userHits = cacheLookups("seek_users", true);
+	private static final Counter userMisses = cacheLookups("seek_users", false);
+	private static final Counter assayHits = cacheLookups("seek_assays", true);
+	private static final Counter assayMisses = cacheLookups("seek_assays", false);
+	private static final Counter studyHits = cacheLookups("seek_studies", true);
+	private static final Counter studyMisses = cacheLookups("seek_studies", false);
+
 	private HttpURLConnection connect(String suffix) throws IOException {
 		log.debug("getting " + suffix);
 		URL url = new URL(seek, suffix);
@@ -257,8 +278,11 @@ public class SeekConnector {
 		DocumentBuilder builder = parser();
 		HttpURLConnection conn = connect(suffix);
 		conn.setInstanceFollowRedirects(true);
+		long t0 = nanoTime();
 		try (InputStream is = conn.getInputStream()) {
 			return builder.parse(is, new URL(seek, suffix).toString());
+		} finally {
+			getTime.observeSince(t0);
 		}
 	}
 
@@ -286,6 +310,7 @@ public class SeekConnector {
 	public List<User> getUsers() {
 		long now = System.currentTimeMillis();
 		if (usersTimestamp + USERS_CACHE_LIFETIME_MS < now) {
+			userMisses.inc();
 			log.info("filling users cache");
 			try {
 				users = getUserList();
@@ -295,7 +320,8 @@ public class SeekConnector {
 					users = emptyList();
 			}
 			usersTimestamp = now;
-		}
+		} else
+			userHits.inc();
 		return users;
 	}
 
@@ -489,8 +515,10 @@ public class SeekConnector {
 	public List<Assay> getAssays() {
 		long now = System.currentTimeMillis();
 		if (assayCacheTimestamp != null && assayCacheTimestamp + CACHE_TIME > now) {
+			assayHits.inc();
 			return cachedAssays;
 		}
+		assayMisses.inc();
 		log.info("filling assays cache");
 		List<Assay> assays = new ArrayList<>();
 		try {
@@ -520,8 +548,10 @@ public class SeekConnector {
 	public List<Study> getStudies() {
 		long now = System.currentTimeMillis();
 		if (studyCacheTimestamp != null && studyCacheTimestamp + CACHE_TIME > now) {
+			studyHits.inc();
 			return cachedStudies;
 		}
+		studyMisses.inc();
 		log.info("filling studies cache");
 		List<Study> studies = new ArrayList<>();
 		try {
@@ -559,6 +589,7 @@ public class SeekConnector {
 
 	private String getAuthToken() throws IOException {
 		HttpURLConnection c = connect("/data_files/new");
+		long t0 = nanoTime();
 		c.connect();
 		// We're parsing HTML with regexps! Watch out, Tony the Pony!
 		Pattern p = compile("<meta\\s+content=\"(.+?)\"\\s+name=\"csrf-token\"\\s*/>");
@@ -568,6 +599,8 @@ public class SeekConnector {
 				if (m.find())
 					return m.group(1);
 			}
+		} finally {
+			getTime.observeSince(t0);
 		}
 		throw new IOException("no authenticity token found");
 	}
@@ -578,12 +611,18 @@ public class SeekConnector {
 		c.setDoOutput(true);
 		c.setRequestMethod("POST");
 		c.setRequestProperty("Content-Type", form.contentType());
-		c.setRequestProperty("Content-Length", form.length());
-		c.connect();
-		try (OutputStream os = c.getOutputStream()) {
-			os.write(form.content());
+		// Stream the body rather than letting the connection buffer it all
+		c.setFixedLengthStreamingMode(form.size());
+		long t0 = nanoTime();
+		try {
+			c.connect();
+			try (OutputStream os = c.getOutputStream()) {
+				form.writeTo(os);
+			}
+			return fromStatusCode(c.getResponseCode());
+		} finally {
+			postTime.observeSince(t0);
 		}
-		return fromStatusCode(c.getResponseCode());
 	}
 
 	private void readErrorFromConnection(HttpURLConnection c, String logPrefix,
@@ -666,8 +705,12 @@ public class SeekConnector {
 		}
 	}
 
+	/**
+	 * Upload a file to SEEK as a data file asset of an assay. The file's
+	 * content is streamed; it is never held in memory as a whole.
+	 */
 	public URL uploadFileAsset(User user, Assay assay, String name,
-			String description, String title, String type, String content) {
+			String description, String title, String type, File content) {
 		try {
 			MultipartFormData form = makeFileUploadForm(user, assay, name,
 					description, title, type, content);
@@ -765,7 +808,7 @@ public class SeekConnector {
 
 	private MultipartFormData makeFileUploadForm(User user, Assay assay,
 			String name, String description, String title, String type,
-			String content) throws IOException {
+			File content) throws IOException {
 		MultipartFormData form = new MultipartFormData(content);
 		addAuthToForm(form);
 		form.addField("data_file[parent_name]");
@@ -0,0 +1,124 @@
+package manchester.synbiochem.datacapture;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import manchester.synbiochem.datacapture.SeekConnector.Assay;
+import manchester.synbiochem.datacapture.SeekConnector.Project;
+import manchester.synbiochem.datacapture.SeekConnector.Study;
+import manchester.synbiochem.datacapture.SeekConnector.User;
+
+import org.json.JSONObject;
+
+/**
+ * How the descriptions of SEEK entities are saved as JSON, where this
+ * application keeps them on disk. Missing or <tt>null</tt> entities are
+ * <tt>null</tt> in both directions.
+ *
+ * @author Donal Fellows
+ */
+abstract class SeekJson {
+	private SeekJson() {
+	}
+
+	private static String str(Object o) {
+		return o == null ? null : o.toString();
+	}
+
+	private static Integer optInt(JSONObject o, String key) {
+		return o.has(key) ? o.getInt(key) : null;
+	}
+
+	private static URL optURL(JSONObject o, String key)
+			throws MalformedURLException {
+		return o.has(key) ? new URL(o.getString(key)) : null;
+	}
+
+	static JSONObject toJSON(User user) {
+		if (user == null)
+			return null;
+		return new JSONObject().put("name", user.name).put("id", user.id)
+				.put("url", str(user.url));
+	}
+
+	static User toUser(JSONObject json) throws MalformedURLException {
+		if (json == null)
+			return null;
+		User user = new User();
+		user.name = json.optString("name", null);
+		user.id = optInt(json, "id");
+		user.url = optURL(json, "url");
+		return user;
+	}
+
+	static JSONObject toJSON(Project project) {
+		if (project == null)
+			return null;
+		return new JSONObject().put("name", project.name)
+				.put("id", project.id).put("url", str(project.url));
+	}
+
+	static Project toProject(JSONObject json) throws MalformedURLException {
+		if (json == null)
+			return null;
+		Project project = new Project();
+		project.name = json.optString("name", null);
+		project.id = optInt(json, "id");
+		project.url = optURL(json, "url");
+		return project;
+	}
+
+	static JSONObject toJSON(Assay assay) {
+		if (assay == null)
+			return null;
+		return new JSONObject().put("name", assay.name).put("id", assay.id)
+				.put("url", str(assay.url))
+				.put("project-name", assay.projectName)
+				.put("project-url", str(assay.projectUrl))
+				.put("investigation-name", assay.investigationName)
+				.put("investigation-url", str(assay.investigationUrl))
+				.put("study-name", assay.studyName)
+				.put("study-url", str(assay.studyUrl));
+	}
+
+	static Assay toAssay(JSONObject json) throws MalformedURLException {
+		if (json == null)
+			return null;
+		Assay assay = new Assay();
+		assay.name = json.optString("name", null);
+		assay.id = optInt(json, "id");
+		assay.url = optURL(json, "url");
+		assay.projectName = json.optString("project-name", null);
+		assay.projectUrl = optURL(json, "project-url");
+		assay.investigationName = json.optString("investigation-name", null);
+		assay.investigationUrl = optURL(json, "investigation-url");
+		assay.studyName = json.optString("study-name", null);
+		assay.studyUrl = optURL(json, "study-url");
+		return assay;
+	}
+
+	static JSONObject toJSON(Study study) {
+		if (study == null)
+			return null;
+		return new JSONObject().put("name", study.name).put("id", study.id)
+				.put("url", str(study.url))
+				.put("project-name", study.projectName)
+				.put("project-url", str(study.projectUrl))
+				.put("investigation-name", study.investigationName)
+				.put("investigation-url", str(study.investigationUrl));
+	}
+
+	static Study toStudy(JSONObject json) throws MalformedURLException {
+		if (json == null)
+			return null;
+		Study study = new Study();
+		study.name = json.optString("name", null);
+		study.id = optInt(json, "id");
+		study.url = optURL(json, "url");
+		study.projectName = json.optString("project-name", null);
+		study.projectUrl = optURL(json, "project-url");
+		study.investigationName = json.optString("investigation-name", null);
+		study.investigationUrl = optURL(json, "investigation-url");
+		return study;
+	}
+}
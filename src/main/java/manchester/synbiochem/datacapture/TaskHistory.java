@@ -0,0 +1,497 @@
+package manchester.synbiochem.datacapture;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import manchester.synbiochem.datacapture.SeekConnector.User;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The record of finished tasks, kept as an append-only log in the saved tasks
+ * directory. Each line is a task's key, start and end times, and submitter's
+ * URL, then the task's {@linkplain FinishedTask#toJSON() JSON record}, all
+ * separated by tabs; a line with only a key marks the task as deleted. Opening
+ * the log only reads the leading fields, to index where each task's latest line
+ * is and to {@linkplain Summary summarise} it well enough to search on; the
+ * tasks themselves are read when asked for. The log is rewritten without its
+ * dead lines as soon as they come to outnumber the live ones, whether that is
+ * found on opening it or after writing to it.
+ * <p>
+ * Older versions saved each task as a serialized file of its own in the same
+ * directory; those are {@linkplain #migrate(File) moved into the log} once.
+ * <p>
+ * A log may be <i>shared</i> by several processes, as when a cluster of
+ * services keeps its saved tasks on one file system. Then writes (and
+ * compaction) are done holding a lock on a file next to the log, and each
+ * process catches up with the lines the others have added before looking at
+ * its index.
+ *
+ * @author Donal Fellows
+ */
+class TaskHistory implements Closeable {
+	/** The name of the log; hidden so older versions would ignore it. */
+	static final String LOG_NAME = ".history";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Log log = LogFactory.getLog(TaskHistory.class);
+	private static final int BUFFER_SIZE = 65536;
+	/** How many fields a line has, counting the JSON record. */
+	private static final int FIELDS = 5;
+
+	/** Keeps threads of this process out of each other's file locks. */
+	private static final ConcurrentMap<String, ReentrantLock> LOCKS =
+			new ConcurrentHashMap<>();
+
+	private final File file;
+	/** Locked while writing a shared log; <tt>null</tt> if not shared. */
+	private final File lockFile;
+	private final Map<String, Summary> index = new TreeMap<>();
+	private RandomAccessFile reader;
+	private OutputStream writer;
+	/** Which file the log was when opened; changed by compaction. */
+	private Object identity;
+	private long length;
+	private int dead;
+
+	/**
+	 * Open the log, creating it if needed.
+	 *
+	 * @param file
+	 *            The log file.
+	 * @throws IOException
+	 *             If the log can't be read.
+	 */
+	TaskHistory(File file) throws IOException {
+		this(file, false);
+	}
+
+	/**
+	 * Open the log, creating it if needed.
+	 *
+	 * @param file
+	 *            The log file.
+	 * @param shared
+	 *            Whether other processes may use the log at the same time.
+	 * @throws IOException
+	 *             If the log can't be read.
+	 */
+	TaskHistory(File file, boolean shared) throws IOException {
+		this.file = file;
+		this.lockFile = shared ? new File(file.getPath() + ".lock") : null;
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		Closeable lock = lock();
+		try {
+			scan(true);
+			if (dead > index.size())
+				compact();
+			open();
+		} finally {
+			lock.close();
+		}
+	}
+
+	/**
+	 * What the history knows about a finished task without reading its
+	 * record.
+	 */
+	static final class Summary {
+		final String key;
+		/** When the task started and finished; <tt>null</tt> if unknown. */
+		final Long start, end;
+		/** The submitter's URL; <tt>null</tt> if unknown. */
+		final String user;
+		/** Where the task's line starts, and how long it is. */
+		private final long offset;
+		private final int length;
+
+		private Summary(String[] fields, long offset, int length) {
+			key = fields[0];
+			start = fields[1].isEmpty() ? null : Long.valueOf(fields[1]);
+			end = fields[2].isEmpty() ? null : Long.valueOf(fields[2]);
+			user = fields[3].isEmpty() ? null : fields[3];
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/** Index a line, or unindex the task if the line marks a deletion. */
+	private void index(byte[] line, long offset) {
+		String[] fields = new String(line, 0, line.length - 1, UTF8).split(
+				"\t", FIELDS);
+		if (fields.length < FIELDS)
+			// The deletion itself, and the line it replaces if any
+			dead += (index.remove(fields[0]) != null ? 2 : 1);
+		else if (index.put(fields[0], new Summary(fields, offset,
+				line.length)) != null)
+			dead++;
+	}
+
+	/**
+	 * Index the lines after those already indexed.
+	 *
+	 * @param truncate
+	 *            Whether to drop a partial last line. Only safe when nothing
+	 *            else can be writing it.
+	 */
+	private void scan(boolean truncate) throws IOException {
+		if (!file.exists())
+			return;
+		try (FileInputStream fis = new FileInputStream(file);
+				InputStream in = new BufferedInputStream(fis, BUFFER_SIZE)) {
+			fis.getChannel().position(length);
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			long offset = length;
+			int b;
+			while ((b = in.read()) >= 0) {
+				line.write(b);
+				if (b == '\n') {
+					index(line.toByteArray(), offset);
+					offset += line.size();
+					line.reset();
+				}
+			}
+			length = offset;
+		}
+		if (truncate && length < file.length()) {
+			// Only a crash mid-write leaves a partial line; drop it
+			log.warn("discarding partial last line of " + file);
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(length);
+			}
+		}
+	}
+
+	private void compact() throws IOException {
+		log.info("compacting " + file + ": dropping " + dead + " dead lines");
+		File tmp = new File(file.getPath() + ".tmp");
+		List<byte[]> lines = new ArrayList<>();
+		long pos = 0;
+		try (RandomAccessFile in = new RandomAccessFile(file, "r");
+				OutputStream out = new BufferedOutputStream(
+						new FileOutputStream(tmp), BUFFER_SIZE)) {
+			for (Summary summary : index.values()) {
+				byte[] line = read(in, summary);
+				out.write(line);
+				lines.add(line);
+			}
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("failed to replace " + file);
+		}
+		index.clear();
+		for (byte[] line : lines) {
+			index(line, pos);
+			pos += line.length;
+		}
+		length = pos;
+		dead = 0;
+	}
+
+	private void open() throws IOException {
+		// Before opening, so a compaction in between is seen next time
+		identity = identity();
+		writer = new FileOutputStream(file, true);
+		reader = new RandomAccessFile(file, "r");
+	}
+
+	private Object identity() throws IOException {
+		if (lockFile == null || !file.exists())
+			return null;
+		return Files.readAttributes(file.toPath(), BasicFileAttributes.class)
+				.fileKey();
+	}
+
+	/**
+	 * Take the lock on a shared log, which keeps other processes from writing
+	 * to it.
+	 *
+	 * @return What to close to release the lock.
+	 */
+	private Closeable lock() throws IOException {
+		if (lockFile == null)
+			return new Closeable() {
+				@Override
+				public void close() {
+				}
+			};
+		final ReentrantLock local = lockFor(lockFile);
+		local.lock();
+		if (local.getHoldCount() > 1)
+			// This thread has the file lock already
+			return new Closeable() {
+				@Override
+				public void close() {
+					local.unlock();
+				}
+			};
+		final FileChannel channel;
+		try {
+			channel = FileChannel.open(lockFile.toPath(), CREATE, WRITE);
+		} catch (IOException | RuntimeException e) {
+			local.unlock();
+			throw e;
+		}
+		try {
+			channel.lock();
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			local.unlock();
+			throw e;
+		}
+		return new Closeable() {
+			@Override
+			public void close() throws IOException {
+				try {
+					// Releases the file lock too
+					channel.close();
+				} finally {
+					local.unlock();
+				}
+			}
+		};
+	}
+
+	private static ReentrantLock lockFor(File f) throws IOException {
+		String path = f.getCanonicalPath();
+		ReentrantLock lock = LOCKS.get(path);
+		if (lock == null) {
+			LOCKS.putIfAbsent(path, new ReentrantLock());
+			lock = LOCKS.get(path);
+		}
+		return lock;
+	}
+
+	/**
+	 * Catch up with what other processes have done to a shared log: index the
+	 * lines they have added, or reread it all if they have compacted it.
+	 */
+	private void refresh() throws IOException {
+		if (lockFile == null)
+			return;
+		Object current = identity();
+		if (current != null && !current.equals(identity)) {
+			Closeable lock = lock();
+			try {
+				closeFiles();
+				index.clear();
+				length = 0;
+				dead = 0;
+				scan(false);
+				open();
+			} finally {
+				lock.close();
+			}
+		} else if (file.length() > length)
+			scan(false);
+	}
+
+	/** Like {@link #refresh()}, for when a stale index will have to do. */
+	private void catchUp() {
+		try {
+			refresh();
+		} catch (IOException e) {
+			log.warn("problem reading what others added to " + file, e);
+		}
+	}
+
+	private static byte[] read(RandomAccessFile in, Summary where)
+			throws IOException {
+		byte[] line = new byte[where.length];
+		in.seek(where.offset);
+		in.readFully(line);
+		return line;
+	}
+
+	private static String field(Object value) {
+		if (value == null)
+			return "";
+		String s = value.toString();
+		if (s.indexOf('\t') >= 0 || s.indexOf('\n') >= 0)
+			throw new IllegalArgumentException("bad history field: " + s);
+		return s;
+	}
+
+	private void append(String line) throws IOException {
+		byte[] bytes = (line + "\n").getBytes(UTF8);
+		Closeable lock = lock();
+		try {
+			// So that the line is indexed where it really goes
+			refresh();
+			writer.write(bytes);
+			writer.flush();
+			index(bytes, length);
+			length += bytes.length;
+			if (dead > index.size()) {
+				closeFiles();
+				compact();
+				open();
+			}
+		} finally {
+			lock.close();
+		}
+	}
+
+	private void append(String key, FinishedTask task) throws IOException {
+		User user = task.getUser();
+		Date start = task.getStart(), end = task.getFinish();
+		append(field(key) + "\t" + field(start == null ? null : start.getTime())
+				+ "\t" + field(end == null ? null : end.getTime()) + "\t"
+				+ field(user == null ? null : user.url) + "\t"
+				+ task.toJSON());
+	}
+
+	/**
+	 * Record a finished task, replacing any earlier record with the same key.
+	 *
+	 * @param task
+	 *            The task.
+	 * @throws IOException
+	 *             If the log can't be written.
+	 */
+	synchronized void add(FinishedTask task) throws IOException {
+		append(task.getKey(), task);
+	}
+
+	/**
+	 * Read a finished task.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @return The task, or <tt>null</tt> if there is no such task or its
+	 *         record can't be read.
+	 */
+	synchronized FinishedTask get(String key) {
+		catchUp();
+		Summary where = index.get(key);
+		if (where == null)
+			return null;
+		try {
+			String line = new String(read(reader, where), UTF8);
+			return new FinishedTask(key, new JSONObject(
+					line.split("\t", FIELDS)[FIELDS - 1]));
+		} catch (IOException | JSONException e) {
+			log.error("problem reading task " + key + " from " + file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Forget a finished task.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @return Whether there was such a task.
+	 * @throws IOException
+	 *             If the log can't be written.
+	 */
+	synchronized boolean remove(String key) throws IOException {
+		refresh();
+		if (!index.containsKey(key))
+			return false;
+		append(field(key));
+		return true;
+	}
+
+	synchronized boolean contains(String key) {
+		catchUp();
+		return index.containsKey(key);
+	}
+
+	synchronized int size() {
+		catchUp();
+		return index.size();
+	}
+
+	/** @return The keys of the finished tasks, in order. */
+	synchronized List<String> keys() {
+		catchUp();
+		return new ArrayList<>(index.keySet());
+	}
+
+	/** @return What is known of the finished tasks, in order of key. */
+	synchronized List<Summary> summaries() {
+		catchUp();
+		return new ArrayList<>(index.values());
+	}
+
+	/**
+	 * Move the tasks saved by older versions, one serialized file each, into
+	 * the log, deleting the files once they are recorded. Files that can't be
+	 * read are deleted too, as older versions did.
+	 *
+	 * @param dir
+	 *            The directory holding the files.
+	 * @return How many tasks were moved.
+	 * @throws IOException
+	 *             If the log can't be written.
+	 */
+	synchronized int migrate(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return 0;
+		int moved = 0;
+		for (File f : files) {
+			// Skip anything untoward, including the log itself
+			if (f.getName().startsWith(".") || !f.isFile())
+				continue;
+			log.info("migrating finished task from " + f);
+			FinishedTask ft = null;
+			try (InputStream fis = new FileInputStream(f);
+					ObjectInputStream ois = new ObjectInputStream(fis)) {
+				ft = (FinishedTask) ois.readObject();
+			} catch (ClassCastException | IOException | ClassNotFoundException e) {
+				log.error("problem loading saved task from " + f
+						+ "; deleting...", e);
+			}
+			if (ft != null) {
+				append(f.getName(), ft);
+				moved++;
+			}
+			f.delete();
+		}
+		return moved;
+	}
+
+	private void closeFiles() throws IOException {
+		try {
+			writer.close();
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		closeFiles();
+	}
+}
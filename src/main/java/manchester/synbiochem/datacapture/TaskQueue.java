@@ -0,0 +1,286 @@
+package manchester.synbiochem.datacapture;
+
+import static java.util.Collections.sort;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import manchester.synbiochem.datacapture.SeekConnector.Assay;
+import manchester.synbiochem.datacapture.SeekConnector.Project;
+import manchester.synbiochem.datacapture.SeekConnector.Study;
+import manchester.synbiochem.datacapture.SeekConnector.User;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The tasks that have been submitted but not yet started, kept on disk so
+ * that they survive a restart. Each is a small JSON file, named for the task's
+ * key, holding what it was {@linkplain Submission submitted with}; the file is
+ * written (and synced) before the task is handed to the executor, and removed
+ * when the task starts or is abandoned.
+ * <p>
+ * In a {@linkplain Cluster cluster}, the queue is shared, and a task leaves it
+ * when a service {@linkplain #moveTo(String, File) claims} it.
+ *
+ * @author Donal Fellows
+ */
+class TaskQueue {
+	/** The name of the queue's directory within the saved tasks directory. */
+	static final String DIR_NAME = ".queue";
+	private static final String SUFFIX = ".json";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Log log = LogFactory.getLog(TaskQueue.class);
+
+	private final File dir;
+
+	/**
+	 * What a task was submitted with; enough to make it again.
+	 *
+	 * @author Donal Fellows
+	 */
+	static final class Submission {
+		final User user;
+		final Project project;
+		final List<String> dirs;
+		final String notes;
+		/** The assay to file the results under, if any. */
+		final Assay assay;
+		/** The study to make an assay in to file the results under, if any. */
+		final Study study;
+		/** When the task was submitted, in ms since the epoch. */
+		final long submitted;
+
+		Submission(User user, Project project, List<String> dirs,
+				String notes, Assay assay, Study study) {
+			this.user = user;
+			this.project = project;
+			this.dirs = new ArrayList<>(dirs);
+			this.notes = notes;
+			this.assay = assay;
+			this.study = study;
+			this.submitted = System.currentTimeMillis();
+		}
+
+		private Submission(JSONObject json) throws MalformedURLException {
+			user = SeekJson.toUser(json.optJSONObject("user"));
+			project = SeekJson.toProject(json.optJSONObject("project"));
+			dirs = new ArrayList<>();
+			JSONArray d = json.getJSONArray("dirs");
+			for (int i = 0; i < d.length(); i++)
+				dirs.add(d.getString(i));
+			notes = json.optString("notes", null);
+			assay = SeekJson.toAssay(json.optJSONObject("assay"));
+			study = SeekJson.toStudy(json.optJSONObject("study"));
+			submitted = json.getLong("submitted");
+		}
+
+		/**
+		 * @return Whether the other submission is from the same user and
+		 *         files its results in the same place with the same notes,
+		 *         so that one task can do for both.
+		 */
+		boolean sameTarget(Submission s) {
+			return same(user == null ? null : user.url, s.user == null ? null
+					: s.user.url)
+					&& same(project == null ? null : project.url,
+							s.project == null ? null : s.project.url)
+					&& same(assay == null ? null : assay.url,
+							s.assay == null ? null : s.assay.url)
+					&& same(study == null ? null : study.url,
+							s.study == null ? null : s.study.url)
+					&& same(notes, s.notes);
+		}
+
+		/** Compares URLs by their text, not by looking up their hosts. */
+		private static boolean same(Object a, Object b) {
+			return a == null ? b == null : b != null
+					&& a.toString().equals(b.toString());
+		}
+
+		JSONObject toJSON() {
+			return new JSONObject().put("user", SeekJson.toJSON(user))
+					.put("project", SeekJson.toJSON(project))
+					.put("dirs", new JSONArray(dirs)).put("notes", notes)
+					.put("assay", SeekJson.toJSON(assay))
+					.put("study", SeekJson.toJSON(study))
+					.put("submitted", submitted);
+		}
+	}
+
+	/** A queued task, read back from disk. */
+	static final class Pending {
+		final String key;
+		final Submission submission;
+
+		Pending(String key, Submission submission) {
+			this.key = key;
+			this.submission = submission;
+		}
+	}
+
+	TaskQueue(File dir) {
+		this.dir = dir;
+		dir.mkdirs();
+	}
+
+	private File file(String key) {
+		return new File(dir, key + SUFFIX);
+	}
+
+	/**
+	 * Record a task as waiting to start. The record is on disk when this
+	 * returns.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @param submission
+	 *            What the task was submitted with.
+	 * @throws IOException
+	 *             If the record can't be written.
+	 */
+	void add(String key, Submission submission) throws IOException {
+		File tmp = new File(dir, "." + key + SUFFIX);
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			out.write(submission.toJSON().toString().getBytes(UTF8));
+			out.getFD().sync();
+		}
+		if (!tmp.renameTo(file(key))) {
+			tmp.delete();
+			throw new IOException("failed to queue " + key);
+		}
+	}
+
+	/**
+	 * Forget a task, because it has started or been abandoned.
+	 *
+	 * @param key
+	 *            The task's key.
+	 */
+	void remove(String key) {
+		File f = file(key);
+		if (f.exists() && !f.delete())
+			log.warn("failed to remove " + f + " from the queue");
+	}
+
+	/**
+	 * Move a task's record out of the queue, unless something else has moved
+	 * it first.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @param dest
+	 *            Where to move the record to.
+	 * @return Whether this moved it.
+	 */
+	boolean moveTo(String key, File dest) {
+		return file(key).renameTo(dest);
+	}
+
+	/** @return The keys of the tasks waiting to start, oldest first. */
+	List<String> keys() {
+		List<File> found = new ArrayList<>();
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				// Skip those still being written
+				if (!f.getName().startsWith(".")
+						&& f.getName().endsWith(SUFFIX))
+					found.add(f);
+		sort(found, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long x = a.lastModified(), y = b.lastModified();
+				return x < y ? -1 : x > y ? 1 : a.compareTo(b);
+			}
+		});
+		List<String> keys = new ArrayList<>();
+		for (File f : found)
+			keys.add(key(f));
+		return keys;
+	}
+
+	/**
+	 * Read what a task was submitted with.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @return The submission, or <tt>null</tt> if the task isn't queued (or
+	 *         can't be read).
+	 */
+	Submission get(String key) {
+		File f = file(key);
+		try {
+			return read(f);
+		} catch (IOException | JSONException e) {
+			if (f.exists())
+				log.warn("problem reading queued task from " + f, e);
+			return null;
+		}
+	}
+
+	private static String key(File f) {
+		String name = f.getName();
+		return name.substring(0, name.length() - SUFFIX.length());
+	}
+
+	/**
+	 * Read a task's record, wherever it has been moved to.
+	 *
+	 * @param f
+	 *            The record.
+	 * @return The submission.
+	 */
+	static Submission read(File f) throws IOException, JSONException {
+		return new Submission(new JSONObject(FileUtils.readFileToString(f,
+				UTF8)));
+	}
+
+	/**
+	 * Read back the tasks that are waiting to start, as when starting up.
+	 * Records that can't be read are logged and removed.
+	 *
+	 * @return The tasks, in the order they were submitted.
+	 */
+	List<Pending> pending() {
+		List<Pending> result = new ArrayList<>();
+		File[] files = dir.listFiles();
+		if (files == null)
+			return result;
+		for (File f : files) {
+			String name = f.getName();
+			if (name.startsWith(".")) {
+				// Left over from a crash while queueing
+				f.delete();
+				continue;
+			}
+			if (!name.endsWith(SUFFIX) || !f.isFile())
+				continue;
+			try {
+				result.add(new Pending(key(f), read(f)));
+			} catch (IOException | JSONException e) {
+				log.error("problem loading queued task from " + f
+						+ "; deleting...", e);
+				f.delete();
+			}
+		}
+		sort(result, new Comparator<Pending>() {
+			@Override
+			public int compare(Pending a, Pending b) {
+				long x = a.submission.submitted, y = b.submission.submitted;
+				return x < y ? -1 : x > y ? 1 : a.key.compareTo(b.key);
+			}
+		});
+		return result;
+	}
+}
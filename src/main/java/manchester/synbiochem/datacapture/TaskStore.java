@@ -1,48 +1,79 @@
 package manchester.synbiochem.datacapture;
 
-import static java.util.Collections.singletonList;
+import static java.lang.System.nanoTime;
+import static java.util.Collections.frequency;
+import static java.util.Collections.newSetFromMap;
+import static java.util.Collections.sort;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static javax.ws.rs.core.Response.Status.CONFLICT;
 import static javax.ws.rs.core.Response.Status.GONE;
+import static manchester.synbiochem.datacapture.Metrics.WORK_BUCKETS;
+import static manchester.synbiochem.datacapture.VirtualThreads.bounded;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.TimeZone;
-import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.ws.rs.BadRequestException;
+import javax.ws.rs.ClientErrorException;
 import javax.ws.rs.NotFoundException;
+import javax.ws.rs.ServiceUnavailableException;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
 
+import manchester.synbiochem.datacapture.FairScheduler.Estimate;
 import manchester.synbiochem.datacapture.Interface.ArchiveTask;
+import manchester.synbiochem.datacapture.Metrics.Counter;
+import manchester.synbiochem.datacapture.Metrics.Gauge;
+import manchester.synbiochem.datacapture.Metrics.Histogram;
 import manchester.synbiochem.datacapture.SeekConnector.Assay;
 import manchester.synbiochem.datacapture.SeekConnector.Project;
 import manchester.synbiochem.datacapture.SeekConnector.Study;
 import manchester.synbiochem.datacapture.SeekConnector.User;
+import manchester.synbiochem.datacapture.TaskQueue.Submission;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.tika.Tika;
+import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 /**
  * Class and bean that manages the collection of archiving tasks, both current
@@ -51,9 +82,30 @@ import org.springframework.core.task.AsyncTaskExecutor;
  * @author Donal Fellows
  */
 public class TaskStore {
-	private int count;
-	private Map<String, FinishedTask> doneTasks = new TreeMap<>();
-	private Map<String, ActiveTask> tasks = new TreeMap<>();
+	private final AtomicInteger count = new AtomicInteger();
+	private TaskHistory doneTasks;
+	private TaskQueue queue;
+	private final ConcurrentMap<String, ActiveTask> tasks =
+			new ConcurrentHashMap<>();
+	/** The keys of the unfinished tasks, by each of their {@linkplain
+	 * #canonical(List) canonical directories}. Guarded by itself. */
+	private final Map<String, String> byDirectory = new HashMap<>();
+	/** What the tasks in {@link #byDirectory} were submitted with. Guarded
+	 * by {@link #byDirectory}. */
+	private final Map<String, Submission> claims = new HashMap<>();
+	/** Tasks submitted here but left in a cluster's shared queue, which keep
+	 * their directories until no service has them. */
+	private final Set<String> shared = newSetFromMap(
+			new ConcurrentHashMap<String, Boolean>());
+	/** Tasks deleted but still stopping, which keep their directories until
+	 * they have. */
+	private final Set<String> deleted = newSetFromMap(
+			new ConcurrentHashMap<String, Boolean>());
+	/** Tasks read back from the queue, waiting to be scheduled. */
+	private final Queue<Runnable> replayed = new ConcurrentLinkedQueue<>();
+	private ScheduledExecutorService replayer;
+	/** Set when shutting down, so queued tasks stay queued. */
+	private volatile boolean stopping;
 	@Value("${archive.root}")
 	File archRoot;
 	@Value("${metadata.root}")
@@ -69,40 +121,406 @@ public class TaskStore {
 	@Autowired
 	InformationSource infoSource;
 	@Value("${cifs.root}")
-	private URI cifsRoot;
+	URI cifsRoot;
+	/**
+	 * How many threads to characterise files with; 0 means one per core,
+	 * less those kept for handling requests.
+	 */
+	@Value("${characterise.threads:0}")
+	int characteriserThreads;
+	/**
+	 * How many cores the archiving leaves for handling requests, so that
+	 * listing and describing tasks stay quick however busy it is.
+	 */
+	@Value("${requests.cores:1}")
+	int requestCores;
+	/** Shared by all tasks, so characterisation can't oversubscribe the CPUs. */
+	private ExecutorService characteriser;
+	/** How many threads to copy files with, when not on virtual threads. */
+	@Value("${copy.threads:4}")
+	int copyThreads;
+	/**
+	 * Shared by all tasks, so that copying, which waits on the disks, and
+	 * characterising, which waits on the CPUs, don't hold each other up.
+	 */
+	private ExecutorService copier;
+	/**
+	 * Whether to copy and characterise files on virtual threads, where the JVM
+	 * has them, instead of on a pool.
+	 */
+	@Value("${characterise.virtual:false}")
+	boolean virtualThreads;
+	/** With virtual threads, how many files may be copied at once. */
+	@Value("${characterise.virtual.copies:64}")
+	int virtualCopies;
+	/** What tasks characterise their files with. */
+	private Executor fileCharacteriser;
+	/** What tasks copy their files with. */
+	private Executor fileCopier;
+	/** How many files {@link #fileCopier} copies at once. */
+	private int copierThreads;
+	/** Bounds the copies in flight on virtual threads, across all tasks. */
+	private Semaphore copyPermits;
+	@Value("${extract.threads:2}")
+	int extractorThreads;
+	@Value("${extract.queue:64}")
+	int extractorQueue;
+	@Value("${extract.timeout:10000}")
+	long extractorTimeout;
+	private ExtractorPool extractors;
+	/** How many tasks may make their calls to SEEK at once; 0 for no limit. */
+	@Value("${remote.calls:2}")
+	int remoteCallLimit;
+	/**
+	 * Shared by all tasks, so that they can't use up the connections to SEEK
+	 * that handling requests needs too.
+	 */
+	private Semaphore remoteCalls;
+	/** How many tasks may run at once. */
+	@Value("${schedule.slots:4}")
+	int slots;
+	/** How many tasks may run at once from an instrument not listed in
+	 * {@link #instrumentCaps}. */
+	@Value("${schedule.instrument.cap:1}")
+	int instrumentCap;
+	/** Per-instrument limits on running tasks, as <tt>name=count,...</tt> */
+	@Value("${schedule.instrument.caps:}")
+	String instrumentCaps;
+	/** How many more workers there are, kept for small tasks. */
+	@Value("${schedule.fast.slots:1}")
+	int fastSlots;
+	/** The most bytes a task may have to copy and still count as small. */
+	@Value("${schedule.fast.bytes:1073741824}")
+	long fastBytes;
+	/** The most files a task may have to copy and still count as small. */
+	@Value("${schedule.fast.files:1000}")
+	int fastFiles;
+	/** Decides which task to run next; in front of the executor. */
+	private FairScheduler scheduler;
+	/** Whether there is room for more tasks; in front of the queue. */
+	private AdmissionControl admission;
+	/** The most tasks that may wait to start. */
+	@Value("${admission.queued.tasks:100}")
+	int maxQueued;
+	/** The most bytes that waiting tasks may have to copy. */
+	@Value("${admission.queued.bytes:1099511627776}")
+	long maxQueuedBytes;
+	/** Bytes to keep free in the archive, beyond what tasks will use. */
+	@Value("${admission.archive.reserve:10737418240}")
+	long archiveReserve;
+	/** Bytes to keep free in the metadata store. */
+	@Value("${admission.metadata.reserve:1073741824}")
+	long metadataReserve;
+	/** The most files to count in a submission's directories before it is
+	 * let in; any more and it is taken to be large. */
+	@Value("${admission.scan.files:100000}")
+	long scanFiles;
+	/** Seconds that refused clients are told to wait before trying again. */
+	@Value("${admission.retry.after:60}")
+	long retryAfter;
+	/** How long to wait between scheduling tasks read back from the queue. */
+	@Value("${queue.replay.interval:2000}")
+	long replayInterval;
+	/** Whether to share the work with other services; see {@link Cluster}. */
+	@Value("${cluster.enabled:false}")
+	boolean clustered;
+	/** This service's name in the cluster; empty to make one up. */
+	@Value("${cluster.node:}")
+	String nodeName;
+	/** How often, in ms, to renew leases and look for work. */
+	@Value("${cluster.heartbeat:5000}")
+	long heartbeat;
+	/** How long, in ms, before another service may take over a task. */
+	@Value("${cluster.lease.timeout:30000}")
+	long leaseTimeout;
+	/** <tt>null</tt> unless {@link #clustered}. */
+	private Cluster cluster;
+	private ScheduledExecutorService clusterTimer;
+	/**
+	 * The other services' tasks and the unclaimed ones, as of the last
+	 * heartbeat (or lookup of a task not yet in it), so that listing and
+	 * describing tasks doesn't have to read them all afresh.
+	 */
+	private volatile List<RemoteTask> remote = new ArrayList<>();
 	@Autowired
 	DirectoryLister lister;
-	private Tika tika = new Tika();
+	/** Shared by all tasks, so its cache of types is too. */
+	private MimeTypeDetector detector = new MimeTypeDetector(new Tika());
 	private Log log = LogFactory.getLog(getClass());
 	private static final SimpleDateFormat ISO8601;
 	static {
 		ISO8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
 		ISO8601.setTimeZone(TimeZone.getTimeZone("UTC"));
 	}
+	private static final Counter coalesced = Metrics.counter(
+			"tasks_coalesced_total",
+			"Submissions that joined an unfinished task for the same directory.");
+	private static final Histogram waitTime = Metrics.histogram(
+			"task_wait_duration_seconds",
+			"Time that tasks spend queued before an executor thread runs them.",
+			WORK_BUCKETS);
 
+	/**
+	 * Set everything up. One method, as the order matters: tasks read back
+	 * from the queue need everything else to be ready.
+	 */
 	@PostConstruct
-	void loadDoneTasks() {
-		File[] files = savedTasksRoot.listFiles();
-		if (files == null)
+	void start() throws IOException {
+		startCharacteriser();
+		startExtractors();
+		scheduler = new FairScheduler(executor, slots, instrumentCap,
+				instrumentCaps, fastSlots, fastBytes);
+		admission = new AdmissionControl(maxQueued, maxQueuedBytes, archRoot,
+				archiveReserve, metaRoot, metadataReserve, retryAfter,
+				scanFiles);
+		loadDoneTasks();
+		registerMetrics();
+		replayQueue();
+	}
+
+	void registerMetrics() {
+		Metrics.gauge("tasks", "Number of archiving tasks, by state.",
+				"state=\"queued\"", new Gauge() {
+					@Override
+					public double value() {
+						return countActive(false);
+					}
+				});
+		Metrics.gauge("tasks", "Number of archiving tasks, by state.",
+				"state=\"running\"", new Gauge() {
+					@Override
+					public double value() {
+						return countActive(true);
+					}
+				});
+		Metrics.gauge("tasks", "Number of archiving tasks, by state.",
+				"state=\"finished\"", new Gauge() {
+					@Override
+					public double value() {
+						return doneTasks.size();
+					}
+				});
+		if (copyPermits != null)
+			Metrics.gauge("file_copies_in_flight",
+					"Files being copied on virtual threads.", new Gauge() {
+						@Override
+						public double value() {
+							return virtualCopies
+									- copyPermits.availablePermits();
+						}
+					});
+		if (!(executor instanceof ThreadPoolTaskExecutor))
 			return;
-		for (File f : files) {
-			// Skip anything untoward
-			if (f.getName().startsWith(".") || !f.isFile())
+		final ThreadPoolExecutor pool = ((ThreadPoolTaskExecutor) executor)
+				.getThreadPoolExecutor();
+		Metrics.gauge("executor_queue_depth",
+				"Tasks waiting for an executor thread.", new Gauge() {
+					@Override
+					public double value() {
+						return pool.getQueue().size();
+					}
+				});
+		Metrics.gauge("executor_active_threads",
+				"Executor threads currently running a task.", new Gauge() {
+					@Override
+					public double value() {
+						return pool.getActiveCount();
+					}
+				});
+	}
+
+	private int countActive(boolean running) {
+		int count = 0;
+		for (ActiveTask t : tasks.values())
+			if (t.getFinish() == null && (t.getStart() != null) == running)
+				count++;
+		return count;
+	}
+
+	void startCharacteriser() {
+		if (characteriserThreads < 1)
+			characteriserThreads = Math.max(1, Runtime.getRuntime()
+					.availableProcessors() - requestCores);
+		if (remoteCallLimit > 0)
+			remoteCalls = new Semaphore(remoteCallLimit);
+		if (virtualThreads) {
+			characteriser = VirtualThreads.newExecutor("file-");
+			if (characteriser != null) {
+				/*
+				 * A thread per file, but only so many files copied at once
+				 * and, as characterising is mostly CPU-bound, only one
+				 * characterised per core.
+				 */
+				copyPermits = new Semaphore(virtualCopies);
+				fileCopier = bounded(characteriser, copyPermits);
+				copierThreads = virtualCopies;
+				fileCharacteriser = bounded(characteriser, new Semaphore(
+						characteriserThreads));
+				log.info("working on files with virtual threads");
+				return;
+			}
+			log.warn("virtual threads are not available; working on files "
+					+ "with a pool of " + characteriserThreads + " threads");
+		}
+		CustomizableThreadFactory factory = new CustomizableThreadFactory(
+				"characterise-");
+		factory.setDaemon(true);
+		characteriser = newFixedThreadPool(characteriserThreads, factory);
+		fileCharacteriser = characteriser;
+		factory = new CustomizableThreadFactory("copy-");
+		factory.setDaemon(true);
+		copier = newFixedThreadPool(copyThreads, factory);
+		fileCopier = copier;
+		copierThreads = copyThreads;
+	}
+
+	void startExtractors() {
+		extractors = ExtractorPool.load(extractorThreads, extractorQueue,
+				extractorTimeout);
+	}
+
+	void loadDoneTasks() throws IOException {
+		doneTasks = new TaskHistory(new File(savedTasksRoot,
+				TaskHistory.LOG_NAME), clustered);
+		int moved = doneTasks.migrate(savedTasksRoot);
+		if (moved > 0)
+			log.info("migrated " + moved + " finished tasks into the history");
+		log.info("loaded index of " + doneTasks.size() + " finished tasks");
+	}
+
+	/**
+	 * Remake the tasks that were submitted but not started before the last
+	 * shutdown, and schedule them one at a time, so a restart with a long
+	 * queue doesn't stampede the scheduler with one instrument's backlog. In a
+	 * cluster, the queue is shared, so the tasks remade are those that this
+	 * service had claimed.
+	 */
+	void replayQueue() {
+		queue = new TaskQueue(new File(savedTasksRoot, TaskQueue.DIR_NAME));
+		if (clustered)
+			startCluster();
+		for (TaskQueue.Pending p : clustered ? cluster.held() : queue
+				.pending())
+			try {
+				replayed.add(prepare(p.key, p.submission, null));
+			} catch (RuntimeException e) {
+				log.error("problem remaking queued task " + p.key
+						+ "; dropping it", e);
+				abandon(p.key);
+			}
+		if (replayed.isEmpty())
+			return;
+		log.info("restarting " + replayed.size() + " queued tasks");
+		CustomizableThreadFactory factory = new CustomizableThreadFactory(
+				"replay-");
+		factory.setDaemon(true);
+		replayer = newSingleThreadScheduledExecutor(factory);
+		replayer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				Runnable schedule = replayed.poll();
+				if (schedule == null)
+					replayer.shutdown();
+				else
+					schedule.run();
+			}
+		}, 0, replayInterval, MILLISECONDS);
+	}
+
+	private void startCluster() {
+		cluster = new Cluster(savedTasksRoot, queue, nodeName, leaseTimeout);
+		log.info("sharing work with other services as " + cluster.node());
+		CustomizableThreadFactory factory = new CustomizableThreadFactory(
+				"cluster-");
+		factory.setDaemon(true);
+		clusterTimer = newSingleThreadScheduledExecutor(factory);
+		clusterTimer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					heartbeat();
+				} catch (RuntimeException e) {
+					log.error("problem coordinating with other services", e);
+				}
+			}
+		}, 0, heartbeat, MILLISECONDS);
+	}
+
+	/**
+	 * Everything a service in a cluster does regularly: renew its leases,
+	 * delete tasks that others have asked it to, tell the others what its
+	 * tasks are doing, and take on more tasks if it has room.
+	 */
+	private void heartbeat() {
+		List<JSONObject> records = new ArrayList<>();
+		for (ActiveTask task : tasks.values()) {
+			String key = task.getKey();
+			if (!task.isDone() && !cluster.renew(key)) {
+				log.warn("another service has taken over " + key
+						+ "; stopping it here");
+				task.cancel(true);
 				continue;
-			log.info("loading finished task from " + f);
-			try (InputStream fis = new FileInputStream(f);
-					ObjectInputStream ois = new ObjectInputStream(fis)) {
-				FinishedTask ft = (FinishedTask) ois.readObject();
-				doneTasks.put(ft.getKey(), ft);
-			} catch (ClassCastException | IOException | ClassNotFoundException e) {
-				log.error("problem loading saved task from " + f
-						+ "; deleting...", e);
-				f.delete();
 			}
+			records.add(RemoteTask.record(task, statusOf(task)));
+		}
+		for (String key : cluster.cancelRequests())
+			if (tasks.containsKey(key)) {
+				log.info("deleting " + key + " for another service");
+				try {
+					deleteTask(key);
+				} catch (InterruptedException | ExecutionException
+						| WebApplicationException e) {
+					log.warn("problem deleting " + key, e);
+				}
+				cluster.cancelled(key);
+			}
+		cluster.publish(records);
+		for (TaskQueue.Pending p : cluster.takeOver())
+			start(p.key, p.submission);
+		for (String key : queue.keys()) {
+			if (!hasRoom())
+				break;
+			Submission s = cluster.claim(key);
+			if (s != null)
+				start(key, s);
 		}
+		for (String key : shared)
+			if (tasks.containsKey(key) || !cluster.unfinished(key)) {
+				// Now run here, or finished elsewhere
+				shared.remove(key);
+				if (!tasks.containsKey(key))
+					forgetDirectories(key);
+			}
+		remote = remoteTasks();
+	}
+
+	/** @return Whether to claim more tasks from a shared queue. */
+	private boolean hasRoom() {
+		return scheduler.waiting() < slots;
+	}
+
+	/** Run a task claimed from the shared queue. */
+	private void start(String key, Submission s) {
+		try {
+			prepare(key, s, null).run();
+		} catch (RuntimeException e) {
+			log.error("problem making claimed task " + key + "; dropping it",
+					e);
+			cluster.release(key);
+		}
+	}
+
+	/** Forget a queued task that can't be run. */
+	private void abandon(String key) {
+		if (cluster != null)
+			cluster.release(key);
+		else
+			queue.remove(key);
 	}
 
 	public interface Task {
+		String getKey();
+
 		boolean isDone();
 
 		Double getProgress();
@@ -122,100 +540,373 @@ public class TaskStore {
 		URL getCreatedAsset();
 	}
 
-	private Future<URL> submit(final ArchiverTask task) {
-		return executor.submit(new Callable<URL>() {
+	/**
+	 * Queue a task, both on disk and with the scheduler, if there is room. A
+	 * task for directories that an unfinished task is already archiving, for
+	 * the same user and to the same place, isn't made at all; the submission
+	 * joins the existing task instead. A task for only some of them, or for
+	 * someone or somewhere else, is refused, as the two would race to copy
+	 * them.
+	 *
+	 * <p>
+	 * In a cluster, the task is only run here if this service has room for it
+	 * now; otherwise it is left in the shared queue for whichever service has
+	 * room first. Only the limit on how many tasks may wait then applies. The
+	 * directories are claimed across the cluster, so a submission to another
+	 * service for the same directories joins or is refused in the same way.
+	 *
+	 * @return What became of the submission.
+	 * @throws ServiceUnavailableException
+	 *             If there is no room for the task.
+	 * @throws ClientErrorException
+	 *             If an unfinished task is archiving some of the directories,
+	 *             or is archiving them for someone or somewhere else.
+	 */
+	private Submitted submit(Submission submission) {
+		List<File> dirs = existingDirectories(submission.dirs);
+		List<String> where = canonical(dirs);
+		String key = newKey();
+		String existing = claimDirectories(key, where, submission);
+		if (existing == null && cluster != null) {
+			existing = cluster.claimDirectories(key, where);
+			if (existing != null) {
+				forgetDirectories(key);
+				// Another service's; the same only if submitted the same
+				Submission other = cluster.submission(existing);
+				if (other == null || !other.sameTarget(submission)
+						|| !canonical(files(other.dirs)).equals(where))
+					throw conflict(existing);
+			}
+		}
+		if (existing != null) {
+			// Same directories, so same instrument and same bytes to copy
+			log.info("coalescing submission for " + dirs + " into "
+					+ existing);
+			coalesced.inc();
+			return new Submitted(existing, true);
+		}
+		Runnable schedule;
+		try {
+			if (cluster != null)
+				admission.backlog(queue.keys().size());
+			Estimate estimate = admission.admit(key, dirs);
+			try {
+				queue.add(key, submission);
+			} catch (IOException e) {
+				throw new RuntimeException("unexpected IO failure", e);
+			}
+			if (cluster != null
+					&& (!hasRoom() || cluster.claim(key) == null)) {
+				// Up to whichever service has room first
+				admission.finished(key);
+				shared.add(key);
+				return new Submitted(key, false);
+			}
+			schedule = prepare(key, submission, estimate);
+		} catch (RuntimeException e) {
+			admission.finished(key);
+			forgetDirectories(key);
+			abandon(key);
+			throw e;
+		}
+		schedule.run();
+		return new Submitted(key, false);
+	}
+
+	/**
+	 * Make a task and remember it, but don't start it. When the task finishes,
+	 * however it does so, it is moved to the history.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @param s
+	 *            What the task was submitted with.
+	 * @param estimate
+	 *            What the task has to copy, if that has been counted already;
+	 *            <tt>null</tt> to count it when scheduling it.
+	 * @return What to do to schedule the task.
+	 */
+	private Runnable prepare(final String key, Submission s,
+			final Estimate estimate) {
+		final List<File> dirs = existingDirectories(s.dirs);
+		// Tasks read back from the queue need registering here
+		synchronized (byDirectory) {
+			for (String path : canonical(dirs))
+				if (!byDirectory.containsKey(path))
+					byDirectory.put(path, key);
+			claims.put(key, s);
+		}
+		MetadataRecorder md = new MetadataRecorder(detector, s.project,
+				s.notes, null);
+		md.setUser(s.user);
+		final ArchiverTask task;
+		if (s.assay != null) {
+			md.setExperiment(s.assay);
+			task = new SeekAwareArchiverTask(md, archRoot, metaRoot, cifsRoot,
+					dirs, seek, ingester, infoSource);
+		} else if (s.study != null) {
+			md.setExperiment(s.study);
+			task = new AssayCreatingArchiverTask(s.study, md, archRoot,
+					metaRoot, cifsRoot, dirs, seek, ingester, infoSource);
+		} else
+			task = new ArchiverTask(md, archRoot, metaRoot, cifsRoot, dirs,
+					ingester, infoSource);
+		task.setCharacteriser(fileCharacteriser, characteriserThreads);
+		task.setCopier(fileCopier, copierThreads);
+		task.setRemoteCalls(remoteCalls);
+		task.setExtractors(extractors);
+
+		final long queued = nanoTime();
+		final AtomicBoolean started = new AtomicBoolean();
+		final FutureTask<URL> future = new FutureTask<URL>(new Callable<URL>() {
 			@Override
 			public URL call() throws Exception {
+				if (!started.compareAndSet(false, true))
+					// Cancelled just as it was about to start
+					return null;
 				try {
+					queue.remove(key);
+					admission.started(key);
+					waitTime.observeSince(queued);
 					return task.call();
 				} finally {
-					finishedTask(task);
+					/*
+					 * Not until the task has really stopped: a cancelled task
+					 * may still be copying into the archive.
+					 */
+					admission.finished(key);
+					forgetDirectories(key);
 				}
 			}
-		});
+		}) {
+			@Override
+			protected void done() {
+				if (started.compareAndSet(false, true)) {
+					// Never ran, so nothing else will let go of these
+					admission.finished(key);
+					forgetDirectories(key);
+					scheduler.cancel(key);
+					if (stopping)
+						// Still queued; it will be remade on restart
+						return;
+					queue.remove(key);
+				}
+				if (cluster == null) {
+					finishedTask(key);
+					return;
+				}
+				if (stopping || !cluster.holds(key)) {
+					// Left for another service to take over, or taken over
+					tasks.remove(key);
+					return;
+				}
+				finishedTask(key);
+				cluster.release(key);
+			}
+		};
+		task.setJavaTask(future);
+		List<String> paths = new ArrayList<>();
+		for (File d : dirs)
+			paths.add(d.getAbsolutePath());
+		tasks.put(key, new ActiveTask(key, md, paths, task, future));
+		final String user = (s.user == null || s.user.url == null ? null
+				: s.user.url.toString());
+		return new Runnable() {
+			@Override
+			public void run() {
+				if (future.isDone())
+					return;
+				Estimate e = estimate;
+				if (e == null)
+					e = FairScheduler.estimate(dirs, fastBytes, fastFiles);
+				scheduler.submit(key, task.machine, user,
+						e.size(fastBytes, fastFiles), future);
+			}
+		};
 	}
 
-	private File existingDirectory(String dir) throws IOException {
-		File d = new File(dir);
-		if (!(d.exists() && d.isDirectory()))
-			throw new IOException("can only archive an extant directory");
-		return d;
+	/**
+	 * @return The directories' names, in a form that is the same whatever
+	 *         form they were given in, in order and without repeats.
+	 */
+	private static List<String> canonical(List<File> dirs) {
+		Set<String> paths = new HashSet<>();
+		for (File dir : dirs)
+			try {
+				paths.add(dir.getCanonicalPath());
+			} catch (IOException e) {
+				paths.add(dir.getAbsolutePath());
+			}
+		List<String> sorted = new ArrayList<>(paths);
+		sort(sorted);
+		return sorted;
 	}
 
-	public String newTask(SeekConnector.User user, Project project, String dir,
-			String notes) throws IOException {
-		File d = existingDirectory(dir);
+	/**
+	 * Make some directories a task's, unless an unfinished task is already
+	 * archiving them.
+	 *
+	 * @param key
+	 *            The task's key.
+	 * @param paths
+	 *            The {@linkplain #canonical(List) canonical} directories.
+	 * @param submission
+	 *            What the task is being submitted with.
+	 * @return The key of the unfinished task archiving the same directories
+	 *         to the same target, or <tt>null</tt> if there was none and they
+	 *         are now the task's.
+	 * @throws ClientErrorException
+	 *             If an unfinished task is archiving some of the directories
+	 *             but not the same ones, or to another target.
+	 */
+	private String claimDirectories(String key, List<String> paths,
+			Submission submission) throws ClientErrorException {
+		synchronized (byDirectory) {
+			String existing = byDirectory.get(paths.get(0));
+			for (String path : paths) {
+				String owner = byDirectory.get(path);
+				if (owner == null ? existing != null : !owner.equals(existing))
+					throw conflict(owner == null ? existing : owner);
+			}
+			if (existing != null) {
+				// The same only if it has no others
+				if (frequency(byDirectory.values(), existing) != paths.size()
+						|| deleted.contains(existing))
+					throw conflict(existing);
+				Submission other = claims.get(existing);
+				if (other == null || !other.sameTarget(submission))
+					throw conflict(existing);
+				return existing;
+			}
+			for (String path : paths)
+				byDirectory.put(path, key);
+			claims.put(key, submission);
+			return null;
+		}
+	}
+
+	private static ClientErrorException conflict(String owner) {
+		return new ClientErrorException(Response.status(CONFLICT)
+				.entity("task " + owner
+						+ " is already archiving some of those directories")
+				.type("text/plain").build());
+	}
+
+	/**
+	 * Note that a task no longer needs its directories.
+	 *
+	 * @param key
+	 *            The task's key.
+	 */
+	private void forgetDirectories(String key) {
+		List<String> paths = new ArrayList<>();
+		synchronized (byDirectory) {
+			Iterator<Map.Entry<String, String>> it = byDirectory.entrySet()
+					.iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, String> e = it.next();
+				if (e.getValue().equals(key)) {
+					paths.add(e.getKey());
+					it.remove();
+				}
+			}
+			claims.remove(key);
+			deleted.remove(key);
+		}
+		if (cluster != null)
+			cluster.releaseDirectories(key, paths);
+	}
+
+	private String newKey() {
+		String key;
+		do {
+			key = "task" + count.incrementAndGet();
+			if (cluster != null)
+				// Other services make keys too
+				key += "-" + cluster.node();
+		} while (tasks.containsKey(key) || doneTasks.contains(key));
+		return key;
+	}
+
+	/** What became of a submission. */
+	public static final class Submitted {
+		/** The key of the task that will do what was asked. */
+		public final String key;
+		/**
+		 * Whether the submission joined an unfinished task for the same
+		 * directories and target, rather than making a new task.
+		 */
+		public final boolean joined;
+
+		Submitted(String key, boolean joined) {
+			this.key = key;
+			this.joined = joined;
+		}
+	}
 
-		MetadataRecorder md = new MetadataRecorder(tika, project, notes);
-		md.setUser(user);
-		ArchiverTask at = new ArchiverTask(md, archRoot, metaRoot, cifsRoot, d,
-				ingester, infoSource);
-		return storeTask(d, md, at, submit(at));
+	public Submitted newTask(SeekConnector.User user, Project project,
+			List<String> dirs, String notes) {
+		return submit(new Submission(user, project, dirs, notes, null, null));
 	}
 
-	public String newTask(SeekConnector.User user, SeekConnector.Assay assay,
+	public Submitted newTask(SeekConnector.User user, SeekConnector.Assay assay,
 			List<String> dirs, Project project, String notes) {
 		if (user == null || user.url == null)
 			throw new IllegalArgumentException("need a user with a URL");
 		if (assay == null || assay.url == null)
 			throw new IllegalArgumentException("need an assay with a URL");
-		File d = existingDirectory(dirs);
-
-		MetadataRecorder md = new MetadataRecorder(tika, project, notes);
-		md.setUser(user);
-		md.setExperiment(assay);
-		ArchiverTask at = new SeekAwareArchiverTask(md, archRoot, metaRoot,
-				cifsRoot, d, seek, ingester, infoSource);
-		return storeTask(d, md, at, submit(at));
+		return submit(new Submission(user, project, dirs, notes, assay, null));
 	}
 
-	public String newTask(User user, Study study, List<String> dirs,
+	public Submitted newTask(User user, Study study, List<String> dirs,
 			Project project, String notes) {
 		if (user == null || user.url == null)
 			throw new IllegalArgumentException("need a user with a URL");
 		if (study == null || study.url == null)
 			throw new IllegalArgumentException("need a study with a URL");
-		File d = existingDirectory(dirs);
-
-		MetadataRecorder md = new MetadataRecorder(tika, project, notes);
-		md.setUser(user);
-		md.setExperiment(study);
-		ArchiverTask at = new AssayCreatingArchiverTask(study, md, archRoot,
-				metaRoot, cifsRoot, d, seek, ingester, infoSource);
-		return storeTask(d, md, at, submit(at));
-	}
-
-	private String storeTask(File d, MetadataRecorder md, ArchiverTask at,
-			Future<URL> taskResult) {
-		List<String> dirs = singletonList(d.getAbsolutePath());
-		String key;
-		synchronized (this) {
-			do {
-				key = "task" + (++count);
-			} while (tasks.containsKey(key) || doneTasks.containsKey(key));
-			ActiveTask p = new ActiveTask(key, md, dirs, at, taskResult);
-			tasks.put(key, p);
-			at.setJavaTask(taskResult);
-		}
-		return key;
+		return submit(new Submission(user, project, dirs, notes, null, study));
 	}
 
 	/**
-	 * Get the first existing directory from the list.
+	 * Check that the directories can be archived together by one task: they
+	 * must all exist, be from the same instrument, and have different names
+	 * (as each is copied to a directory of its name).
 	 * 
 	 * @param dirs
 	 *            List of names of directories to look at.
-	 * @return The directory
+	 * @return The directories
 	 * @throws WebApplicationException
-	 *             If no suitable directory is present.
+	 *             If the directories aren't suitable.
 	 */
-	private File existingDirectory(List<String> dirs) {
+	private static List<File> files(List<String> dirs) {
+		List<File> result = new ArrayList<>();
+		for (String d : dirs)
+			result.add(new File(d));
+		return result;
+	}
+
+	private List<File> existingDirectories(List<String> dirs) {
+		if (dirs == null || dirs.isEmpty())
+			throw new BadRequestException("need at least one directory");
+		List<File> result = new ArrayList<>();
+		Set<String> names = new HashSet<>();
+		String machine = null;
 		for (String d : dirs) {
 			File dir = new File(d);
-			if (dir.exists())
-				return dir;
+			if (!dir.isDirectory())
+				throw new BadRequestException("no such directory: " + d);
+			if (!names.add(dir.getName()))
+				throw new BadRequestException(
+						"directories must have different names");
+			String m = infoSource.getMachineName(dir);
+			if (machine == null)
+				machine = m;
+			else if (!machine.equals(m))
+				throw new BadRequestException(
+						"directories must all be from one instrument");
+			result.add(dir);
 		}
-		throw new BadRequestException("no such directory");
+		return result;
 	}
 
 	/**
@@ -224,23 +915,56 @@ public class TaskStore {
 	 * @throws WebApplicationException
 	 *             if the task cannot be found or there are other problems.
 	 */
-	private synchronized Task get(String id) {
+	private Task get(String id) {
 		if (id == null || id.isEmpty())
 			throw new BadRequestException("bad task id");
+		// Look here first, as tasks only leave once they're in the history
+		ActiveTask task = tasks.get(id);
+		if (task != null)
+			return task;
 		FinishedTask t = doneTasks.get(id);
 		if (t != null)
 			return t;
-		ActiveTask task = tasks.get(id);
-		if (task == null)
-			throw new NotFoundException("no such task");
-		return task;
+		if (cluster != null) {
+			RemoteTask rt = find(remote, id);
+			if (rt == null)
+				// Newer than the last heartbeat, perhaps; look again
+				rt = find(remote = remoteTasks(), id);
+			if (rt != null)
+				return rt;
+		}
+		throw new NotFoundException("no such task");
+	}
+
+	private static RemoteTask find(List<RemoteTask> tasks, String id) {
+		for (RemoteTask rt : tasks)
+			if (rt.getKey().equals(id))
+				return rt;
+		return null;
+	}
+
+	/**
+	 * @return The unfinished tasks of the other services in the cluster, and
+	 *         the tasks that no service has claimed.
+	 */
+	private List<RemoteTask> remoteTasks() {
+		List<RemoteTask> found = cluster.published();
+		found.addAll(cluster.unclaimed());
+		return found;
+	}
+
+	/** @return What a task of this service's is doing. */
+	private String statusOf(ActiveTask task) {
+		String queued = scheduler.queueStatus(task.getKey());
+		return queued != null ? queued : task.getStatus();
 	}
 
 	public ArchiveTask describeTask(String id, UriBuilder ub) {
 		Task task = get(id);
 		ArchiveTask result = new ArchiveTask();
 		result.id = id;
-		result.status = task.getStatus();
+		result.status = (task instanceof ActiveTask ? statusOf((ActiveTask) task)
+				: task.getStatus());
 		result.progress = task.getProgress();
 		result.submitter = task.getUser();
 		result.assay = task.getExperiment();
@@ -258,82 +982,89 @@ public class TaskStore {
 		if (ub != null)
 			result.url = ub.build(id);
 		try {
-			finalizeDoneActiveTask(task, result);
+			if (task.isDone()) {
+				URL made = task.getCreatedAsset();
+				if (made != null)
+					result.createdAsset = made.toURI();
+			}
 		} catch (URISyntaxException e) {
 			// ignore these; they should all be impossible
-		} catch (IOException e) {
-			log.error("problem when serializing task", e);
 		}
 		return result;
 	}
 
-	private void finalizeDoneActiveTask(Task task, ArchiveTask result)
-			throws URISyntaxException, IOException {
-		if (!task.isDone())
+	/**
+	 * Move a finished task to the history. Called from the task's future once
+	 * it is done, whether it completed, failed or was cancelled.
+	 */
+	private void finishedTask(String key) {
+		ActiveTask task = tasks.get(key);
+		if (task == null)
+			// Deleted
 			return;
-		URL made = task.getCreatedAsset();
-		if (made != null)
-			result.createdAsset = made.toURI();
-		if (!(task instanceof ActiveTask))
+		log.info("stashing " + key + " on disk");
+		try {
+			doneTasks.add(task.toFinished());
+		} catch (IOException e) {
+			log.error("problem when serializing task", e);
 			return;
-		synchronized (this) {
-			ActiveTask at = (ActiveTask) task;
-			tasks.remove(at.getKey());
-			finishedTask(at);
-		}
-	}
-
-	private void finishedTask(ArchiverTask at) throws IOException {
-		// Ugly search, but space should be fairly small
-		ActiveTask t = null;
-		synchronized (this) {
-			for (ActiveTask e : tasks.values())
-				if (e.getTask() == at) {
-					t = e;
-					break;
-				}
 		}
-		if (t != null)
-			finishedTask(t);
-	}
-
-	private void finishedTask(ActiveTask task) throws IOException {
-		log.info("stashing " + task.getKey() + " on disk");
-		doneTasks.put(task.getKey(), task.toFinished(savedTasksRoot));
+		if (!tasks.remove(key, task))
+			// Deleted while we were stashing it
+			try {
+				doneTasks.remove(key);
+			} catch (IOException e) {
+				log.error("problem when deleting finished task", e);
+			}
 	}
 
 	public void deleteTask(String id) throws InterruptedException,
 			ExecutionException {
-		ActiveTask task;
-		synchronized (this) {
-			get(id);
-			task = tasks.remove(id);
-			FinishedTask ft = doneTasks.remove(id);
-			if (ft != null)
-				ft.delete();
+		if (get(id) instanceof RemoteTask) {
+			if (!cluster.cancel(id))
+				throw new WebApplicationException(GONE);
+			if (shared.remove(id))
+				// Was waiting in the queue, so is gone now
+				forgetDirectories(id);
+			return;
+		}
+		ActiveTask task = tasks.remove(id);
+		try {
+			doneTasks.remove(id);
+		} catch (IOException e) {
+			log.error("problem when deleting finished task", e);
 		}
 		if (task == null)
 			throw new WebApplicationException(GONE);
-		if (!task.isDone())
+		if (!task.isDone()) {
+			deleted.add(id);
 			task.cancel(false);
+		}
 	}
 
 	@PreDestroy
-	private void stopAllTasks() {
-		List<ActiveTask> tasks;
-		synchronized (this) {
-			// Take a copy so we don't need to hold the lock
-			tasks = new ArrayList<>(this.tasks.values());
-		}
-		for (ActiveTask task : tasks)
-			if (task != null && !task.isDone()) {
+	void stopAllTasks() {
+		stopping = true;
+		if (replayer != null)
+			replayer.shutdownNow();
+		if (clusterTimer != null)
+			clusterTimer.shutdownNow();
+		// Cancelled tasks move themselves to the history
+		for (ActiveTask task : tasks.values())
+			if (!task.isDone())
 				task.cancel(true);
-				try {
-					finishedTask(task);
-				} catch (IOException e) {
-					log.error("problem when serializing task", e);
-				}
+		if (characteriser != null)
+			characteriser.shutdownNow();
+		if (copier != null)
+			copier.shutdownNow();
+		if (doneTasks != null)
+			try {
+				doneTasks.close();
+			} catch (IOException e) {
+				log.error("problem when closing task history", e);
 			}
+		if (extractors != null)
+			extractors.shutdown();
 	}
 
 	public Double getStatus(String id) throws InterruptedException,
@@ -343,9 +1074,91 @@ public class TaskStore {
 		return p.getProgress();
 	}
 
-	public List<String> list() {
-		TreeSet<String> ts = new TreeSet<>(tasks.keySet());
-		ts.addAll(doneTasks.keySet());
-		return new ArrayList<>(ts);
+	/** A task's key, and when it was last active. */
+	private static final class Listed {
+		final String key;
+		final long when;
+
+		Listed(String key, boolean done, Long start, Long finish) {
+			this.key = key;
+			if (finish != null)
+				when = finish;
+			else if (!done)
+				// Tasks that are still going are active now
+				when = Long.MAX_VALUE;
+			else
+				when = (start != null ? start : 0);
+		}
+	}
+
+	private static final Comparator<Listed> RECENT_FIRST = new Comparator<Listed>() {
+		@Override
+		public int compare(Listed a, Listed b) {
+			if (a.when != b.when)
+				return a.when > b.when ? -1 : 1;
+			return b.key.compareTo(a.key);
+		}
+	};
+
+	private static boolean matches(Listed t, String userURL, String user,
+			Date since, Date until) {
+		if (user != null && !user.equals(userURL))
+			return false;
+		if (since != null && t.when < since.getTime())
+			return false;
+		return until == null || t.when < until.getTime();
+	}
+
+	/**
+	 * List the tasks, most recently active first. Finished tasks are chosen
+	 * from the history's index, without reading their records. In a cluster,
+	 * the other services' tasks are listed too.
+	 *
+	 * @param user
+	 *            Only tasks submitted by the user with this URL; <tt>null</tt>
+	 *            for all users.
+	 * @param finished
+	 *            Only finished tasks if true, or unfinished ones if false;
+	 *            <tt>null</tt> for both.
+	 * @param since
+	 *            Only tasks that were active at or after this time;
+	 *            <tt>null</tt> for no limit.
+	 * @param until
+	 *            Only tasks that were last active before this time;
+	 *            <tt>null</tt> for no limit.
+	 * @return The keys of the tasks.
+	 */
+	public List<String> list(String user, Boolean finished, Date since,
+			Date until) {
+		List<Listed> found = new ArrayList<>();
+		if (finished == null || finished)
+			for (TaskHistory.Summary s : doneTasks.summaries()) {
+				Listed t = new Listed(s.key, true, s.start, s.end);
+				if (matches(t, s.user, user, since, until))
+					found.add(t);
+			}
+		List<Task> live = new ArrayList<Task>(tasks.values());
+		if (cluster != null)
+			live.addAll(remote);
+		for (Task at : live) {
+			boolean done = at.isDone();
+			// Briefly in both while being moved to the history
+			if (done && doneTasks.contains(at.getKey()))
+				continue;
+			if (finished != null && finished != done)
+				continue;
+			User u = at.getUser();
+			Date start = at.getStart(), finish = at.getFinish();
+			Listed t = new Listed(at.getKey(), done, start == null ? null
+					: start.getTime(), finish == null ? null : finish.getTime());
+			if (matches(t, u == null || u.url == null ? null : u.url
+					.toString(), user, since, until))
+				found.add(t);
+		}
+		sort(found, RECENT_FIRST);
+		List<String> keys = new ArrayList<>(found.size());
+		for (Listed t : found)
+			keys.add(t.key);
+		return keys;
 	}
 }
@@ -0,0 +1,124 @@
+package manchester.synbiochem.datacapture;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Access to virtual threads, where the JVM has them (Java 21 on). The code is
+ * built for older Javas, so they are got at by reflection. A virtual thread
+ * that blocks on I/O doesn't hold on to an OS thread, so work that mostly
+ * waits for the disk can have a thread per file, with a {@link Semaphore}
+ * rather than the size of a pool saying how much of it really happens at once.
+ *
+ * @author Donal Fellows
+ */
+final class VirtualThreads {
+	private static final Log log = LogFactory.getLog(VirtualThreads.class);
+	/** <tt>Thread.ofVirtual()</tt>, or <tt>null</tt> if there's no such thing */
+	private static final Method OF_VIRTUAL;
+	/** <tt>Thread.Builder.name(String,long)</tt> */
+	private static final Method NAME;
+	/** <tt>Thread.Builder.factory()</tt> */
+	private static final Method FACTORY;
+	/** <tt>Executors.newThreadPerTaskExecutor(ThreadFactory)</tt> */
+	private static final Method PER_TASK;
+	static {
+		Method ofVirtual = null, name = null, factory = null, perTask = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class, long.class);
+			factory = builder.getMethod("factory");
+			perTask = Executors.class.getMethod("newThreadPerTaskExecutor",
+					ThreadFactory.class);
+		} catch (ClassNotFoundException | NoSuchMethodException e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		FACTORY = factory;
+		PER_TASK = perTask;
+	}
+
+	private VirtualThreads() {
+	}
+
+	/** @return Whether this JVM has virtual threads. */
+	static boolean available() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Make an executor that runs each job in a new virtual thread.
+	 *
+	 * @param prefix
+	 *            The start of the threads' names; they are numbered after it.
+	 * @return The executor, or <tt>null</tt> if this JVM can't do that.
+	 */
+	static ExecutorService newExecutor(String prefix) {
+		if (!available())
+			return null;
+		try {
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+			return (ExecutorService) PER_TASK.invoke(null,
+					FACTORY.invoke(builder));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// e.g., when virtual threads are still a preview feature
+			log.warn("failed to make virtual thread executor", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Limit how many jobs run at once on an executor that doesn't limit that
+	 * itself. The jobs wait for a permit in their own threads, so this is
+	 * only sensible when those are cheap to leave waiting, as virtual threads
+	 * are. A job whose thread is interrupted while waiting (as when shutting
+	 * down) mustn't keep anything waiting for it to finish: it is cancelled if
+	 * it is a {@link Future}, as those from an {@link ExecutorService} or a
+	 * {@link java.util.concurrent.CompletionService CompletionService} are,
+	 * and is otherwise run without a permit, still interrupted.
+	 *
+	 * @param executor
+	 *            Where to run the jobs.
+	 * @param permits
+	 *            How many jobs may run at once. May be shared with other
+	 *            executors so they are limited together.
+	 * @return The limited executor.
+	 */
+	static Executor bounded(final Executor executor, final Semaphore permits) {
+		return new Executor() {
+			@Override
+			public void execute(final Runnable job) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							permits.acquire();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							if (job instanceof Future)
+								((Future<?>) job).cancel(false);
+							else
+								job.run();
+							return;
+						}
+						try {
+							job.run();
+						} finally {
+							permits.release();
+						}
+					}
+				});
+			}
+		};
+	}
+}
@@ -0,0 +1,55 @@
+package manchester.synbiochem.datacapture;
+
+import static java.nio.file.Files.newBufferedReader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts the acquisition details (sample name, date, job and task codes,
+ * instrument, conditions, etc.) from the <tt>_HEADER.TXT</tt> file that
+ * Waters MassLynx writes in each <tt>.raw</tt> directory. The lines of
+ * interest look like <tt>$$ Acquired Name: XYZ</tt>.
+ *
+ * @author Donal Fellows
+ */
+public class WatersHeaderExtractor implements MetadataExtractor {
+	private static final String HEADER = "_HEADER.TXT";
+	private static final Pattern LINE = Pattern
+			.compile("^\\$\\$\\s*([^:]+?)\\s*:\\s*(.*?)\\s*$");
+	/** Headers are small; don't read far into something that isn't one. */
+	private static final int MAX_LINES = 200;
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	@Override
+	public boolean supports(String instrumentType) {
+		return "MS".equalsIgnoreCase(instrumentType);
+	}
+
+	@Override
+	public boolean accepts(File file) {
+		return file.getName().equalsIgnoreCase(HEADER)
+				&& file.getParentFile() != null
+				&& file.getParentFile().getName().toLowerCase().endsWith(".raw");
+	}
+
+	@Override
+	public Map<String, String> extract(File file) throws IOException {
+		Map<String, String> result = new LinkedHashMap<>();
+		try (BufferedReader r = newBufferedReader(file.toPath(), LATIN1)) {
+			String line;
+			for (int i = 0; i < MAX_LINES && (line = r.readLine()) != null; i++) {
+				Matcher m = LINE.matcher(line);
+				if (m.matches() && !m.group(2).isEmpty())
+					result.put(m.group(1), m.group(2));
+			}
+		}
+		return result;
+	}
+}
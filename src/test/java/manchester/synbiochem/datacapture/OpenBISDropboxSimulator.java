@@ -0,0 +1,206 @@
+package manchester.synbiochem.datacapture;
+
+import static java.lang.Math.max;
+import static java.lang.String.format;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.file.Files.move;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static manchester.synbiochem.datacapture.OpenBISIngester.MARKER_PREFIX;
+import static manchester.synbiochem.datacapture.OpenBISIngester.OUT_PREFIX;
+import static org.apache.commons.io.FileUtils.deleteQuietly;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A stand-in for the OpenBIS DSS side of a dropbox, so that the ingestion path
+ * can be exercised (and timed) without a live OpenBIS. It watches a dropbox
+ * directory for the markers written by {@link OpenBISIngester}, and after a
+ * configurable delay it does what the real dropbox does: writes the
+ * {@linkplain OpenBISIngester#OUT_PREFIX ingestion marker} describing the
+ * data-set and experiment that were created, and removes the data and the
+ * request marker from the dropbox.
+ * <p>
+ * The delay models how long OpenBIS takes to register a data-set; the
+ * throughput caps how many data-sets it will complete per second, with
+ * requests beyond that being queued in arrival order. Failures are modelled
+ * by removing the data without writing an ingestion marker, which is what
+ * OpenBIS does when a dropbox script throws.
+ *
+ * @author Donal Fellows
+ */
+class OpenBISDropboxSimulator implements Closeable {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String EXPERIMENT_PREFIX = "EXP-";
+
+	private final File dropbox;
+	private final ScheduledExecutorService timer;
+	private final Set<String> seen = new HashSet<>();
+	private final AtomicInteger ingested = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private int counter;
+	private long delay;
+	private double throughput;
+	private long pollInterval = 100;
+	private boolean failing;
+	private long nextSlot;
+
+	/**
+	 * Create a simulator for a dropbox. It does nothing until
+	 * {@linkplain #start() started}.
+	 *
+	 * @param dropbox
+	 *            The dropbox directory to watch. Must already exist.
+	 */
+	OpenBISDropboxSimulator(File dropbox) {
+		if (!dropbox.isDirectory())
+			throw new IllegalArgumentException("dropbox must be a directory");
+		this.dropbox = dropbox;
+		this.timer = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	/**
+	 * @param delay
+	 *            How long, in milliseconds, from the request marker appearing
+	 *            to the data-set being registered.
+	 * @return This
+	 */
+	OpenBISDropboxSimulator setDelay(long delay) {
+		this.delay = delay;
+		return this;
+	}
+
+	/**
+	 * @param throughput
+	 *            The maximum number of data-sets to complete per second, or
+	 *            zero for no limit.
+	 * @return This
+	 */
+	OpenBISDropboxSimulator setThroughput(double throughput) {
+		this.throughput = throughput;
+		return this;
+	}
+
+	/**
+	 * @param pollInterval
+	 *            How often, in milliseconds, to look for new request markers.
+	 * @return This
+	 */
+	OpenBISDropboxSimulator setPollInterval(long pollInterval) {
+		this.pollInterval = pollInterval;
+		return this;
+	}
+
+	/**
+	 * @param failing
+	 *            Whether subsequently-noticed requests should fail to ingest.
+	 * @return This
+	 */
+	OpenBISDropboxSimulator setFailing(boolean failing) {
+		this.failing = failing;
+		return this;
+	}
+
+	/** Start watching the dropbox. */
+	OpenBISDropboxSimulator start() {
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		}, 0, pollInterval, MILLISECONDS);
+		return this;
+	}
+
+	/** @return How many data-sets have been registered successfully. */
+	int getIngestedCount() {
+		return ingested.get();
+	}
+
+	/** @return How many requests have been failed. */
+	int getFailedCount() {
+		return failed.get();
+	}
+
+	@Override
+	public void close() {
+		timer.shutdownNow();
+	}
+
+	private synchronized void poll() {
+		File[] markers = dropbox.listFiles();
+		if (markers == null)
+			return;
+		long now = currentTimeMillis();
+		for (File marker : markers) {
+			String name = marker.getName();
+			if (!name.startsWith(MARKER_PREFIX) || !seen.add(name))
+				continue;
+			String dataName = name.substring(MARKER_PREFIX.length());
+			long when = now + delay;
+			if (throughput > 0) {
+				when = max(when, nextSlot);
+				nextSlot = when + (long) (1000 / throughput);
+			}
+			schedule(dataName, failing, when - now);
+		}
+	}
+
+	private void schedule(final String dataName, final boolean fail,
+			long after) {
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					complete(dataName, fail);
+				} catch (IOException e) {
+					failed.incrementAndGet();
+				}
+			}
+		}, after, MILLISECONDS);
+	}
+
+	private synchronized String nextID() {
+		return format("%tY%<tm%<td%<tH%<tM%<tS%<tL-%d", new Date(),
+				++counter);
+	}
+
+	private void complete(String dataName, boolean fail) throws IOException {
+		File data = new File(dropbox, dataName);
+		File marker = new File(dropbox, MARKER_PREFIX + dataName);
+		if (fail) {
+			failed.incrementAndGet();
+		} else {
+			/*
+			 * The ingester stops waiting as soon as the data goes away, so the
+			 * result must be in place before that happens. Write it under a
+			 * name the ingester doesn't look for, then rename it into place.
+			 */
+			String id = nextID();
+			File tmp = new File(dropbox, "." + dataName + ".tmp");
+			FileUtils.write(tmp, "# Simulated ingestion of " + dataName
+					+ "\n" + id + "\n" + EXPERIMENT_PREFIX + id + "\n", UTF8);
+			move(tmp.toPath(), new File(dropbox, OUT_PREFIX + dataName)
+					.toPath(), ATOMIC_MOVE);
+			ingested.incrementAndGet();
+		}
+		deleteQuietly(data);
+		deleteQuietly(marker);
+		forget(marker.getName());
+	}
+
+	private synchronized void forget(String markerName) {
+		seen.remove(markerName);
+	}
+}
@@ -0,0 +1,91 @@
+package manchester.synbiochem.datacapture;
+
+import static java.nio.file.Files.createTempDirectory;
+import static java.util.Arrays.asList;
+import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.apache.commons.io.FileUtils.write;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.ws.rs.ServiceUnavailableException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestAdmissionControl {
+	private File dir;
+	private List<File> dirs;
+
+	@Before
+	public void makeDir() throws IOException {
+		dir = createTempDirectory(null).toFile();
+		dirs = asList(dir);
+		write(new File(dir, "a"), "0123456789");
+		write(new File(dir, "b"), "0123456789");
+	}
+
+	@After
+	public void cleanUp() throws IOException {
+		deleteDirectory(dir);
+	}
+
+	private static void assertRefused(AdmissionControl a, String key,
+			List<File> dirs) {
+		try {
+			a.admit(key, dirs);
+			fail("should have been refused");
+		} catch (ServiceUnavailableException e) {
+			assertEquals(503, e.getResponse().getStatus());
+			assertEquals("30",
+					e.getResponse().getHeaderString("Retry-After"));
+		}
+	}
+
+	@Test
+	public void limitsTasks() {
+		AdmissionControl a = new AdmissionControl(2, 1000, dir, 0, dir, 0,
+				30, 100);
+		a.admit("t1", dirs);
+		a.admit("t2", dirs);
+		assertRefused(a, "t3", dirs);
+		a.started("t1");
+		a.admit("t3", dirs);
+		assertEquals(2, a.queued());
+		a.finished("t2");
+		a.finished("t3");
+		a.finished("nonesuch");
+		assertEquals(0, a.queued());
+	}
+
+	@Test
+	public void limitsBytes() {
+		AdmissionControl a = new AdmissionControl(10, 50, dir, 0, dir, 0,
+				30, 100);
+		a.admit("t1", dirs);
+		a.admit("t2", dirs);
+		// 40 bytes waiting; another 20 is too many
+		assertRefused(a, "t3", dirs);
+		a.started("t1");
+		a.admit("t3", dirs);
+		// Too big ever to fit, but let in when nothing else is waiting
+		a = new AdmissionControl(10, 5, dir, 0, dir, 0, 30, 100);
+		a.admit("t1", dirs);
+		assertRefused(a, "t2", dirs);
+	}
+
+	@Test
+	public void keepsSpaceFree() {
+		long free = dir.getUsableSpace();
+		assertRefused(new AdmissionControl(10, 1000, dir, free + 1, dir, 0,
+				30, 100), "t1", dirs);
+		assertRefused(new AdmissionControl(10, 1000, dir, 0, dir, free + 1,
+				30, 100), "t1", dirs);
+		// Roots that don't exist yet are checked where they will be made
+		assertRefused(new AdmissionControl(10, 1000, new File(dir, "x/y"),
+				free + 1, dir, 0, 30, 100), "t1", dirs);
+	}
+}
@@ -1,17 +1,32 @@
 package manchester.synbiochem.datacapture;
 
+import static java.lang.System.currentTimeMillis;
 import static java.nio.file.Files.createTempDirectory;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.apache.commons.io.FileUtils.readFileToString;
 import static org.apache.commons.io.FileUtils.touch;
+import static org.apache.commons.io.FileUtils.write;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
 
 import manchester.synbiochem.datacapture.ArchiverTask.Entry;
+import manchester.synbiochem.datacapture.SeekConnector.Assay;
+import manchester.synbiochem.datacapture.SeekConnector.User;
 
+import org.apache.tika.Tika;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.junit.Test;
 
 public class TestArchiverTask {
@@ -61,4 +76,154 @@ public class TestArchiverTask {
 			deleteDirectory(root);
 		}
 	}
+
+	private static OpenBISIngester ingester(File dropbox) {
+		OpenBISIngester ingester = new OpenBISIngester();
+		ingester.setOpenbisDropbox("{\"SYNAPT\":{\"MS-proj\":\"" + dropbox
+				+ "\"}}");
+		ingester.datasetRootPattern = "http://dss.example.com/%s/original/%s";
+		ingester.experimentPattern = "http://openbis.example.com/#%s";
+		return ingester;
+	}
+
+	private static final InformationSource INFO = new InformationSource() {
+		@Override
+		public String getInstrumentType(String instrumentName) {
+			return "MS";
+		}
+
+		@Override
+		public String getProjectName(String machine, MetadataRecorder metadata) {
+			return "MS-proj";
+		}
+	};
+
+	private static ArchiverTask task(File root, File dropbox, File... dirs) {
+		return new ArchiverTask(new MetadataRecorder(new Tika(), null, null),
+				new File(root, "archive"), new File(root, "metadata"),
+				URI.create("smb://fileserver/data/"), asList(dirs),
+				ingester(dropbox), INFO);
+	}
+
+	@Test
+	public void testTwoDirectories() throws Exception {
+		File root = createTempDirectory(null).toFile();
+		File dropbox = new File(root, "dropbox");
+		dropbox.mkdirs();
+		try (OpenBISDropboxSimulator openbis = new OpenBISDropboxSimulator(
+				dropbox).setPollInterval(20)) {
+			openbis.start();
+			File run1 = new File(root, "SYNAPT/run_1");
+			File run2 = new File(root, "SYNAPT/run_2");
+			write(new File(run1, "a/x.txt"), "abc");
+			write(new File(run2, "y.txt"), "def");
+			File meta = new File(root, "metadata");
+			meta.mkdir();
+			// A single-directory task's manifest is already there
+			touch(new File(meta, "run_1.json"));
+
+			ArchiverTask t = task(root, dropbox, run1, run2);
+			assertNotNull(t.call());
+
+			File archived = new File(root, "archive/MS-proj/SYNAPT");
+			assertEquals("abc", readFileToString(new File(archived,
+					"run_1/a/x.txt"), "UTF-8"));
+			assertEquals("def", readFileToString(new File(archived,
+					"run_2/y.txt"), "UTF-8"));
+			assertEquals(2, openbis.getIngestedCount());
+
+			File manifest = new File(meta, "run_1+run_2.json");
+			assertTrue(manifest.isFile());
+			assertEquals(0, new File(meta, "run_1.json").length());
+			JSONArray files = new JSONObject(readFileToString(manifest,
+					"UTF-8")).getJSONArray(JsonMetadataFields.FILES);
+			ArrayList<String> l = new ArrayList<>();
+			for (int i = 0; i < files.length(); i++)
+				l.add(files.getJSONObject(i).getString(
+						JsonMetadataFields.FILE_NAME));
+			Collections.sort(l);
+			assertEquals("[run_1/a/x.txt, run_2/y.txt]", l.toString());
+		} finally {
+			deleteDirectory(root);
+		}
+	}
+
+	@Test
+	public void testIngestsWithoutRemotePermit() throws Exception {
+		File root = createTempDirectory(null).toFile();
+		File dropbox = new File(root, "dropbox");
+		dropbox.mkdirs();
+		try (OpenBISDropboxSimulator openbis = new OpenBISDropboxSimulator(
+				dropbox).setPollInterval(20)) {
+			openbis.start();
+			File run = new File(root, "SYNAPT/run_1");
+			write(new File(run, "x.txt"), "abc");
+			final ArchiverTask t = task(root, dropbox, run);
+			// Another task is calling SEEK
+			Semaphore permits = new Semaphore(1);
+			permits.acquire();
+			t.setRemoteCalls(permits);
+			FutureTask<URL> f = new FutureTask<>(t);
+			new Thread(f).start();
+
+			long deadline = currentTimeMillis() + 30000;
+			while (openbis.getIngestedCount() == 0) {
+				assertTrue("not ingested", currentTimeMillis() < deadline);
+				Thread.sleep(20);
+			}
+			assertFalse(f.isDone());
+			permits.release();
+			assertNotNull(f.get(30, SECONDS));
+			assertEquals(1, permits.availablePermits());
+		} finally {
+			deleteDirectory(root);
+		}
+	}
+
+	@Test
+	public void testUploadsManifestWithRemotePermit() throws Exception {
+		File root = createTempDirectory(null).toFile();
+		File dropbox = new File(root, "dropbox");
+		dropbox.mkdirs();
+		try (OpenBISDropboxSimulator openbis = new OpenBISDropboxSimulator(
+				dropbox).setPollInterval(20)) {
+			openbis.start();
+			File run = new File(root, "SYNAPT/run_1");
+			write(new File(run, "x.txt"), "abc");
+			final Semaphore permits = new Semaphore(1);
+			final List<String> uploads = new ArrayList<>();
+			SeekConnector seek = new SeekConnector() {
+				@Override
+				public URL uploadFileAsset(User user, Assay assay,
+						String name, String description, String title,
+						String type, File content) {
+					try {
+						uploads.add(permits.availablePermits() + " "
+								+ readFileToString(content, "UTF-8"));
+						return new URL("http://seek/data_files/1");
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			MetadataRecorder md = new MetadataRecorder(new Tika(), null, null);
+			Assay assay = new Assay();
+			assay.url = new URL("http://seek/assays/1");
+			md.setExperiment(assay);
+			ArchiverTask t = new SeekAwareArchiverTask(md, new File(root,
+					"archive"), new File(root, "metadata"),
+					URI.create("smb://fileserver/data/"), asList(run), seek,
+					ingester(dropbox), INFO);
+			t.setRemoteCalls(permits);
+
+			assertEquals(new URL("http://seek/data_files/1"), t.call());
+			assertEquals(1, uploads.size());
+			// Written before taking the permit, which is held for the upload
+			assertTrue(uploads.get(0).startsWith("0 "));
+			assertTrue(uploads.get(0).contains("x.txt"));
+			assertEquals(1, permits.availablePermits());
+		} finally {
+			deleteDirectory(root);
+		}
+	}
 }
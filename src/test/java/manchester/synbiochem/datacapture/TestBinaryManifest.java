@@ -0,0 +1,102 @@
+package manchester.synbiochem.datacapture;
+
+import static java.nio.file.Files.createTempDirectory;
+import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.apache.commons.io.FileUtils.write;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Random;
+
+import manchester.synbiochem.datacapture.BinaryManifest.Reader;
+
+import org.apache.tika.Tika;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBinaryManifest {
+	private File dir;
+	private MetadataRecorder md;
+
+	@Before
+	public void makeRecorder() throws IOException {
+		dir = createTempDirectory(null).toFile();
+		md = new MetadataRecorder(new Tika(), null, "test", dir);
+	}
+
+	@After
+	public void cleanUp() throws IOException {
+		md.close();
+		deleteDirectory(dir);
+	}
+
+	private static String hex(Random r, int bytes) {
+		byte[] b = new byte[bytes];
+		r.nextBytes(b);
+		return Digest.hex(b);
+	}
+
+	private void addFiles(int count) {
+		Random r = new Random(count);
+		for (int i = 0; i < count; i++) {
+			String name = "run/d" + (i % 7) + "/f" + i + ".raw";
+			md.addFile(hex(r, 20), hex(r, 16), name,
+					(i % 3 == 0 ? "text/plain" : "application/octet-stream"),
+					new File("/src/" + name), new File("/dst/" + name), i,
+					"smb://server/" + name, (i % 2 == 0 ? null : URI
+							.create("https://dss/" + name)));
+		}
+	}
+
+	@Test
+	public void matchesJsonManifest() throws IOException {
+		addFiles(20000);
+		File bin = new File(dir, "test" + BinaryManifest.EXTENSION);
+		md.writeBinaryManifest(bin);
+		JSONObject doc = new JSONObject(md.get());
+		JSONArray files = doc.getJSONArray("files");
+		try (Reader r = BinaryManifest.open(bin)) {
+			assertEquals(files.length(), r.size());
+			assertEquals(doc.getString("id"), r.getDocument().getString("id"));
+			assertEquals("test", r.getDocument().getString("notes"));
+			for (int i = 0; i < r.size(); i++) {
+				JSONObject f = files.getJSONObject(i);
+				assertEquals(f.getString("sha1"), Digest.hex(r.getSHA1(i)));
+				assertEquals(f.getString("md5"), Digest.hex(r.getMD5(i)));
+				assertEquals(f.getLong("size"), r.getSize(i));
+				assertEquals(f.getString("mimetype"), r.getMimeType(i));
+				assertEquals(f.getString("name"), r.getName(i));
+				assertEquals(f.getString("src"), r.getOrigin(i));
+				assertEquals(f.getString("archived"), r.getArchive(i));
+				assertEquals(f.getString("cifsurl"), r.getCifs(i));
+				assertEquals(f.optString("url", null), r.getOpenBIS(i));
+			}
+			JSONObject f = files.getJSONObject(1234);
+			assertEquals(1234, r.find(Digest.unhex(f.getString("sha1"))));
+			assertEquals(-1, r.find(new byte[20]));
+		}
+	}
+
+	@Test
+	public void empty() throws IOException {
+		File bin = new File(dir, "empty" + BinaryManifest.EXTENSION);
+		md.writeBinaryManifest(bin);
+		try (Reader r = BinaryManifest.open(bin)) {
+			assertEquals(0, r.size());
+			assertEquals(-1, r.find(new byte[20]));
+			assertEquals(md.getId(), r.getDocument().getString("id"));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void notAManifest() throws IOException {
+		File bin = new File(dir, "junk" + BinaryManifest.EXTENSION);
+		write(bin, "this is not a binary manifest at all", "UTF-8");
+		BinaryManifest.open(bin).close();
+	}
+}
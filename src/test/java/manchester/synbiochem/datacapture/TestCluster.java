@@ -0,0 +1,223 @@
+package manchester.synbiochem.datacapture;
+
+import static java.lang.System.currentTimeMillis;
+import static java.nio.file.Files.createTempDirectory;
+import static java.util.Arrays.asList;
+import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.apache.commons.io.FileUtils.readLines;
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.ProcessBuilder.Redirect;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import manchester.synbiochem.datacapture.SeekConnector.User;
+import manchester.synbiochem.datacapture.TaskQueue.Pending;
+import manchester.synbiochem.datacapture.TaskQueue.Submission;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCluster {
+	private File dir;
+	private TaskQueue queue;
+	/** Two services sharing a directory. */
+	private Cluster a, b;
+
+	@Before
+	public void makeDir() throws IOException {
+		dir = createTempDirectory(null).toFile();
+		queue = new TaskQueue(new File(dir, TaskQueue.DIR_NAME));
+		a = new Cluster(dir, queue, "a", 1000);
+		b = new Cluster(dir, queue, "b", 1000);
+	}
+
+	@After
+	public void cleanUp() throws IOException {
+		deleteDirectory(dir);
+	}
+
+	private void submit(String key) throws IOException {
+		User u = new User();
+		u.name = "Fred";
+		u.url = new URL("http://seek/people/1");
+		queue.add(key, new Submission(u, null, asList("/x/" + key), null,
+				null, null));
+	}
+
+	private File lease(String name) {
+		return new File(new File(dir, Cluster.LEASES), name + ".json");
+	}
+
+	@Test
+	public void onlyOneClaims() throws IOException {
+		submit("task1");
+		assertTrue(b.unfinished("task1"));
+		assertEquals(1, a.unclaimed().size());
+		assertEquals(RemoteTask.UNCLAIMED, b.unclaimed().get(0).getStatus());
+		Submission s = a.claim("task1");
+		assertEquals(asList("/x/task1"), s.dirs);
+		assertNull(b.claim("task1"));
+		assertTrue(a.holds("task1"));
+		assertFalse(b.holds("task1"));
+		assertTrue(b.unfinished("task1"));
+		assertTrue(queue.keys().isEmpty());
+		// A restarted service picks up what it held
+		List<Pending> held = new Cluster(dir, queue, "a", 1000).held();
+		assertEquals("task1", held.get(0).key);
+		assertTrue(new Cluster(dir, queue, "b", 1000).held().isEmpty());
+		a.release("task1");
+		assertFalse(a.holds("task1"));
+		assertFalse(b.unfinished("task1"));
+	}
+
+	@Test
+	public void expiredLeasesTakenOver() throws IOException {
+		submit("task1");
+		submit("task2");
+		a.claim("task1");
+		a.claim("task2");
+		assertTrue(b.takeOver().isEmpty());
+		// a stops renewing the lease on task1
+		lease("task1@a").setLastModified(currentTimeMillis() - 5000);
+		List<Pending> taken = b.takeOver();
+		assertEquals(1, taken.size());
+		assertEquals("task1", taken.get(0).key);
+		assertTrue(b.holds("task1"));
+		assertFalse(a.renew("task1"));
+		assertTrue(a.renew("task2"));
+	}
+
+	@Test
+	public void cancelAndStatus() throws IOException {
+		submit("task1");
+		submit("task2");
+		assertTrue(b.cancel("task1"));
+		assertEquals(asList("task2"), queue.keys());
+		a.claim("task2");
+		assertTrue(b.cancel("task2"));
+		assertFalse(b.cancel("task3"));
+		assertEquals(asList("task2"), a.cancelRequests());
+		a.cancelled("task2");
+		assertTrue(a.cancelRequests().isEmpty());
+
+		a.publish(Collections.singletonList(new JSONObject()
+				.put("key", "task2").put("dirs", asList("/x/task2"))
+				.put("status", "copying").put("progress", 0.5)));
+		assertTrue(a.published().isEmpty());
+		List<RemoteTask> seen = b.published();
+		assertEquals(1, seen.size());
+		assertEquals("task2", seen.get(0).getKey());
+		assertEquals("copying", seen.get(0).getStatus());
+		assertEquals(0.5, seen.get(0).getProgress(), 0.0);
+		assertFalse(seen.get(0).isDone());
+	}
+
+	/**
+	 * Start another service, in another JVM, sharing the directory. It writes
+	 * the key of each task that it adds or claims to its standard output.
+	 */
+	private Process fork(String what) throws IOException {
+		File java = new File(System.getProperty("java.home"), "bin/java");
+		return new ProcessBuilder(java.getPath(), "-cp",
+				System.getProperty("java.class.path"),
+				TestCluster.class.getName(), what, dir.getPath())
+				.redirectError(Redirect.INHERIT).start();
+	}
+
+	/** The other service, for {@link #fork(String)}. */
+	public static void main(String... args) throws Exception {
+		File dir = new File(args[1]);
+		if (args[0].equals("history"))
+			try (TaskHistory h = new TaskHistory(new File(dir,
+					TaskHistory.LOG_NAME), true)) {
+				for (int i = 0; i < 300; i++) {
+					h.add(TestTaskHistory.task("b" + i, i));
+					System.out.println("b" + i);
+					if (i >= 10)
+						h.remove("b" + (i - 10));
+				}
+			}
+		else if (args[0].equals("claim")) {
+			TaskQueue queue = new TaskQueue(new File(dir, TaskQueue.DIR_NAME));
+			Cluster b = new Cluster(dir, queue, "b", 60000);
+			for (String key : queue.keys())
+				if (b.claim(key) != null)
+					System.out.println(key);
+		}
+		System.out.flush();
+		System.exit(0);
+	}
+
+	@Test
+	public void historySharedWithOtherProcess() throws Exception {
+		File log = new File(dir, TaskHistory.LOG_NAME);
+		Set<String> expected = new HashSet<>();
+		try (TaskHistory h = new TaskHistory(log, true)) {
+			Process other = fork("history");
+			BufferedReader out = new BufferedReader(new InputStreamReader(
+					other.getInputStream(), "UTF-8"));
+			// Once it has started, both append and both compact at once
+			assertEquals("b0", out.readLine());
+			for (int i = 0; i < 200; i++) {
+				h.add(TestTaskHistory.task("a" + i, i));
+				if (i >= 100)
+					h.remove("a" + (i - 100));
+			}
+			assertEquals(299, IOUtils.readLines(out).size());
+			assertEquals(0, other.waitFor());
+			for (int i = 100; i < 200; i++)
+				expected.add("a" + i);
+			for (int i = 290; i < 300; i++)
+				expected.add("b" + i);
+			assertEquals(expected, new HashSet<>(h.keys()));
+			assertEquals(100, h.get("a100").getStart().getTime());
+			assertEquals(290, h.get("b290").getStart().getTime());
+		}
+		// 500 records and 390 deletions written, but not all kept
+		assertTrue(readLines(log, "UTF-8").size() < 890);
+		try (TaskHistory h = new TaskHistory(log, true)) {
+			assertEquals(expected, new HashSet<>(h.keys()));
+		}
+	}
+
+	@Test
+	public void claimsSharedWithOtherProcess() throws Exception {
+		for (int i = 0; i < 200; i++)
+			submit("task" + i);
+		Process other = fork("claim");
+		BufferedReader out = new BufferedReader(new InputStreamReader(
+				other.getInputStream(), "UTF-8"));
+		// Once it has claimed one, race it for the rest
+		List<String> theirs = new ArrayList<>();
+		theirs.add(out.readLine());
+		Set<String> mine = new HashSet<>();
+		for (String key : queue.keys())
+			if (a.claim(key) != null)
+				mine.add(key);
+		theirs.addAll(IOUtils.readLines(out));
+		assertEquals(0, other.waitFor());
+
+		// Each task claimed exactly once
+		assertTrue(queue.keys().isEmpty());
+		Set<String> all = new HashSet<>(mine);
+		all.addAll(theirs);
+		assertEquals(200, all.size());
+		assertEquals(200, mine.size() + theirs.size());
+		List<String> held = new ArrayList<>();
+		for (Pending p : new Cluster(dir, queue, "b", 1000).held())
+			held.add(p.key);
+		assertEquals(new HashSet<>(theirs), new HashSet<>(held));
+	}
+}
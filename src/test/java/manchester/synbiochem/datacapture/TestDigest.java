@@ -64,4 +64,13 @@ public class TestDigest {
 		d.update("abc");
 		assertEquals(abcSHA1, d.toString());
 	}
+
+	@Test
+	public void hexRoundTrip() {
+		Digest d = new Digest(Algorithm.MD5);
+		d.update("abc");
+		assertEquals(16, d.digest().length);
+		assertEquals(abcMD5, Digest.hex(d.digest()));
+		assertArrayEquals(d.digest(), Digest.unhex(abcMD5.toLowerCase()));
+	}
 }
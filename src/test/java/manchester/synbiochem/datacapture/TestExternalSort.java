@@ -0,0 +1,154 @@
+package manchester.synbiochem.datacapture;
+
+import static java.nio.file.Files.createTempDirectory;
+import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import manchester.synbiochem.datacapture.ExternalSort.Codec;
+import manchester.synbiochem.datacapture.ExternalSort.Sink;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestExternalSort {
+	private static final Codec<Integer> INT = new Codec<Integer>() {
+		@Override
+		public void write(DataOutputStream out, Integer item)
+				throws IOException {
+			out.writeInt(item);
+		}
+
+		@Override
+		public Integer read(DataInputStream in) throws IOException {
+			return in.readInt();
+		}
+	};
+	private static final Comparator<Integer> ORDER = new Comparator<Integer>() {
+		@Override
+		public int compare(Integer a, Integer b) {
+			return a.compareTo(b);
+		}
+	};
+	private File dir;
+
+	@Before
+	public void makeDir() throws IOException {
+		dir = createTempDirectory(null).toFile();
+	}
+
+	@After
+	public void deleteDir() throws IOException {
+		deleteDirectory(dir);
+	}
+
+	private static List<Integer> drain(ExternalSort<Integer> sort)
+			throws IOException {
+		final List<Integer> out = new ArrayList<>();
+		sort.forEach(new Sink<Integer>() {
+			@Override
+			public void accept(Integer item) {
+				out.add(item);
+			}
+		});
+		return out;
+	}
+
+	@Test
+	public void inMemory() throws IOException {
+		try (ExternalSort<Integer> sort = new ExternalSort<>(dir, INT, ORDER,
+				10)) {
+			for (int i : new int[] { 3, 1, 2 })
+				sort.add(i);
+			assertEquals(3, sort.size());
+			assertEquals("[1, 2, 3]", drain(sort).toString());
+			assertEquals(0, dir.list().length);
+		}
+	}
+
+	@Test
+	public void spilled() throws IOException {
+		Random r = new Random(1);
+		List<Integer> expected = new ArrayList<>();
+		try (ExternalSort<Integer> sort = new ExternalSort<>(dir, INT, ORDER,
+				7)) {
+			for (int i = 0; i < 100; i++) {
+				int n = r.nextInt(50);
+				expected.add(n);
+				sort.add(n);
+			}
+			Collections.sort(expected);
+			assertEquals(expected, drain(sort));
+			assertTrue(dir.list().length > 1);
+			// Replayable, even after adding more
+			sort.add(-1);
+			expected.add(0, -1);
+			assertEquals(expected, drain(sort));
+		}
+		assertEquals(0, dir.list().length);
+	}
+
+	@Test
+	public void mergedInPasses() throws IOException {
+		Random r = new Random(2);
+		List<Integer> expected = new ArrayList<>();
+		try (ExternalSort<Integer> sort = new ExternalSort<>(dir, INT, ORDER,
+				5, 3)) {
+			for (int i = 0; i < 200; i++) {
+				int n = r.nextInt(1000);
+				expected.add(n);
+				sort.add(n);
+			}
+			Collections.sort(expected);
+			assertEquals(expected, drain(sort));
+			// Merged down to no more runs than may be merged at once
+			assertTrue(dir.list().length <= 3);
+			assertEquals(expected, drain(sort));
+		}
+		assertEquals(0, dir.list().length);
+	}
+
+	@Test
+	public void concurrentAdds() throws Exception {
+		final int threads = 4, each = 1000;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try (final ExternalSort<Integer> sort = new ExternalSort<>(dir, INT,
+				ORDER, 64)) {
+			for (int t = 0; t < threads; t++) {
+				final int base = t * each;
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							for (int i = each - 1; i >= 0; i--)
+								sort.add(base + i);
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				});
+			}
+			pool.shutdown();
+			assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+			assertEquals(threads * each, sort.size());
+			List<Integer> items = drain(sort);
+			assertEquals(threads * each, items.size());
+			for (int i = 0; i < items.size(); i++)
+				assertEquals(i, (int) items.get(i));
+		}
+		assertEquals(0, dir.list().length);
+	}
+}
@@ -0,0 +1,147 @@
+package manchester.synbiochem.datacapture;
+
+import static java.nio.file.Files.createTempDirectory;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonMap;
+import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.apache.commons.io.FileUtils.write;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import manchester.synbiochem.datacapture.ExtractorPool.Extraction;
+import manchester.synbiochem.datacapture.Metrics.Counter;
+
+import org.apache.tika.Tika;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestExtractorPool {
+	private File dir;
+	private ExtractorPool pool;
+
+	/** Extracts the file's name, after a delay, for files called *.x */
+	private static class Slow implements MetadataExtractor {
+		private final long delay;
+
+		Slow(long delay) {
+			this.delay = delay;
+		}
+
+		@Override
+		public boolean supports(String instrumentType) {
+			return "T".equals(instrumentType);
+		}
+
+		@Override
+		public boolean accepts(File file) {
+			return file.getName().endsWith(".x");
+		}
+
+		@Override
+		public Map<String, String> extract(File file) throws IOException {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted");
+			}
+			return singletonMap("name", file.getName());
+		}
+	}
+
+	@Before
+	public void makeDir() throws IOException {
+		dir = createTempDirectory(null).toFile();
+	}
+
+	@After
+	public void cleanUp() throws IOException {
+		if (pool != null)
+			pool.shutdown();
+		deleteDirectory(dir);
+	}
+
+	@Test
+	public void selection() {
+		pool = new ExtractorPool(asList((MetadataExtractor) new Slow(0)), 1,
+				1, 1000);
+		assertNull(pool.start("U", new File(dir, "a.x")));
+		assertNull(pool.start("T", new File(dir, "a.y")));
+		Extraction e = pool.start("T", new File(dir, "a.x"));
+		assertNotNull(e);
+		assertEquals(singletonMap("name", "a.x"), e.get());
+	}
+
+	@Test
+	public void failureCountedOnce() {
+		MetadataExtractor broken = new Slow(0) {
+			@Override
+			public Map<String, String> extract(File file) throws IOException {
+				throw new IOException("broken");
+			}
+		};
+		pool = new ExtractorPool(asList(broken, new Slow(0)), 1, 1, 1000);
+		Counter ok = Metrics.counter("extractions_total", "",
+				"result=\"ok\""), failed = Metrics.counter(
+				"extractions_total", "", "result=\"failed\"");
+		long ok0 = ok.get(), failed0 = failed.get();
+		// What the working extractor found is still kept
+		assertEquals(singletonMap("name", "a.x"),
+				pool.start("T", new File(dir, "a.x")).get());
+		assertEquals(ok0, ok.get());
+		assertEquals(failed0 + 1, failed.get());
+	}
+
+	@Test
+	public void timeBudget() {
+		pool = new ExtractorPool(asList((MetadataExtractor) new Slow(5000)),
+				1, 1, 100);
+		long t0 = System.currentTimeMillis();
+		Extraction e = pool.start("T", new File(dir, "a.x"));
+		assertNull(e.get());
+		assertTrue(System.currentTimeMillis() - t0 < 2000);
+	}
+
+	@Test
+	public void fullPoolSkipsFiles() {
+		pool = new ExtractorPool(asList((MetadataExtractor) new Slow(500)), 1,
+				1, 1000);
+		assertNotNull(pool.start("T", new File(dir, "a.x")));
+		assertNotNull(pool.start("T", new File(dir, "b.x")));
+		assertNull(pool.start("T", new File(dir, "c.x")));
+	}
+
+	@Test
+	public void watersHeaderInManifests() throws IOException {
+		File raw = new File(dir, "sample.raw");
+		raw.mkdir();
+		File header = new File(raw, "_HEADER.TXT");
+		write(header, "$$ Acquired Name: sample\r\n"
+				+ "$$ Job Code: J42\r\n$$ Task Code: \r\n"
+				+ "$$ Instrument: SYNAPT G2-Si\r\n", "ISO-8859-1");
+		pool = ExtractorPool.load(1, 1, 1000);
+		assertNull(pool.start("MS", new File(dir, "_HEADER.TXT")));
+		assertNull(pool.start("SBC", header));
+		try (MetadataRecorder md = new MetadataRecorder(new Tika(), null,
+				"test", dir)) {
+			md.addFile("sample.raw/_HEADER.TXT", header, header, null, null,
+					pool.start("MS", header));
+			JSONObject x = new JSONObject(md.get()).getJSONArray("files")
+					.getJSONObject(0).getJSONObject("extracted");
+			assertEquals("sample", x.getString("Acquired Name"));
+			assertEquals("J42", x.getString("Job Code"));
+			assertEquals("SYNAPT G2-Si", x.getString("Instrument"));
+			assertFalse(x.has("Task Code"));
+
+			File bin = new File(dir, "test" + BinaryManifest.EXTENSION);
+			md.writeBinaryManifest(bin);
+			try (BinaryManifest.Reader r = BinaryManifest.open(bin)) {
+				assertEquals(x.toString(), r.getExtracted(0).toString());
+			}
+		}
+	}
+}
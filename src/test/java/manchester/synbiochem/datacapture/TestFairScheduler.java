@@ -0,0 +1,158 @@
+package manchester.synbiochem.datacapture;
+
+import static java.nio.file.Files.createTempDirectory;
+import static java.util.Arrays.asList;
+import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.apache.commons.io.FileUtils.write;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFairScheduler {
+	private static final long BIG = Long.MAX_VALUE;
+	/** Holds on to tasks until told to run them. */
+	private List<Runnable> handedOver;
+	private List<String> ran;
+	private Executor executor;
+
+	@Before
+	public void setUp() {
+		handedOver = new ArrayList<>();
+		ran = new ArrayList<>();
+		executor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				handedOver.add(command);
+			}
+		};
+	}
+
+	private Runnable task(final String name) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				ran.add(name);
+			}
+		};
+	}
+
+	/** Run everything that the scheduler lets through, one at a time. */
+	private void drain() {
+		while (!handedOver.isEmpty())
+			handedOver.remove(0).run();
+	}
+
+	@Test
+	public void takesTurns() {
+		FairScheduler s = new FairScheduler(executor, 1, 1, "", 0, -1);
+		s.submit("a1", "X", "alice", BIG, task("a1"));
+		s.submit("a2", "X", "alice", BIG, task("a2"));
+		s.submit("a3", "X", "alice", BIG, task("a3"));
+		s.submit("b1", "X", "bob", BIG, task("b1"));
+		s.submit("c1", "Y", "carol", BIG, task("c1"));
+		assertEquals(1, handedOver.size());
+		assertEquals(4, s.waiting());
+		// X and alice have had turns, so Y and bob go first
+		assertEquals(1, s.position("c1"));
+		assertEquals(2, s.position("b1"));
+		assertEquals(3, s.position("a2"));
+		assertEquals(4, s.position("a3"));
+		assertEquals(0, s.position("a1"));
+		drain();
+		assertEquals("[a1, c1, b1, a2, a3]", ran.toString());
+		assertEquals(0, s.waiting());
+	}
+
+	@Test
+	public void instrumentCaps() {
+		FairScheduler s = new FairScheduler(executor, 3, 1, "Y=2", 0, -1);
+		s.submit("x1", "X", null, BIG, task("x1"));
+		s.submit("x2", "X", null, BIG, task("x2"));
+		s.submit("y1", "Y", null, BIG, task("y1"));
+		s.submit("y2", "Y", null, BIG, task("y2"));
+		s.submit("y3", "Y", null, BIG, task("y3"));
+		// X is capped at one, Y at two
+		assertEquals(3, handedOver.size());
+		assertEquals(2, s.waiting());
+		handedOver.remove(1).run();
+		assertEquals("[y1]", ran.toString());
+		assertEquals(3, handedOver.size());
+		assertEquals(0, s.position("y3"));
+		assertEquals(1, s.position("x2"));
+	}
+
+	@Test
+	public void cancelAndRefusal() {
+		final boolean[] refuse = { true };
+		FairScheduler s = new FairScheduler(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				if (refuse[0])
+					throw new RuntimeException("full");
+				handedOver.add(command);
+			}
+		}, 1, 1, "", 0, -1);
+		s.submit("a", "X", null, BIG, task("a"));
+		s.submit("b", "X", null, BIG, task("b"));
+		assertEquals(2, s.waiting());
+		assertTrue(s.cancel("b"));
+		assertFalse(s.cancel("b"));
+		refuse[0] = false;
+		s.submit("c", "Y", null, BIG, task("c"));
+		drain();
+		assertEquals("[a, c]", ran.toString());
+	}
+
+	@Test
+	public void fastLane() {
+		FairScheduler s = new FairScheduler(executor, 1, 1, "", 1, 100);
+		s.submit("big1", "X", null, BIG, task("big1"));
+		s.submit("s50", "X", null, 50, task("s50"));
+		// Each lane has a worker
+		assertEquals(2, handedOver.size());
+		s.submit("big2", "Y", null, BIG, task("big2"));
+		s.submit("s30", "X", null, 30, task("s30"));
+		s.submit("s10", "X", null, 10, task("s10"));
+		assertEquals("queued, fast lane (1 of 2)", s.queueStatus("s10"));
+		assertEquals(2, s.position("s30"));
+		assertEquals("queued (1 of 1)", s.queueStatus("big2"));
+		assertNull(s.queueStatus("s50"));
+		// What is said of the others changes as the queues do
+		assertTrue(s.cancel("s10"));
+		assertNull(s.queueStatus("s10"));
+		assertEquals("queued, fast lane (1 of 1)", s.queueStatus("s30"));
+		s.submit("s10", "X", null, 10, task("s10"));
+		assertEquals("queued, fast lane (2 of 2)", s.queueStatus("s30"));
+		drain();
+		// s30 gets the ordinary worker once there is nothing else for it
+		assertEquals("[big1, s50, big2, s10, s30]", ran.toString());
+	}
+
+	@Test
+	public void sizeOf() throws IOException {
+		File dir = createTempDirectory(null).toFile();
+		try {
+			write(new File(dir, "a"), "0123456789");
+			write(new File(dir, "sub/b"), "0123456789");
+			write(new File(dir, "sub/c"), "0123456789");
+			assertEquals(30, FairScheduler.sizeOf(asList(dir), 100, 10));
+			assertEquals(BIG, FairScheduler.sizeOf(asList(dir), 25, 10));
+			assertEquals(BIG, FairScheduler.sizeOf(asList(dir), 100, 2));
+			assertEquals(50, FairScheduler.sizeOf(
+					asList(dir, new File(dir, "sub")), 100, 10));
+			assertEquals(BIG, FairScheduler.sizeOf(
+					asList(dir, new File(dir, "sub")), 40, 10));
+			assertEquals(BIG, FairScheduler.sizeOf(
+					asList(new File(dir, "missing")), 100, 10));
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+}
@@ -1,7 +1,11 @@
 package manchester.synbiochem.datacapture;
 
+import static org.apache.commons.io.FileUtils.write;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
 import org.junit.Test;
 
 public class TestFormData {
@@ -89,4 +93,31 @@ public class TestFormData {
 				"multipart/form-data; boundary=SynBioChemMetadataUploadFormToken10203041",
 				mfd.contentType());
 	}
+
+	@Test
+	public void testStreamedFileContent() throws Exception {
+		File f = File.createTempFile("form", ".tsv");
+		try {
+			write(f, "a\tb\nSynBioChemMetadataUploadFormToken10203040\n", "UTF-8");
+			MultipartFormData mfd = new MultipartFormData(f);
+			mfd.addField("abc", "def");
+			mfd.addContent("bcd", "efg", "text/plain", f);
+			mfd.build();
+			String expected = "--SynBioChemMetadataUploadFormToken10203041\r\n"
+					+ "Content-Disposition: form-data; name=\"abc\"\r\n\r\ndef\r\n"
+					+ "--SynBioChemMetadataUploadFormToken10203041\r\n"
+					+ "Content-Disposition: form-data; name=\"bcd\"; filename=\"efg\"\r\n"
+					+ "Content-Type: text/plain\r\n"
+					+ "Content-Transfer-Encoding: binary\r\n\r\n"
+					+ "a\tb\nSynBioChemMetadataUploadFormToken10203040\n\r\n"
+					+ "--SynBioChemMetadataUploadFormToken10203041--\r\n";
+			assertEquals(Integer.toString(expected.length()), mfd.length());
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			mfd.writeTo(out);
+			assertEquals(expected, out.toString("UTF-8"));
+			assertEquals(expected, new String(mfd.content(), "UTF-8"));
+		} finally {
+			f.delete();
+		}
+	}
 }
@@ -0,0 +1,212 @@
+package manchester.synbiochem.datacapture;
+
+import static java.nio.file.Files.createTempDirectory;
+import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.apache.commons.io.FileUtils.readFileToString;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.StringReader;
+import java.net.URI;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.tika.Tika;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMetadataRecorder {
+	/** Enough files to make the recorder spill to disk several times. */
+	private static final int MANY = 20000;
+	private File spool;
+	private MetadataRecorder md;
+
+	@Before
+	public void makeRecorder() throws Exception {
+		spool = createTempDirectory(null).toFile();
+		md = new MetadataRecorder(new Tika(), null, "test", spool);
+	}
+
+	@After
+	public void cleanUp() throws Exception {
+		md.close();
+		assertEquals(0, spool.list().length);
+		deleteDirectory(spool);
+	}
+
+	private static String hex(Random r, int bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < bytes; i++)
+			sb.append(Digest.HEX[r.nextInt(16)]).append(Digest.HEX[r.nextInt(16)]);
+		return sb.toString();
+	}
+
+	private void addFiles(int count) {
+		Random r = new Random(count);
+		for (int i = 0; i < count; i++)
+			addFile(r, i);
+	}
+
+	private void addFile(Random r, int i) {
+		String name = "run/f" + i + ".raw";
+		md.addFile(hex(r, 20), hex(r, 16), name, "application/octet-stream",
+				new File("/src/" + name), new File("/dst/" + name), i,
+				"smb://server/" + name, URI.create("https://dss/" + name));
+	}
+
+	/** How the ID used to be computed, from the whole list of files. */
+	private static String legacyId(JSONArray files) {
+		JSONArray a = new JSONArray();
+		for (int i = 0; i < files.length(); i++) {
+			a.put(files.getJSONObject(i).get("src"));
+			a.put(files.getJSONObject(i).get("sha1"));
+		}
+		return new Digest(Algorithm.SHA1).update(a.toString()).toString();
+	}
+
+	private static void assertSorted(JSONArray files) {
+		for (int i = 1; i < files.length(); i++) {
+			JSONObject a = files.getJSONObject(i - 1), b = files.getJSONObject(i);
+			int cmp = a.getString("sha1").compareTo(b.getString("sha1"));
+			if (cmp == 0)
+				cmp = a.getString("src").compareTo(b.getString("src"));
+			assertTrue("out of order at " + i, cmp < 0);
+		}
+	}
+
+	@Test
+	public void emptyManifest() {
+		JSONObject doc = new JSONObject(md.get());
+		assertEquals(0, doc.getJSONArray("files").length());
+		assertEquals("test", doc.getString("notes"));
+		assertEquals(legacyId(new JSONArray()), doc.getString("id"));
+	}
+
+	@Test
+	public void smallManifest() {
+		addFiles(10);
+		JSONObject doc = new JSONObject(md.get());
+		JSONArray files = doc.getJSONArray("files");
+		assertEquals(10, files.length());
+		assertSorted(files);
+		assertEquals(legacyId(files), doc.getString("id"));
+		assertEquals(md.getId(), doc.getString("id"));
+	}
+
+	@Test
+	public void largeManifestStreamedToFile() throws Exception {
+		addFiles(MANY);
+		assertTrue(spool.list().length > 1);
+		File out = new File(spool, "manifest.json");
+		md.writeManifest(out);
+		JSONObject doc = new JSONObject(readFileToString(out, "UTF-8"));
+		out.delete();
+		JSONArray files = doc.getJSONArray("files");
+		assertEquals(MANY, files.length());
+		assertSorted(files);
+		assertEquals(legacyId(files), doc.getString("id"));
+		// Writing again gives the same document
+		assertEquals(doc.toString(), new JSONObject(md.get()).toString());
+	}
+
+	@Test
+	public void tsvMatchesJson() throws Exception {
+		addFiles(MANY);
+		File out = new File(spool, "manifest.tsv");
+		md.writeCSV(out);
+		List<CSVRecord> rows = CSVFormat.TDF.parse(
+				new StringReader(readFileToString(out, "UTF-8"))).getRecords();
+		out.delete();
+		JSONArray files = new JSONObject(md.get()).getJSONArray("files");
+		assertEquals(MANY + 1, rows.size());
+		assertEquals("sha1", rows.get(0).get(7));
+		for (int i = 0; i < MANY; i++) {
+			JSONObject f = files.getJSONObject(i);
+			CSVRecord row = rows.get(i + 1);
+			assertEquals(17, row.size());
+			assertEquals(f.getString("src"), row.get(6));
+			assertEquals(f.getString("sha1"), row.get(7));
+			assertEquals(f.getString("md5"), row.get(8));
+			assertEquals(Long.toString(f.getLong("size")), row.get(10));
+		}
+	}
+
+	@Test
+	public void concurrentAdds() throws Exception {
+		final int threads = 8;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		for (int t = 0; t < threads; t++) {
+			final int base = t * (MANY / threads);
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					Random r = new Random(base);
+					for (int i = base; i < base + MANY / threads; i++)
+						addFile(r, i);
+				}
+			});
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+		JSONObject doc = new JSONObject(md.get());
+		JSONArray files = doc.getJSONArray("files");
+		assertEquals(MANY, files.length());
+		assertSorted(files);
+		assertEquals(legacyId(files), doc.getString("id"));
+	}
+
+	@Test
+	public void recordFields() {
+		String sha1 = "00112233445566778899AABBCCDDEEFF00112233";
+		String md5 = "00112233445566778899aabbccddeeff";
+		md.addFile(sha1, md5, "run/a b.raw", "text/plain", new File(
+				"/src/run/a b.raw"), new File("/dst/run/a b.raw"), 123,
+				"smb://server/run/a+b.raw", null);
+		JSONObject f = new JSONObject(md.get()).getJSONArray("files")
+				.getJSONObject(0);
+		assertEquals(sha1, f.getString("sha1"));
+		assertEquals(md5.toUpperCase(), f.getString("md5"));
+		assertEquals("run/a b.raw", f.getString("name"));
+		assertEquals("text/plain", f.getString("mimetype"));
+		assertEquals("/src/run/a b.raw", f.getString("src"));
+		assertEquals("/dst/run/a b.raw", f.getString("archived"));
+		assertEquals(123, f.getLong("size"));
+		assertEquals("smb://server/run/a+b.raw", f.getString("cifsurl"));
+		assertFalse(f.has("url"));
+		assertEquals("1970-01-01T00:00:00Z", f.getString("time"));
+	}
+
+	@Test
+	public void idV2IsOrderIndependent() {
+		String empty = md.getIdV2();
+		addFiles(100);
+		String forwards = md.getIdV2();
+		assertNotEquals(empty, forwards);
+		assertEquals(forwards, new JSONObject(md.get()).getString("id2"));
+		try (MetadataRecorder md2 = new MetadataRecorder(new Tika(), null,
+				"other", spool)) {
+			assertEquals(empty, md2.getIdV2());
+			Random r = new Random(100);
+			String[][] digests = new String[100][];
+			for (int i = 0; i < 100; i++)
+				digests[i] = new String[] { hex(r, 20), hex(r, 16) };
+			for (int i = 99; i >= 0; i--) {
+				String name = "run/f" + i + ".raw";
+				md2.addFile(digests[i][0], digests[i][1], name, "text/plain",
+						new File("/src/" + name), new File("/elsewhere/" + name),
+						i, null, null);
+				if (i == 1)
+					assertNotEquals(forwards, md2.getIdV2());
+			}
+			assertEquals(forwards, md2.getIdV2());
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package manchester.synbiochem.datacapture;
+
+import static org.junit.Assert.*;
+
+import manchester.synbiochem.datacapture.Metrics.Counter;
+import manchester.synbiochem.datacapture.Metrics.Gauge;
+import manchester.synbiochem.datacapture.Metrics.Histogram;
+
+import org.junit.Test;
+
+public class TestMetrics {
+	@Test
+	public void counter() {
+		Counter c = Metrics.counter("test_things_total", "Things.");
+		c.inc();
+		c.add(41);
+		assertSame(c, Metrics.counter("test_things_total", "Things."));
+		String text = Metrics.render();
+		assertTrue(text.contains("# HELP datacapture_test_things_total Things.\n"));
+		assertTrue(text.contains("# TYPE datacapture_test_things_total counter\n"));
+		assertTrue(text.contains("\ndatacapture_test_things_total 42\n"));
+	}
+
+	@Test
+	public void labelledCounters() {
+		Metrics.counter("test_lookups_total", "Lookups.", "result=\"hit\"").add(3);
+		Metrics.counter("test_lookups_total", "Lookups.", "result=\"miss\"").inc();
+		String text = Metrics.render();
+		assertEquals(1, text.split("# TYPE datacapture_test_lookups_total").length - 1);
+		assertTrue(text.contains("datacapture_test_lookups_total{result=\"hit\"} 3\n"));
+		assertTrue(text.contains("datacapture_test_lookups_total{result=\"miss\"} 1\n"));
+	}
+
+	@Test
+	public void gauge() {
+		Metrics.gauge("test_level", "Level.", new Gauge() {
+			@Override
+			public double value() {
+				return 2.5;
+			}
+		});
+		assertTrue(Metrics.render().contains("\ndatacapture_test_level 2.5\n"));
+	}
+
+	@Test
+	public void histogram() {
+		Histogram h = Metrics.histogram("test_seconds", "Time.", new double[] {
+				1, 10 }, "op=\"x\"");
+		h.observe(0.5);
+		h.observe(5);
+		h.observe(50);
+		String text = Metrics.render();
+		assertTrue(text.contains("datacapture_test_seconds_bucket{op=\"x\",le=\"1.0\"} 1\n"));
+		assertTrue(text.contains("datacapture_test_seconds_bucket{op=\"x\",le=\"10.0\"} 2\n"));
+		assertTrue(text.contains("datacapture_test_seconds_bucket{op=\"x\",le=\"+Inf\"} 3\n"));
+		assertTrue(text.contains("datacapture_test_seconds_sum{op=\"x\"} 55.5\n"));
+		assertTrue(text.contains("datacapture_test_seconds_count{op=\"x\"} 3\n"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void typeClash() {
+		Metrics.counter("test_clash", "Clash.");
+		Metrics.histogram("test_clash", "Clash.", new double[] { 1 });
+	}
+}
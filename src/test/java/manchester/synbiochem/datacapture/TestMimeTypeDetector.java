@@ -0,0 +1,59 @@
+package manchester.synbiochem.datacapture;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import manchester.synbiochem.datacapture.Metrics.Counter;
+
+import org.apache.tika.Tika;
+import org.junit.Test;
+
+public class TestMimeTypeDetector {
+	private final MimeTypeDetector detector = new MimeTypeDetector(new Tika());
+	private final Counter hits = Metrics.cacheLookups("mime_types", true);
+
+	/** Some bytes starting with those given, one per character. */
+	private static byte[] header(String start) {
+		byte[] b = Arrays.copyOf(start.getBytes(ISO_8859_1), 200);
+		for (int i = start.length(); i < b.length; i++)
+			b[i] = (byte) i;
+		return b;
+	}
+
+	@Test
+	public void detectsFromHeaderAndCaches() {
+		byte[] pdf = header("%PDF-1.4\n");
+		long before = hits.get();
+		assertEquals("application/pdf", detector.detect("a.pdf", pdf, pdf.length));
+		assertEquals(before, hits.get());
+		pdf[100] = 0;
+		assertEquals("application/pdf", detector.detect("b.PDF", pdf, pdf.length));
+		assertEquals(before + 1, hits.get());
+	}
+
+	@Test
+	public void distinguishesBySignature() {
+		byte[] png = header("\u0089PNG\r\n\u001a\n");
+		assertEquals((byte) 0x89, png[0]);
+		assertEquals('P', png[1]);
+		byte[] zip = header("PK\u0003\u0004");
+		assertEquals("image/png", detector.detect("x.dat", png, png.length));
+		assertFalse("image/png".equals(detector.detect("x.dat", zip, zip.length)));
+	}
+
+	@Test
+	public void textIsNotCached() {
+		byte[] text = "hello world\n".getBytes();
+		long before = hits.get();
+		assertEquals("text/plain", detector.detect("a.txt", text, text.length));
+		assertEquals("text/plain", detector.detect("a.txt", text, text.length));
+		assertEquals(before, hits.get());
+	}
+
+	@Test
+	public void emptyFile() {
+		assertEquals("application/pdf", detector.detect("empty.pdf", new byte[0], 0));
+	}
+}
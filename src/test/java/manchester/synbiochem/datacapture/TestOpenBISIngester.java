@@ -0,0 +1,80 @@
+package manchester.synbiochem.datacapture;
+
+import static java.nio.file.Files.createTempDirectory;
+import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.apache.commons.io.FileUtils.write;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import manchester.synbiochem.datacapture.OpenBISIngester.IngestionResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestOpenBISIngester {
+	private File root;
+	private File dropbox;
+	private File source;
+	private OpenBISIngester ingester;
+	private OpenBISDropboxSimulator openbis;
+
+	@Before
+	public void setUp() throws IOException {
+		root = createTempDirectory(null).toFile();
+		dropbox = new File(root, "dropbox");
+		dropbox.mkdir();
+		source = new File(root, "run_1");
+		write(new File(source, "a/x.txt"), "abc");
+		write(new File(source, "y.txt"), "def");
+
+		ingester = new OpenBISIngester();
+		ingester.setOpenbisDropbox("{\"Synapt\":{\"MS-Proj\":\"" + dropbox
+				+ "\"}}");
+		ingester.datasetRootPattern = "http://dss.example.com/%s/original/%s";
+		ingester.experimentPattern = "http://openbis.example.com/#%s";
+		openbis = new OpenBISDropboxSimulator(dropbox).setPollInterval(20);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		openbis.close();
+		deleteDirectory(root);
+	}
+
+	@Test
+	public void testIngest() throws Exception {
+		openbis.start();
+		IngestionResult r = ingester.ingest(source, "synapt", "ms-proj");
+		assertNotNull(r);
+		assertEquals(1, openbis.getIngestedCount());
+		assertEquals("EXP-" + r.dataID, r.experimentID);
+		assertEquals("http://dss.example.com/" + r.dataID
+				+ "/original/run_1", r.dataRoot.toString());
+		assertEquals("http://openbis.example.com/#" + r.experimentID,
+				r.experimentURL.toString());
+		// The dropbox is left clean
+		assertArrayEquals(new String[0], dropbox.list());
+		// The source is untouched
+		assertTrue(new File(source, "a/x.txt").isFile());
+	}
+
+	@Test
+	public void testNoDropbox() throws Exception {
+		openbis.start();
+		assertNull(ingester.ingest(source, "synapt", "other-proj"));
+		assertEquals(0, openbis.getIngestedCount());
+	}
+
+	@Test(expected = IOException.class)
+	public void testFailedIngest() throws Exception {
+		openbis.setFailing(true).start();
+		try {
+			ingester.ingest(source, "synapt", "ms-proj");
+		} finally {
+			assertEquals(1, openbis.getFailedCount());
+		}
+	}
+}
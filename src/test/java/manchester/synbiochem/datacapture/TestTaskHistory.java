@@ -0,0 +1,163 @@
+package manchester.synbiochem.datacapture;
+
+import static java.nio.file.Files.createTempDirectory;
+import static java.util.Arrays.asList;
+import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.apache.commons.io.FileUtils.readLines;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTaskHistory {
+	private File dir;
+	private File log;
+
+	@Before
+	public void makeDir() throws IOException {
+		dir = createTempDirectory(null).toFile();
+		log = new File(dir, TaskHistory.LOG_NAME);
+	}
+
+	@After
+	public void cleanUp() throws IOException {
+		deleteDirectory(dir);
+	}
+
+	static FinishedTask task(String key, long start) throws IOException {
+		return new FinishedTask(key, new JSONObject()
+				.put("user", new JSONObject().put("name", "Fred").put("id", 1)
+						.put("url", "http://seek/people/1"))
+				.put("assay", new JSONObject().put("url", "http://seek/assays/2")
+						.put("study-name", "S"))
+				.put("start", start).put("end", start + 1000)
+				.put("dirs", asList("/a/b")).put("asset", "http://seek/d/3"));
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		try (TaskHistory h = new TaskHistory(log)) {
+			h.add(task("task1", 1000));
+			h.add(task("task2", 2000));
+			assertEquals(asList("task1", "task2"), h.keys());
+		}
+		try (TaskHistory h = new TaskHistory(log)) {
+			assertEquals(2, h.size());
+			FinishedTask t = h.get("task2");
+			assertEquals("task2", t.getKey());
+			assertEquals("Fred", t.getUser().name);
+			assertEquals(Integer.valueOf(1), t.getUser().id);
+			assertEquals("http://seek/assays/2", t.getExperiment().url.toString());
+			assertEquals("S", t.getExperiment().studyName);
+			assertNull(t.getExperiment().name);
+			assertEquals(2000, t.getStart().getTime());
+			assertEquals(3000, t.getFinish().getTime());
+			assertEquals(asList("/a/b"), t.getDirectories());
+			assertEquals("http://seek/d/3", t.getCreatedAsset().toString());
+			assertNull(h.get("task3"));
+
+			TaskHistory.Summary s = h.summaries().get(0);
+			assertEquals("task1", s.key);
+			assertEquals(Long.valueOf(1000), s.start);
+			assertEquals(Long.valueOf(2000), s.end);
+			assertEquals("http://seek/people/1", s.user);
+		}
+	}
+
+	@Test
+	public void deletionAndCompaction() throws IOException {
+		try (TaskHistory h = new TaskHistory(log)) {
+			for (int i = 0; i < 10; i++)
+				h.add(task("task" + i, i));
+			for (int i = 0; i < 8; i++)
+				assertTrue(h.remove("task" + i));
+			assertFalse(h.remove("task0"));
+			assertEquals(asList("task8", "task9"), h.keys());
+			/*
+			 * Each removal kills two lines, so compacted at the fourth removal
+			 * and again at the seventh, down to three lines; then one more
+			 */
+			assertEquals(3 + 1, readLines(log, "UTF-8").size());
+			assertEquals(9, h.get("task9").getStart().getTime());
+		}
+		try (TaskHistory h = new TaskHistory(log)) {
+			assertEquals(asList("task8", "task9"), h.keys());
+			assertEquals(9, h.get("task9").getStart().getTime());
+			h.add(task("task10", 10));
+		}
+		try (TaskHistory h = new TaskHistory(log)) {
+			assertEquals(asList("task10", "task8", "task9"), h.keys());
+			assertEquals(10, h.get("task10").getStart().getTime());
+		}
+	}
+
+	@Test
+	public void partialLineDropped() throws IOException {
+		try (TaskHistory h = new TaskHistory(log)) {
+			h.add(task("task1", 1000));
+			h.add(task("task2", 2000));
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+			raf.setLength(raf.length() - 5);
+		}
+		try (TaskHistory h = new TaskHistory(log)) {
+			assertEquals(asList("task1"), h.keys());
+			h.add(task("task3", 3000));
+		}
+		try (TaskHistory h = new TaskHistory(log)) {
+			assertEquals(asList("task1", "task3"), h.keys());
+			assertEquals(3000, h.get("task3").getStart().getTime());
+		}
+	}
+
+	@Test
+	public void migration() throws IOException {
+		try (ObjectOutputStream oos = new ObjectOutputStream(
+				new FileOutputStream(new File(dir, "task7")))) {
+			oos.writeObject(task("ignored", 7000));
+		}
+		try (FileOutputStream junk = new FileOutputStream(new File(dir,
+				"task8"))) {
+			junk.write("not a task".getBytes("UTF-8"));
+		}
+		try (TaskHistory h = new TaskHistory(log)) {
+			assertEquals(1, h.migrate(dir));
+			assertEquals(asList("task7"), h.keys());
+			assertEquals(7000, h.get("task7").getStart().getTime());
+		}
+		assertEquals(asList(TaskHistory.LOG_NAME), asList(dir.list()));
+		try (TaskHistory h = new TaskHistory(log)) {
+			assertEquals(0, h.migrate(dir));
+			assertEquals("Fred", h.get("task7").getUser().name);
+		}
+	}
+
+	@Test
+	public void shared() throws IOException {
+		try (TaskHistory a = new TaskHistory(log, true);
+				TaskHistory b = new TaskHistory(log, true)) {
+			a.add(task("task1", 1000));
+			b.add(task("task2", 2000));
+			assertEquals(asList("task1", "task2"), a.keys());
+			assertEquals(2000, a.get("task2").getStart().getTime());
+			assertTrue(b.remove("task1"));
+			assertFalse(a.contains("task1"));
+			// Compaction by another service replaces the file under them
+			try (TaskHistory c = new TaskHistory(log, true)) {
+				c.add(task("task3", 3000));
+			}
+			assertEquals(asList("task2", "task3"), a.keys());
+			assertEquals(3000, b.get("task3").getStart().getTime());
+			a.add(task("task4", 4000));
+			assertEquals(asList("task2", "task3", "task4"), b.keys());
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package manchester.synbiochem.datacapture;
+
+import static java.nio.file.Files.createTempDirectory;
+import static java.util.Arrays.asList;
+import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.apache.commons.io.FileUtils.write;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+import manchester.synbiochem.datacapture.SeekConnector.Project;
+import manchester.synbiochem.datacapture.SeekConnector.Study;
+import manchester.synbiochem.datacapture.SeekConnector.User;
+import manchester.synbiochem.datacapture.TaskQueue.Pending;
+import manchester.synbiochem.datacapture.TaskQueue.Submission;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTaskQueue {
+	private File dir;
+
+	@Before
+	public void makeDir() throws IOException {
+		dir = createTempDirectory(null).toFile();
+	}
+
+	@After
+	public void cleanUp() throws IOException {
+		deleteDirectory(dir);
+	}
+
+	@Test
+	public void survivesRestart() throws IOException, InterruptedException {
+		User u = new User();
+		u.name = "Fred";
+		u.url = new URL("http://seek/people/1");
+		Project p = new Project();
+		p.id = 5;
+		p.url = new URL("http://seek/projects/5");
+		Study s = new Study();
+		s.url = new URL("http://seek/studies/3");
+		s.investigationName = "I";
+
+		TaskQueue q = new TaskQueue(dir);
+		q.add("task2", new Submission(u, p, asList("/a", "/b"), "notes",
+				null, s));
+		Thread.sleep(5);
+		q.add("task1", new Submission(u, p, asList("/c"), null, null, null));
+		q.add("task3", new Submission(u, p, asList("/d"), null, null, null));
+		q.remove("task3");
+
+		List<Pending> pending = new TaskQueue(dir).pending();
+		assertEquals(2, pending.size());
+		assertEquals("task2", pending.get(0).key);
+		assertEquals("task1", pending.get(1).key);
+		Submission sub = pending.get(0).submission;
+		assertEquals("Fred", sub.user.name);
+		assertEquals(Integer.valueOf(5), sub.project.id);
+		assertEquals(asList("/a", "/b"), sub.dirs);
+		assertEquals("notes", sub.notes);
+		assertNull(sub.assay);
+		assertEquals("http://seek/studies/3", sub.study.url.toString());
+		assertEquals("I", sub.study.investigationName);
+		assertNull(pending.get(1).submission.notes);
+		assertNull(pending.get(1).submission.study);
+	}
+
+	@Test
+	public void debrisRemoved() throws IOException {
+		write(new File(dir, ".task1.json"), "{\"partial", "UTF-8");
+		write(new File(dir, "task2.json"), "not json", "UTF-8");
+		assertTrue(new TaskQueue(dir).pending().isEmpty());
+		assertEquals(0, dir.list().length);
+	}
+}
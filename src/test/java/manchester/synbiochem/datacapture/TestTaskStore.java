@@ -0,0 +1,317 @@
+package manchester.synbiochem.datacapture;
+
+import static java.lang.System.currentTimeMillis;
+import static java.nio.file.Files.createTempDirectory;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.apache.commons.io.FileUtils.readFileToString;
+import static org.apache.commons.io.FileUtils.write;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import javax.ws.rs.ClientErrorException;
+
+import manchester.synbiochem.datacapture.Interface.ArchiveTask;
+import manchester.synbiochem.datacapture.SeekConnector.User;
+import manchester.synbiochem.datacapture.TaskStore.Submitted;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
+
+public class TestTaskStore {
+	private File root;
+	private File run1;
+	private File run2;
+	/** Holds back the tasks from running until opened. */
+	private volatile CountDownLatch gate = new CountDownLatch(0);
+	private OpenBISDropboxSimulator openbis;
+	private ExecutorService workers;
+	private TaskStore store;
+	private User user;
+
+	@Before
+	public void setUp() throws IOException {
+		root = createTempDirectory(null).toFile();
+		run1 = new File(root, "instruments/SYNAPT/run_1");
+		write(new File(run1, "a/x.txt"), "abc");
+		write(new File(run1, "y.txt"), "def");
+		run2 = new File(root, "instruments/SYNAPT/run_2");
+		write(new File(run2, "z.txt"), "ghi");
+		File dropbox = new File(root, "dropbox");
+		dropbox.mkdirs();
+		openbis = new OpenBISDropboxSimulator(dropbox).setPollInterval(20);
+		openbis.start();
+		workers = newCachedThreadPool();
+
+		OpenBISIngester ingester = new OpenBISIngester();
+		ingester.setOpenbisDropbox("{\"SYNAPT\":{\"MS-proj\":\"" + dropbox
+				+ "\"}}");
+		ingester.datasetRootPattern = "http://dss.example.com/%s/original/%s";
+		ingester.experimentPattern = "http://openbis.example.com/#%s";
+		store = newStore(ingester);
+
+		user = new User();
+		user.name = "Fred";
+		user.url = new URL("http://seek/people/1");
+	}
+
+	private TaskStore newStore(OpenBISIngester ingester) {
+		TaskStore store = new TaskStore();
+		store.archRoot = new File(root, "archive");
+		store.metaRoot = new File(root, "metadata");
+		store.savedTasksRoot = new File(root, "tasks");
+		store.cifsRoot = URI.create("smb://fileserver/data/");
+		store.executor = new ConcurrentTaskExecutor(new Executor() {
+			@Override
+			public void execute(final Runnable task) {
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							gate.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						task.run();
+					}
+				});
+			}
+		});
+		store.ingester = ingester;
+		store.infoSource = new InformationSource() {
+			@Override
+			public String getInstrumentType(String instrumentName) {
+				return "MS";
+			}
+
+			@Override
+			public String getProjectName(String machine,
+					MetadataRecorder metadata) {
+				return "MS-proj";
+			}
+		};
+		store.characteriserThreads = 2;
+		store.copyThreads = 2;
+		store.extractorThreads = 1;
+		store.extractorQueue = 4;
+		store.extractorTimeout = 1000;
+		store.remoteCallLimit = 2;
+		store.slots = 2;
+		store.instrumentCap = 2;
+		store.instrumentCaps = "";
+		store.fastSlots = 1;
+		store.fastBytes = 1 << 20;
+		store.fastFiles = 100;
+		store.maxQueued = 10;
+		store.maxQueuedBytes = 1 << 30;
+		store.retryAfter = 1;
+		store.scanFiles = 100;
+		store.replayInterval = 100;
+		store.heartbeat = 60000;
+		store.leaseTimeout = 60000;
+		return store;
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		gate.countDown();
+		store.stopAllTasks();
+		workers.shutdownNow();
+		openbis.close();
+		deleteDirectory(root);
+	}
+
+	/** Wait for a task to be recorded in the history. */
+	private void awaitHistory(String key) throws Exception {
+		File log = new File(store.savedTasksRoot, TaskHistory.LOG_NAME);
+		long deadline = currentTimeMillis() + 30000;
+		while (!readFileToString(log, "UTF-8").contains(key + "\t")) {
+			assertTrue("task never finished", currentTimeMillis() < deadline);
+			Thread.sleep(20);
+		}
+	}
+
+	private static void assertRefused(TaskStore store, User user,
+			List<String> dirs, String notes) {
+		try {
+			store.newTask(user, null, dirs, notes);
+			fail("should have been refused");
+		} catch (ClientErrorException e) {
+			assertEquals(409, e.getResponse().getStatus());
+		}
+	}
+
+	@Test
+	public void finishedTaskMovesToHistory() throws Exception {
+		store.start();
+		String key = store.newTask(user, null, asList(run1.getPath()), null).key;
+		assertTrue(store.list(null, null, null, null).contains(key));
+		awaitHistory(key);
+
+		// The task's own future moved it, with what the task made
+		assertFalse(store.list(null, false, null, null).contains(key));
+		assertEquals(asList(key), store.list(null, true, null, null));
+		ArchiveTask t = store.describeTask(key, null);
+		assertNotNull(t.endTime);
+		assertEquals(Double.valueOf(1.0), t.progress);
+		assertTrue(t.createdAsset.toString().startsWith(
+				"http://dss.example.com/"));
+		assertEquals(1, openbis.getIngestedCount());
+		assertTrue(new File(store.archRoot, "MS-proj/SYNAPT/run_1/a/x.txt")
+				.isFile());
+
+		// Still there after a restart
+		store.stopAllTasks();
+		store.start();
+		assertEquals(asList(key), store.list(null, true, null, null));
+		assertEquals(t.createdAsset,
+				store.describeTask(key, null).createdAsset);
+	}
+
+	@Test
+	public void stoppingRecordsRunningTasks() throws Exception {
+		// Without OpenBIS, the task waits for ever for its data to be ingested
+		openbis.close();
+		store.start();
+		String key = store.newTask(user, null, asList(run1.getPath()), null).key;
+		File dropbox = new File(root, "dropbox");
+		long deadline = currentTimeMillis() + 30000;
+		while (dropbox.list().length == 0) {
+			assertTrue("task never started", currentTimeMillis() < deadline);
+			Thread.sleep(20);
+		}
+		store.stopAllTasks();
+		store.start();
+		assertEquals(asList(key), store.list(null, true, null, null));
+		assertNull(store.describeTask(key, null).createdAsset);
+	}
+
+	@Test
+	public void deletedTaskKeepsDirectoriesUntilStopped() throws Exception {
+		openbis.close();
+		store.start();
+		String key = store.newTask(user, null, asList(run1.getPath()), null).key;
+		File dropbox = new File(root, "dropbox");
+		long deadline = currentTimeMillis() + 30000;
+		while (dropbox.list().length == 0) {
+			assertTrue("task never started", currentTimeMillis() < deadline);
+			Thread.sleep(20);
+		}
+		// Still waiting to be ingested, so still using the archive
+		store.deleteTask(key);
+		assertRefused(store, user, asList(run1.getPath()), null);
+
+		openbis = new OpenBISDropboxSimulator(dropbox).setPollInterval(20);
+		openbis.start();
+		while (true) {
+			assertTrue("task never stopped", currentTimeMillis() < deadline);
+			try {
+				assertNotEquals(key, store.newTask(user, null,
+						asList(run1.getPath()), null).key);
+				break;
+			} catch (ClientErrorException e) {
+				Thread.sleep(20);
+			}
+		}
+	}
+
+	@Test
+	public void duplicatesJoinOverlapsRefused() throws Exception {
+		gate = new CountDownLatch(1);
+		store.start();
+		String key = store.newTask(user, null, asList(run1.getPath()), null).key;
+		// Same directory, named differently
+		Submitted again = store.newTask(user, null,
+				asList(run1.getPath() + "/../run_1"), null);
+		assertEquals(key, again.key);
+		assertTrue(again.joined);
+		// Same directory, but for somebody else or with other notes
+		User other = new User();
+		other.name = "Jim";
+		other.url = new URL("http://seek/people/2");
+		assertRefused(store, other, asList(run1.getPath()), null);
+		assertRefused(store, user, asList(run1.getPath()), "again");
+		// Overlapping
+		assertRefused(store, user, asList(run2.getPath(), run1.getPath()), null);
+		Submitted second = store.newTask(user, null, asList(run2.getPath()),
+				null);
+		assertFalse(second.joined);
+		String key2 = second.key;
+		assertNotEquals(key, key2);
+		assertEquals(2, store.list(null, false, null, null).size());
+
+		gate.countDown();
+		awaitHistory(key);
+		awaitHistory(key2);
+		assertEquals(2, openbis.getIngestedCount());
+		// Finished, so the directory can be archived again
+		assertNotEquals(key, store.newTask(user, null,
+				asList(run1.getPath()), null).key);
+	}
+
+	@Test
+	public void duplicatesJoinSharedQueue() throws Exception {
+		store.clustered = true;
+		store.nodeName = "a";
+		// No room here, so the task is left in the shared queue
+		store.slots = 0;
+		store.start();
+		String key = store.newTask(user, null, asList(run1.getPath()), null).key;
+		assertEquals(key, store.newTask(user, null, asList(run1.getPath()),
+				null).key);
+		TaskQueue queue = new TaskQueue(new File(store.savedTasksRoot,
+				TaskQueue.DIR_NAME));
+		assertEquals(asList(key), queue.keys());
+		// Not in the last heartbeat's view of the shared queue, but found
+		assertEquals(key, store.describeTask(key, null).id);
+		assertEquals(RemoteTask.UNCLAIMED,
+				store.describeTask(key, null).status);
+	}
+
+	@Test
+	public void duplicatesJoinAcrossCluster() throws Exception {
+		store.clustered = true;
+		store.nodeName = "a";
+		store.slots = 0;
+		store.start();
+		TaskStore other = newStore(store.ingester);
+		other.clustered = true;
+		other.nodeName = "b";
+		other.slots = 0;
+		other.start();
+		try {
+			String key = store.newTask(user, null, asList(run1.getPath()),
+					null).key;
+			// Submitted to the other service, which has never seen the task
+			Submitted again = other.newTask(user, null,
+					asList(run1.getPath() + "/../run_1"), null);
+			assertEquals(key, again.key);
+			assertTrue(again.joined);
+			assertRefused(other, user, asList(run1.getPath()), "again");
+			assertRefused(other, user, asList(run2.getPath(), run1.getPath()),
+					null);
+			String key2 = other.newTask(user, null, asList(run2.getPath()),
+					null).key;
+			assertRefused(store, user, asList(run2.getPath()), "again");
+
+			// Gone from the queue, so the directory can be archived again
+			store.deleteTask(key);
+			assertNotEquals(key, other.newTask(user, null,
+					asList(run1.getPath()), null).key);
+			assertNotEquals(key2, key);
+		} finally {
+			other.stopAllTasks();
+		}
+	}
+}
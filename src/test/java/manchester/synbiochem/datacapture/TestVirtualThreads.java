@@ -0,0 +1,104 @@
+package manchester.synbiochem.datacapture;
+
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestVirtualThreads {
+	private static int run(ExecutorService pool, int jobs, int permits)
+			throws InterruptedException {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger most = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(jobs);
+		Executor bounded = VirtualThreads.bounded(pool, new Semaphore(permits));
+		for (int i = 0; i < jobs; i++)
+			bounded.execute(new Runnable() {
+				@Override
+				public void run() {
+					int now = running.incrementAndGet();
+					while (true) {
+						int m = most.get();
+						if (now <= m || most.compareAndSet(m, now))
+							break;
+					}
+					try {
+						Thread.sleep(5);
+					} catch (InterruptedException e) {
+						// Ignore
+					} finally {
+						running.decrementAndGet();
+						done.countDown();
+					}
+				}
+			});
+		assertTrue(done.await(30, SECONDS));
+		pool.shutdown();
+		return most.get();
+	}
+
+	@Test
+	public void bounded() throws InterruptedException {
+		int most = run(newCachedThreadPool(), 50, 3);
+		assertTrue(most <= 3);
+		assertTrue(most > 0);
+	}
+
+	@Test
+	public void interruptedFutureCancelled() throws Exception {
+		ExecutorService pool = newCachedThreadPool();
+		Semaphore permits = new Semaphore(1);
+		permits.acquire();
+		final AtomicInteger ran = new AtomicInteger();
+		FutureTask<Void> job = new FutureTask<>(new Runnable() {
+			@Override
+			public void run() {
+				ran.incrementAndGet();
+			}
+		}, null);
+		VirtualThreads.bounded(pool, permits).execute(job);
+		// Interrupts the job's thread while it waits for a permit
+		pool.shutdownNow();
+		try {
+			job.get(30, SECONDS);
+			fail("should have been cancelled");
+		} catch (CancellationException e) {
+			// Expected
+		}
+		assertTrue(pool.awaitTermination(30, SECONDS));
+		assertEquals(0, ran.get());
+		assertEquals(0, permits.availablePermits());
+	}
+
+	@Test
+	public void virtual() throws Exception {
+		assumeTrue(VirtualThreads.available());
+		ExecutorService pool = VirtualThreads.newExecutor("test-");
+		assertNotNull(pool);
+		final Thread[] thread = new Thread[1];
+		pool.submit(new Runnable() {
+			@Override
+			public void run() {
+				thread[0] = Thread.currentThread();
+			}
+		}).get();
+		assertTrue(thread[0].getName().startsWith("test-"));
+		assertTrue(run(pool, 1000, 10) <= 10);
+	}
+
+	@Test
+	public void unavailable() {
+		assumeTrue(!VirtualThreads.available());
+		assertNull(VirtualThreads.newExecutor("test-"));
+	}
+}